@@ -71,6 +71,12 @@ public interface Constants
 	 */
 	public static final String ACTION_STOP_SYNC = "org.devtcg.five.intent.action.STOP_SYNC";
 
+	/**
+	 * Sent to PlaylistService to start downloading the songs we expect to
+	 * be played, as the device is charging on Wi-Fi.
+	 */
+	public static final String ACTION_PRECACHE = "org.devtcg.five.intent.action.PRECACHE";
+
 	/**
 	 * Boolean flag honored by Settings to immediately start SourceAdd to ease
 	 * the out-of-the-box set-up experience.
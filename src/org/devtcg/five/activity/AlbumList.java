@@ -28,7 +28,7 @@ public class AlbumList extends AbstractMainListActivity
 	protected AlbumAdapter createListAdapter()
 	{
 		return new AlbumAdapter(this, new QueryProvider("a." + Five.Music.Albums.NAME,
-				Five.Music.Albums.CONTENT_URI_COMPLETE));
+				"a." + Five.Music.Albums.NAME_KEY, Five.Music.Albums.CONTENT_URI_COMPLETE));
 	}
 
 	@Override
@@ -112,7 +112,7 @@ public class ArtistAlbumList extends ListActivity
 			super(context, R.layout.artist_album_list_item,
 					context.managedQuery(uri, null, null, null,
 							"a." + Five.Music.Albums.RELEASE_DATE + ", " +
-							"a." + Five.Music.Albums.NAME + " COLLATE UNICODE"),
+							"a." + Five.Music.Albums.NAME_KEY),
 					true);
 		}
 
@@ -28,7 +28,7 @@ public class ArtistList extends AbstractMainListActivity
 	protected ArtistAdapter createListAdapter()
 	{
 		return new ArtistAdapter(this, new QueryProvider(Five.Music.Artists.NAME,
-				Five.Music.Artists.CONTENT_URI));
+				Five.Music.Artists.NAME_KEY, Five.Music.Artists.CONTENT_URI));
 	}
 
 	protected ArtistAdapter getAdapter()
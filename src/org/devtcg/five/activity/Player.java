@@ -501,6 +501,12 @@ public class Player extends PlaylistServiceActivity
 				}
 			});
 		}
+
+		public void onBufferHealthUpdate(long songId, int secondsAhead,
+		  int secondsNeeded) throws RemoteException
+		{
+			/* The buffering percentage already covers what we show. */
+		}
 	};
 
 	private final IPlaylistMoveListener.Stub mServiceMoveListener =
@@ -588,6 +594,7 @@ public class Player extends PlaylistServiceActivity
 	{
 		public void onDownloadBegin(long songId) throws RemoteException {}
 		public void onDownloadCancel(long songId) throws RemoteException {}
+		public void onPinProgressUpdate(int complete, int total) throws RemoteException {}
 
 		public void onDownloadError(long songId, final String err)
 		  throws RemoteException
@@ -101,6 +101,28 @@ public abstract class AbstractSyncProvider extends ContentProvider
 		}
 	}
 
+	/**
+	 * Inserts all rows in a single transaction, rather than one each.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values)
+	{
+		SQLiteDatabase db = getDatabase();
+		db.beginTransaction();
+		try {
+			int count = 0;
+			for (int i = 0; i < values.length; i++)
+			{
+				if (insertInternal(uri, values[i]) != null)
+					count++;
+			}
+			db.setTransactionSuccessful();
+			return count;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
 	@Override
 	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs)
 	{
@@ -44,6 +44,9 @@ public abstract class AbstractTableMerger
 	protected final Uri mTableUri;
 	protected final Uri mDeletedTableUri;
 
+	/** Set if rows were inserted, updated or deleted by the last merge. */
+	private boolean mChanged;
+
 	public interface SyncableColumns extends BaseColumns
 	{
 		/**
@@ -72,6 +75,24 @@ public abstract class AbstractTableMerger
 		return mDb;
 	}
 
+	/**
+	 * @return True if the last merge changed any rows of this table.
+	 */
+	protected boolean hasChanges()
+	{
+		return mChanged;
+	}
+
+	/**
+	 * Tells <code>notifier</code> of this table if the last merge changed
+	 * it. Intended to be called from {@link #notifyChanges}.
+	 */
+	protected void postChanges(ChangeNotifier notifier)
+	{
+		if (mChanged == true)
+			notifier.tableChanged(mTableUri);
+	}
+
 	public void merge(Context context, SyncContext syncContext,
 		AbstractSyncProvider serverDiffs, AbstractSyncProvider clientDiffs)
 	{
@@ -93,6 +114,8 @@ public abstract class AbstractTableMerger
 	{
 		Log.d(TAG, mTable + ": beginning table merge");
 
+		mChanged = false;
+
 		try {
 			/*
 			 * Step 1: process server intiated deletes. This is done first in
@@ -193,6 +216,7 @@ public abstract class AbstractTableMerger
 						}
 
 						deleteRow(context, serverDiffs, localCursor);
+						mChanged = true;
 						syncContext.numberOfDeletes++;
 						deleteCount++;
 					}
@@ -335,10 +359,12 @@ public abstract class AbstractTableMerger
 				{
 					case INSERT:
 						insertRow(context, serverDiffs, diffsCursor);
+						mChanged = true;
 						syncContext.numberOfInserts++;
 						break;
 					case UPDATE:
 						updateRow(context, serverDiffs, localRowId, diffsCursor);
+						mChanged = true;
 						syncContext.numberOfUpdates++;
 						break;
 					default:
@@ -360,7 +386,9 @@ public abstract class AbstractTableMerger
 	}
 
 	/**
-	 * Called after merge has completed.
+	 * Called after merge has completed, but before the enclosing transaction
+	 * commits. Implementations should collect notifications (see
+	 * {@link #postChanges}) rather than deliver them immediately.
 	 */
 	public abstract void notifyChanges(Context context);
 
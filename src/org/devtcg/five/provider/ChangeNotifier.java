@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.util.HashSet;
+
+import org.devtcg.five.Constants;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Collects the tables changed by the table mergers and delivers a single,
+ * debounced notification per changed table once the merge has committed.
+ * Tables that were not touched are not notified at all, so open cursors on
+ * them are left alone.
+ * <p>
+ * Each merge runs on a single thread, so changes are collected per thread
+ * until that merge commits or rolls back; a merge which fails can't take
+ * the changes of one which committed before it down with it.
+ */
+public final class ChangeNotifier
+{
+	private static final String TAG = "ChangeNotifier";
+
+	/** Window in which repeated schedule requests are coalesced. */
+	private static final long DEBOUNCE_DELAY = 500;
+
+	private final ContentResolver mResolver;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	/** Changes from committed merges, awaiting delivery. */
+	private final HashSet<Uri> mPending = new HashSet<Uri>();
+
+	/** Changes from the merge under way on each thread. */
+	private final ThreadLocal<HashSet<Uri>> mMerging = new ThreadLocal<HashSet<Uri>>()
+	{
+		@Override
+		protected HashSet<Uri> initialValue()
+		{
+			return new HashSet<Uri>();
+		}
+	};
+
+	public ChangeNotifier(ContentResolver resolver)
+	{
+		mResolver = resolver;
+	}
+
+	/**
+	 * Records a change to the table, of whatever kind, by the merge under
+	 * way on the calling thread.
+	 */
+	public void tableChanged(Uri tableUri)
+	{
+		mMerging.get().add(tableUri);
+	}
+
+	/**
+	 * Delivers the changes of the calling thread's merge, now committed,
+	 * after a short delay. Further commits within the delay push delivery
+	 * back and are merged into one.
+	 */
+	public void commit()
+	{
+		HashSet<Uri> merged = mMerging.get();
+
+		synchronized(this) {
+			mPending.addAll(merged);
+		}
+
+		merged.clear();
+
+		mHandler.removeCallbacks(mFlush);
+		mHandler.postDelayed(mFlush, DEBOUNCE_DELAY);
+	}
+
+	/**
+	 * Forgets the changes of the calling thread's merge, which was rolled
+	 * back. Those of other merges are unaffected.
+	 */
+	public void discard()
+	{
+		mMerging.get().clear();
+	}
+
+	private final Runnable mFlush = new Runnable() {
+		public void run() {
+			HashSet<Uri> pending;
+
+			synchronized (ChangeNotifier.this) {
+				if (mPending.isEmpty())
+					return;
+
+				pending = new HashSet<Uri>(mPending);
+				mPending.clear();
+			}
+
+			for (Uri tableUri: pending)
+			{
+				if (Constants.DEBUG)
+					Log.d(TAG, "Notifying " + tableUri);
+
+				mResolver.notifyChange(tableUri, null);
+			}
+		}
+	};
+}
@@ -31,6 +31,25 @@ public final class Five
 {
 	public static final String AUTHORITY = "org.devtcg.five";
 
+	/**
+	 * Query parameter which, when present on the artist and album list URIs,
+	 * returns one row per alphabet section instead of the items themselves.
+	 * Rows contain {@link #SECTION} and {@link #SECTION_COUNT}, in sort
+	 * order, and honour the same selection as the item query.
+	 */
+	public static final String SECTIONS = "sections";
+
+	/** Section label, see {@link #SECTIONS}. */
+	public static final String SECTION = "section";
+
+	/** Number of items in the section, see {@link #SECTIONS}. */
+	public static final String SECTION_COUNT = "section_count";
+
+	public static Uri makeSectionsUri(Uri listUri)
+	{
+		return listUri.buildUpon().appendQueryParameter(SECTIONS, "1").build();
+	}
+
 	public static Uri makeArtistPhotoUri(long id)
 	{
 		return Five.Music.Artists.CONTENT_URI.buildUpon()
@@ -278,18 +297,56 @@ public final class Five
 			/** Raw media size in bytes. */
 			public static final String SIZE = "size";
 
+			/**
+			 * Hash of the media content, if the server provides one. Songs
+			 * with the same hash share a single file in the cache, however
+			 * many sources or ids they're synced under.
+			 */
+			public static final String CONTENT_HASH = "content_hash";
+
 			/** Timestamp of the cached entry, if present. */
 			public static final String CACHED_TIMESTAMP = "cached_timestamp";
 
 			/** Reference to cache table if cached; otherwise NULL. */
 			public static final String CACHED_PATH = "cached_path";
 
+			/**
+			 * Length of the cached file when it was committed as complete, or
+			 * NULL while it is still being written. Only a committed entry
+			 * whose file still has this length is considered complete.
+			 */
+			public static final String CACHED_LENGTH = "cached_length";
+
+			/**
+			 * Entity tag or modification date the committed content was
+			 * served with, if the server gave either.
+			 */
+			public static final String CACHED_VALIDATOR = "cached_validator";
+
+			/**
+			 * Non-zero if the song is on an album, by an artist or in a
+			 * playlist the user has asked to keep available offline. Pinned
+			 * songs are downloaded in the background and never evicted from
+			 * the cache. Maintained by the provider from {@link Pins}.
+			 */
+			public static final String PINNED = "pinned";
+
+			/**
+			 * Number of times the song has been played on the device. Together
+			 * with {@link Music#LAST_PLAYED}, this is what cache eviction goes
+			 * by.
+			 */
+			public static final String PLAY_COUNT = "play_count";
+
 			/** MusicBrainz identifier. */
 			public static final String MBID = "mbid";
 
 			/** Title / Song / Content description. */
 			public static final String TITLE = "title";
 
+			/** Locale collation key of TITLE, computed when the song is stored. */
+			public static final String TITLE_KEY = "title_key";
+
 			/** Album / Movie (soundtrack, etc) / Show title. */
 			public static final String ALBUM = "album";
 			public static final String ALBUM_ID = "album_id";
@@ -329,10 +386,16 @@ public final class Five
 				  SOURCE_ID + " INTEGER, " +
 				  MIME_TYPE + " TEXT NOT NULL, " +
 				  SIZE + " INTEGER NOT NULL, " +
+				  CONTENT_HASH + " TEXT, " +
 				  CACHED_TIMESTAMP + " INTEGER, " +
 				  CACHED_PATH + " TEXT, " +
+				  CACHED_LENGTH + " INTEGER, " +
+				  CACHED_VALIDATOR + " TEXT, " +
+				  PINNED + " INTEGER NOT NULL DEFAULT 0, " +
+				  PLAY_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
 				  MBID + " INTEGER, " +
-				  TITLE + " TEXT COLLATE UNICODE NOT NULL, " +
+				  TITLE + " TEXT NOT NULL, " +
+				  TITLE_KEY + " TEXT, " +
 				  ARTIST_ID + " INTEGER NOT NULL, " +
 				  ALBUM_ID + " INTEGER, " +
 				  LENGTH + " INTEGER NOT NULL, " +
@@ -363,6 +426,11 @@ public final class Five
 				  	  " ON " + TABLE + " (" +
 				  	  _SYNC_ID +
 				  	");",
+				  	"CREATE INDEX " +
+				  	  TABLE + "_" + CONTENT_HASH +
+				  	  " ON " + TABLE + " (" +
+				  	  CONTENT_HASH +
+				  	");",
 				};
 
 				public static final String[] DROP = {
@@ -390,6 +458,16 @@ public final class Five
 			/** Performing name (significant portion for sort purposes; excludes "The"). */
 			public static final String NAME = "name";
 
+			/**
+			 * Locale collation key of NAME. Lists sort on this column, which
+			 * is computed once when the row is stored instead of collating
+			 * NAME on every query.
+			 */
+			public static final String NAME_KEY = "name_key";
+
+			/** Alphabet section (a single letter, or a space) of NAME. */
+			public static final String NAME_SECTION = "name_section";
+
 			/** Full name, including prefix. */
 			public static final String FULL_NAME = "full_name";
 
@@ -423,7 +501,9 @@ public final class Five
 				  _SYNC_ID + " INTEGER, " +
 				  _SYNC_TIME + " BIGINT, " +
 				  MBID + " INTEGER, " +
-				  NAME + " TEXT COLLATE UNICODE NOT NULL, " +
+				  NAME + " TEXT NOT NULL, " +
+				  NAME_KEY + " TEXT, " +
+				  NAME_SECTION + " TEXT, " +
 				  NAME_PREFIX + " TEXT, " +
 				  PHOTO + " TEXT, " +
 				  GENRE + " TEXT, " +
@@ -440,6 +520,9 @@ public final class Five
 			  	    " ON " + TABLE + " (" +
 			  	    _SYNC_ID +
 			  	  ");",
+				  "CREATE INDEX " +
+				    TABLE + "_" + NAME_KEY +
+				    " ON " + TABLE + " (" + NAME_KEY + ");",
 				};
 
 				public static final String[] DROP = {
@@ -471,6 +554,16 @@ public final class Five
 			/** Album name (less prefix). */
 			public static final String NAME = "name";
 
+			/**
+			 * Locale collation key of NAME. Lists sort on this column, which
+			 * is computed once when the row is stored instead of collating
+			 * NAME on every query.
+			 */
+			public static final String NAME_KEY = "name_key";
+
+			/** Alphabet section (a single letter, or a space) of NAME. */
+			public static final String NAME_SECTION = "name_section";
+
 			/** Full name, including prefix. */
 			public static final String FULL_NAME = "full_name";
 
@@ -508,7 +601,9 @@ public final class Five
 				  _SYNC_ID + " INTEGER, " +
 				  _SYNC_TIME + " BIGINT, " +
 				  MBID + " INTEGER, " +
-				  NAME + " TEXT COLLATE UNICODE NOT NULL, " +
+				  NAME + " TEXT NOT NULL, " +
+				  NAME_KEY + " TEXT, " +
+				  NAME_SECTION + " TEXT, " +
 				  NAME_PREFIX + " TEXT, " +
 				  ARTIST_ID + " INTEGER, " +
 				  ARTWORK + " TEXT, " +
@@ -529,6 +624,9 @@ public final class Five
 				  	  " ON " + TABLE + " (" +
 				  	  _SYNC_ID +
 				  	");",
+				  	"CREATE INDEX " +
+				  	  TABLE + "_" + NAME_KEY +
+				  	  " ON " + TABLE + " (" + NAME_KEY + ");",
 				};
 
 				public static final String[] DROP = {
@@ -599,12 +697,32 @@ public final class Five
 			/** Playlist ID. */
 			public static final String PLAYLIST_ID = "playlist_id";
 
-			/** Position in playlist. */
+			/**
+			 * Sparse ordering key within the playlist. Entries are sorted by
+			 * this value but it is not a dense index: neighbours are normally
+			 * {@link #POSITION_GAP} apart so that an entry can be inserted or
+			 * moved by rewriting only its own row.
+			 */
 			public static final String POSITION = "position";
 
 			/** Reference to song. */
 			public static final String SONG_ID = "song_id";
 
+			/**
+			 * Not a real column. May be supplied on insert or update to place
+			 * the entry immediately before the playlist entry with this _ID.
+			 * When neither this nor POSITION is given on insert, the entry is
+			 * appended.
+			 */
+			public static final String INSERT_BEFORE = "insert_before";
+
+			/**
+			 * Default spacing between adjacent POSITION values. The playlist
+			 * is renumbered with this spacing only when an insert finds no
+			 * room left between its neighbours.
+			 */
+			public static final long POSITION_GAP = 1 << 16;
+
 			public static final class SQL
 			{
 				public static final String TABLE = "music_playlist_songs";
@@ -624,8 +742,8 @@ public final class Five
 
 				public static final String[] INDEX = {
 				  "CREATE INDEX " +
-				    TABLE + "_" + PLAYLIST_ID +
-				    " ON " + TABLE + " (" + PLAYLIST_ID + ");",
+				    TABLE + "_" + PLAYLIST_ID + "_" + POSITION +
+				    " ON " + TABLE + " (" + PLAYLIST_ID + ", " + POSITION + ");",
 				};
 
 				public static final String[] DROP = {
@@ -635,6 +753,111 @@ public final class Five
 			}
 		}
 
+		/**
+		 * Log of playback on the device: each time a song starts, plays to
+		 * the end, or is skipped. Adding a {@link #EVENT_PLAY} event also
+		 * counts the play against the song's {@link Songs#PLAY_COUNT} and
+		 * {@link Music#LAST_PLAYED}.
+		 */
+		public interface History extends BaseColumns
+		{
+			public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.five.music.history";
+			public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.five.music.history";
+
+			/** Access URI. */
+			public static final Uri CONTENT_URI =
+			  Uri.parse("content://" + AUTHORITY + "/media/music/history");
+
+			/** Reference to song. */
+			public static final String SONG_ID = "song_id";
+
+			/** One of the EVENT_* constants. */
+			public static final String EVENT = "event";
+
+			/** Playback position in milliseconds when the event occurred. */
+			public static final String POSITION = "position";
+
+			/** Time of the event, in milliseconds since the epoch. */
+			public static final String TIMESTAMP = "timestamp";
+
+			/** Playback of the song started. */
+			public static final int EVENT_PLAY = 0;
+
+			/** The song played through to the end. */
+			public static final int EVENT_COMPLETE = 1;
+
+			/** Playback moved on to another song before this one ended. */
+			public static final int EVENT_SKIP = 2;
+
+			public static final class SQL
+			{
+				public static final String TABLE = "music_history";
+
+				public static final String[] CREATE = {
+				  "CREATE TABLE " + TABLE + " (" +
+				  _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+				  SONG_ID + " INTEGER NOT NULL, " +
+				  EVENT + " INTEGER NOT NULL, " +
+				  POSITION + " INTEGER, " +
+				  TIMESTAMP + " INTEGER NOT NULL " +
+				  ");",
+				};
+
+				public static final String[] INDEX = {
+				  "CREATE INDEX " +
+				    TABLE + "_" + SONG_ID +
+				    " ON " + TABLE + " (" + SONG_ID + ");",
+				};
+
+				public static final String[] DROP = {
+				  "DROP TABLE IF EXISTS " + TABLE,
+				};
+			}
+		}
+
+		/**
+		 * Albums, artists and playlists pinned for offline use. The provider
+		 * works out {@link Songs#PINNED} from these whenever a pin is added or
+		 * removed, and again when counts are adjusted after a sync, so that
+		 * songs which arrive later are pinned along with the rest.
+		 */
+		public interface Pins extends BaseColumns
+		{
+			public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.five.music.pin";
+
+			/** Access URI. */
+			public static final Uri CONTENT_URI =
+			  Uri.parse("content://" + AUTHORITY + "/media/music/pins");
+
+			/** One of the KIND_* constants. */
+			public static final String KIND = "kind";
+
+			/** Album, artist or playlist id, according to {@link #KIND}. */
+			public static final String ITEM_ID = "item_id";
+
+			public static final int KIND_ALBUM = 0;
+			public static final int KIND_ARTIST = 1;
+			public static final int KIND_PLAYLIST = 2;
+
+			public static final class SQL
+			{
+				public static final String TABLE = "music_pins";
+
+				public static final String[] CREATE = {
+				  "CREATE TABLE " + TABLE + " (" +
+				  _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+				  KIND + " INTEGER NOT NULL, " +
+				  ITEM_ID + " INTEGER NOT NULL, " +
+				  "UNIQUE (" + KIND + ", " + ITEM_ID + ") ON CONFLICT REPLACE" +
+				  ");",
+				};
+
+				public static final String[] DROP = {
+				  "DROP TABLE IF EXISTS " + TABLE,
+				};
+			}
+		}
+
 		public interface AdjustCounts
 		{
 			/**
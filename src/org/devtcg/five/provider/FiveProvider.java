@@ -16,9 +16,11 @@ package org.devtcg.five.provider;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 
 import org.devtcg.five.Constants;
 import org.devtcg.five.provider.AbstractTableMerger.SyncableColumns;
@@ -29,13 +31,17 @@ import org.devtcg.five.provider.util.PlaylistSongMerger;
 import org.devtcg.five.provider.util.SongItem;
 import org.devtcg.five.provider.util.SongMerger;
 import org.devtcg.five.provider.util.SourceItem;
+import org.devtcg.five.service.SyncContext;
 import org.devtcg.five.util.FileUtils;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.DatabaseUtils.InsertHelper;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -60,7 +66,14 @@ public class FiveProvider extends AbstractSyncProvider
 
 	DatabaseHelper mHelper;
 	private static final String DATABASE_NAME = "five.db";
-	private static final int DATABASE_VERSION = 36;
+	private static final int DATABASE_VERSION = 45;
+
+	/**
+	 * Preference recording the locale the stored sort keys and sections
+	 * were computed in.
+	 */
+	private static final String PREFS_NAME = "provider";
+	private static final String PREF_SORT_LOCALE = "sort_locale";
 
 	private static final UriMatcher sUriMatcher;
 	private static final HashMap<String, String> sArtistsMap;
@@ -76,6 +89,20 @@ public class FiveProvider extends AbstractSyncProvider
 	private InsertHelper mDeletedPlaylistInserter;
 	private InsertHelper mDeletedPlaylistSongInserter;
 
+	/**
+	 * Number of extra connections used for queries when the database is in
+	 * write-ahead logging mode.
+	 */
+	private static final int READER_POOL_SIZE = 2;
+
+	private boolean mWriteAheadLogging;
+	private ReaderPool mReaders;
+
+	/** Artwork and photos, owned by the main provider instance. */
+	private ImagePack mImagePack;
+
+	private ChangeNotifier mChangeNotifier;
+
 	private static enum URIPatternIds
 	{
 		SOURCES, SOURCE,
@@ -87,6 +114,8 @@ public class FiveProvider extends AbstractSyncProvider
 		PLAYLISTS, PLAYLIST, SONGS_IN_PLAYLIST, SONG_IN_PLAYLIST,
 		  PLAYLIST_SONG, PLAYLIST_SONGS, DELETED_PLAYLIST, DELETED_PLAYLIST_SONG,
 		CACHE, CACHE_ITEMS_BY_SOURCE,
+		HISTORY,
+		PINS,
 		ADJUST_COUNTS,
 		;
 
@@ -113,12 +142,16 @@ public class FiveProvider extends AbstractSyncProvider
 			execStatements(db, Five.Music.Songs.SQL.CREATE);
 			execStatements(db, Five.Music.Playlists.SQL.CREATE);
 			execStatements(db, Five.Music.PlaylistSongs.SQL.CREATE);
+			execStatements(db, Five.Music.History.SQL.CREATE);
+			execStatements(db, Five.Music.Pins.SQL.CREATE);
 
 			if (isTemporary() == false)
 			{
+				execStatements(db, Five.Music.Artists.SQL.INDEX);
 				execStatements(db, Five.Music.Albums.SQL.INDEX);
 				execStatements(db, Five.Music.Songs.SQL.INDEX);
 				execStatements(db, Five.Music.PlaylistSongs.SQL.INDEX);
+				execStatements(db, Five.Music.History.SQL.INDEX);
 			}
 		}
 
@@ -146,6 +179,8 @@ public class FiveProvider extends AbstractSyncProvider
 			execStatements(db, Five.Music.Songs.SQL.DROP);
 			execStatements(db, Five.Music.Playlists.SQL.DROP);
 			execStatements(db, Five.Music.PlaylistSongs.SQL.DROP);
+			execStatements(db, Five.Music.History.SQL.DROP);
+			execStatements(db, Five.Music.Pins.SQL.DROP);
 		}
 
 		@Override
@@ -158,17 +193,95 @@ public class FiveProvider extends AbstractSyncProvider
 				execStatements(db, Five.Music.Albums.SQL.INDEX);
 				execStatements(db, Five.Music.Songs.SQL.INDEX);
 			}
+			else if (oldVersion >= 39 && newVersion == 45)
+			{
+				/* Keep the library and cache; only new columns are added. */
+				Log.w(TAG, "Attempting to upgrade to " + newVersion);
+
+				if (oldVersion < 40)
+				{
+					db.execSQL("ALTER TABLE " + Five.Music.Songs.SQL.TABLE +
+					  " ADD COLUMN " + Five.Music.Songs.PINNED +
+					  " INTEGER NOT NULL DEFAULT 0");
+				}
+
+				if (oldVersion < 41)
+				{
+					db.execSQL("ALTER TABLE " + Five.Music.Songs.SQL.TABLE +
+					  " ADD COLUMN " + Five.Music.Songs.PLAY_COUNT +
+					  " INTEGER NOT NULL DEFAULT 0");
+				}
+
+				if (oldVersion < 42)
+				{
+					db.execSQL("ALTER TABLE " + Five.Music.Songs.SQL.TABLE +
+					  " ADD COLUMN " + Five.Music.Songs.CACHED_LENGTH + " INTEGER");
+					db.execSQL("ALTER TABLE " + Five.Music.Songs.SQL.TABLE +
+					  " ADD COLUMN " + Five.Music.Songs.CACHED_VALIDATOR + " TEXT");
+
+					/*
+					 * Entries cached before now were judged complete by the synced
+					 * size, so carry on doing that for them.
+					 */
+					db.execSQL("UPDATE " + Five.Music.Songs.SQL.TABLE +
+					  " SET " + Five.Music.Songs.CACHED_LENGTH + " = " +
+					  Five.Music.Songs.SIZE + " WHERE " +
+					  Five.Music.Songs.CACHED_PATH + " IS NOT NULL");
+				}
+
+				if (oldVersion < 43)
+				{
+					execStatements(db, Five.Music.History.SQL.CREATE);
+					execStatements(db, Five.Music.History.SQL.INDEX);
+				}
+
+				if (oldVersion < 44)
+				{
+					db.execSQL("ALTER TABLE " + Five.Music.Songs.SQL.TABLE +
+					  " ADD COLUMN " + Five.Music.Songs.CONTENT_HASH + " TEXT");
+					db.execSQL("CREATE INDEX " + Five.Music.Songs.SQL.TABLE + "_" +
+					  Five.Music.Songs.CONTENT_HASH + " ON " + Five.Music.Songs.SQL.TABLE +
+					  " (" + Five.Music.Songs.CONTENT_HASH + ");");
+				}
+
+				execStatements(db, Five.Music.Pins.SQL.CREATE);
+
+				/*
+				 * Pins used to be kept against each song, so which collection
+				 * was pinned is lost. Pinning every album whose songs are all
+				 * pinned covers album and artist pins; anything else falls
+				 * back to unpinned.
+				 */
+				db.execSQL("INSERT INTO " + Five.Music.Pins.SQL.TABLE + " (" +
+				  Five.Music.Pins.KIND + ", " + Five.Music.Pins.ITEM_ID + ") " +
+				  "SELECT " + Five.Music.Pins.KIND_ALBUM + ", " +
+				  Five.Music.Songs.ALBUM_ID + " FROM " + Five.Music.Songs.SQL.TABLE +
+				  " WHERE " + Five.Music.Songs.ALBUM_ID + " IS NOT NULL" +
+				  " GROUP BY " + Five.Music.Songs.ALBUM_ID +
+				  " HAVING MIN(" + Five.Music.Songs.PINNED + ") != 0");
+
+				updatePinned(db);
+			}
 			else
 			{
 				Log.w(TAG, "Version too old, wiping out database contents...");
 				onDrop(db);
 				onCreate(db);
+
+				if (isTemporary() == false)
+					deleteLegacyImages();
 			}
 		}
 
 		@Override
 		public void onOpen(SQLiteDatabase db)
 		{
+			if (isTemporary() == false)
+				mWriteAheadLogging = ReaderPool.enableWriteAheadLogging(db);
+
+			if (isTemporary() == false && db.isReadOnly() == false)
+				checkSortLocale(db);
+
 			mArtistInserter = new InsertHelper(db, Five.Music.Artists.SQL.TABLE);
 			mAlbumInserter = new InsertHelper(db, Five.Music.Albums.SQL.TABLE);
 			mSongInserter = new InsertHelper(db, Five.Music.Songs.SQL.TABLE);
@@ -181,6 +294,79 @@ public class FiveProvider extends AbstractSyncProvider
 		}
 	}
 
+	/**
+	 * Rebuilds every sort key and section if the locale has changed since
+	 * they were computed, so that rows stored before and after the change
+	 * don't end up ordered by different collations.
+	 */
+	private void checkSortLocale(SQLiteDatabase db)
+	{
+		SharedPreferences prefs = getContext().getSharedPreferences(PREFS_NAME,
+		  Context.MODE_PRIVATE);
+
+		Locale locale = Locale.getDefault();
+		String stored = prefs.getString(PREF_SORT_LOCALE, null);
+
+		SortKeys.setLocale(locale);
+
+		if (locale.toString().equals(stored) == true)
+			return;
+
+		Log.i(TAG, "Sort locale changed from " + stored + " to " + locale +
+		  ", rebuilding sort keys...");
+
+		db.beginTransaction();
+		try {
+			rebuildSortKeys(db, Five.Music.Artists.SQL.TABLE, Five.Music.Artists.NAME,
+			  Five.Music.Artists.NAME_KEY, Five.Music.Artists.NAME_SECTION);
+			rebuildSortKeys(db, Five.Music.Albums.SQL.TABLE, Five.Music.Albums.NAME,
+			  Five.Music.Albums.NAME_KEY, Five.Music.Albums.NAME_SECTION);
+			rebuildSortKeys(db, Five.Music.Songs.SQL.TABLE, Five.Music.Songs.TITLE,
+			  Five.Music.Songs.TITLE_KEY, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		prefs.edit().putString(PREF_SORT_LOCALE, locale.toString()).commit();
+	}
+
+	private static void rebuildSortKeys(SQLiteDatabase db, String table,
+	  String nameColumn, String keyColumn, String sectionColumn)
+	{
+		String sql = "UPDATE " + table + " SET " + keyColumn + " = ?";
+		if (sectionColumn != null)
+			sql += ", " + sectionColumn + " = ?";
+		sql += " WHERE " + SyncableColumns._ID + " = ?";
+
+		SQLiteStatement update = db.compileStatement(sql);
+		Cursor c = db.query(table, new String[] { SyncableColumns._ID, nameColumn },
+		  null, null, null, null, null);
+
+		try {
+			while (c.moveToNext() == true)
+			{
+				String name = c.getString(1);
+				String key = SortKeys.getSortKey(name);
+
+				int index = 1;
+				if (key != null)
+					update.bindString(index++, key);
+				else
+					update.bindNull(index++);
+
+				if (sectionColumn != null)
+					update.bindString(index++, SortKeys.getSection(name));
+
+				update.bindLong(index, c.getLong(0));
+				update.execute();
+			}
+		} finally {
+			c.close();
+			update.close();
+		}
+	}
+
 	private static final AbstractSyncProvider.Creator<FiveProvider> CREATOR =
 		new AbstractSyncProvider.Creator<FiveProvider>()
 	{
@@ -221,6 +407,14 @@ public class FiveProvider extends AbstractSyncProvider
 	@Override
 	public void close()
 	{
+		synchronized (this) {
+			if (mReaders != null)
+			{
+				mReaders.close();
+				mReaders = null;
+			}
+		}
+
 		mHelper.close();
 	}
 
@@ -230,6 +424,60 @@ public class FiveProvider extends AbstractSyncProvider
 		return mHelper.getWritableDatabase();
 	}
 
+	public synchronized ImagePack getImagePack()
+	{
+		if (isTemporary())
+			throw new IllegalStateException("Images are stored only by the main provider");
+
+		if (mImagePack == null)
+			mImagePack = new ImagePack(Constants.sMetaStorageDir);
+
+		return mImagePack;
+	}
+
+	public synchronized ChangeNotifier getChangeNotifier()
+	{
+		if (isTemporary())
+			throw new IllegalStateException("Temporary providers do not notify");
+
+		if (mChangeNotifier == null)
+			mChangeNotifier = new ChangeNotifier(getContext().getContentResolver());
+
+		return mChangeNotifier;
+	}
+
+	/**
+	 * Images staged by the mergers are published only once the merge has
+	 * committed, replacing the pack index in a single atomic step. Change
+	 * notifications collected by the mergers are likewise only delivered
+	 * after the commit.
+	 */
+	@Override
+	public void merge(SyncContext syncContext, AbstractSyncProvider diffs)
+	{
+		boolean merged = false;
+
+		try {
+			super.merge(syncContext, diffs);
+			merged = true;
+		} finally {
+			if (merged == false)
+			{
+				getImagePack().abort();
+				getChangeNotifier().discard();
+			}
+		}
+
+		try {
+			getImagePack().publish();
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to publish merged images", e);
+			getImagePack().abort();
+		}
+
+		getChangeNotifier().commit();
+	}
+
 	@Override
 	protected Iterable<? extends AbstractTableMerger> getMergers()
 	{
@@ -242,6 +490,31 @@ public class FiveProvider extends AbstractSyncProvider
 		return list;
 	}
 
+	/**
+	 * Picks a connection to service a query. With write-ahead logging the
+	 * query is handed to one of the reader connections so that it does not
+	 * wait for a sync merge holding the primary connection. Queries issued
+	 * from inside a transaction on this thread must observe its uncommitted
+	 * changes and so always use the primary connection.
+	 */
+	private SQLiteDatabase getReaderDatabase()
+	{
+		SQLiteDatabase db = mHelper.getReadableDatabase();
+
+		if (isTemporary() == true || db.isDbLockedByCurrentThread() == true)
+			return db;
+
+		synchronized (this) {
+			if (mWriteAheadLogging == false)
+				return db;
+
+			if (mReaders == null)
+				mReaders = new ReaderPool(db.getPath(), READER_POOL_SIZE);
+
+			return mReaders.acquire();
+		}
+	}
+
 	private static String getSecondToLastPathSegment(Uri uri)
 	{
 		List<String> segments = uri.getPathSegments();
@@ -315,27 +588,27 @@ public class FiveProvider extends AbstractSyncProvider
 		return modeBits;
 	}
 
-	public static File getArtistPhoto(long id, boolean temporary) throws FileNotFoundException
+	/**
+	 * Location where a sync instance stores a downloaded artist photo until
+	 * it is merged into the {@link ImagePack}.
+	 */
+	public static File getArtistPhoto(long id) throws FileNotFoundException
 	{
 		FileUtils.mkdirIfNecessary(Constants.sArtistPhotoDir);
-
-		if (temporary == true)
-			return new File(Constants.sArtistPhotoDir, id + ".tmp");
-		else
-			return new File(Constants.sArtistPhotoDir, String.valueOf(id));
+		return new File(Constants.sArtistPhotoDir, id + ".tmp");
 	}
 
-	public static File getAlbumArtwork(long id, boolean temporary) throws FileNotFoundException
+	public static File getAlbumArtwork(long id) throws FileNotFoundException
 	{
-		return getAlbumArtwork(id, URIPatternIds.ALBUM_ARTWORK, temporary);
+		return getAlbumArtwork(id, URIPatternIds.ALBUM_ARTWORK);
 	}
 
-	public static File getLargeAlbumArtwork(long id, boolean temporary) throws FileNotFoundException
+	public static File getLargeAlbumArtwork(long id) throws FileNotFoundException
 	{
-		return getAlbumArtwork(id, URIPatternIds.ALBUM_ARTWORK_BIG, temporary);
+		return getAlbumArtwork(id, URIPatternIds.ALBUM_ARTWORK_BIG);
 	}
 
-	private static File getAlbumArtwork(long id, URIPatternIds type, boolean temporary)
+	private static File getAlbumArtwork(long id, URIPatternIds type)
 		throws FileNotFoundException
 	{
 		FileUtils.mkdirIfNecessary(Constants.sAlbumArtworkDir);
@@ -347,16 +620,43 @@ public class FiveProvider extends AbstractSyncProvider
 		else
 			filename = id + "-big";
 
-		if (temporary == true)
-			return new File(Constants.sAlbumArtworkDir, filename + ".tmp");
-		else
-			return new File(Constants.sAlbumArtworkDir, filename);
+		return new File(Constants.sAlbumArtworkDir, filename + ".tmp");
+	}
+
+	/**
+	 * Removes images stored one per file by older versions. The directories
+	 * themselves are still used by sync instances for temporary files.
+	 */
+	private static void deleteLegacyImages()
+	{
+		File[] dirs = new File[] { Constants.sAlbumArtworkDir, Constants.sArtistPhotoDir };
+
+		for (File dir: dirs)
+		{
+			File[] files = dir.listFiles();
+			if (files == null)
+				continue;
+
+			for (File file: files)
+			{
+				if (file.getName().endsWith(".tmp") == false)
+					file.delete();
+			}
+		}
 	}
 
+	/**
+	 * Used by sync instances to receive downloaded images. Readers of the
+	 * main provider are served from the image pack by
+	 * {@link #openAssetFile}.
+	 */
 	@Override
 	public ParcelFileDescriptor openFile(Uri uri, String mode)
 	  throws FileNotFoundException
 	{
+		if (isTemporary() == false)
+			throw new FileNotFoundException("Images are only readable through openAssetFile: " + uri);
+
 		File file;
 
 		URIPatternIds type = URIPatternIds.get(sUriMatcher.match(uri));
@@ -366,12 +666,12 @@ public class FiveProvider extends AbstractSyncProvider
 		case ALBUM_ARTWORK:
 		case ALBUM_ARTWORK_BIG:
 			String albumId = uri.getPathSegments().get(3);
-			file = getAlbumArtwork(Long.parseLong(albumId), type, isTemporary());
+			file = getAlbumArtwork(Long.parseLong(albumId), type);
 			return ParcelFileDescriptor.open(file, stringModeToInt(uri, mode));
 
 		case ARTIST_PHOTO:
 			String artistId = getSecondToLastPathSegment(uri);
-			file = getArtistPhoto(Long.parseLong(artistId), isTemporary());
+			file = getArtistPhoto(Long.parseLong(artistId));
 			return ParcelFileDescriptor.open(file, stringModeToInt(uri, mode));
 
 		default:
@@ -379,6 +679,35 @@ public class FiveProvider extends AbstractSyncProvider
 		}
 	}
 
+	@Override
+	public AssetFileDescriptor openAssetFile(Uri uri, String mode)
+	  throws FileNotFoundException
+	{
+		if (isTemporary() == true)
+			return super.openAssetFile(uri, mode);
+
+		if ("r".equals(mode) == false)
+			throw new FileNotFoundException("Images are read-only: " + uri);
+
+		URIPatternIds type = URIPatternIds.get(sUriMatcher.match(uri));
+
+		switch (type)
+		{
+		case ALBUM_ARTWORK:
+		case ALBUM_ARTWORK_BIG:
+			long albumId = Long.parseLong(uri.getPathSegments().get(3));
+			return getImagePack().open(ImagePack.getAlbumArtworkKey(albumId,
+			  type == URIPatternIds.ALBUM_ARTWORK_BIG));
+
+		case ARTIST_PHOTO:
+			long artistId = Long.parseLong(getSecondToLastPathSegment(uri));
+			return getImagePack().open(ImagePack.getArtistPhotoKey(artistId));
+
+		default:
+			throw new IllegalArgumentException("Unknown URL " + uri);
+		}
+	}
+
 	@Override
 	public Cursor queryInternal(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder)
@@ -438,7 +767,7 @@ public class FiveProvider extends AbstractSyncProvider
 			qb.appendWhere("artist_id=" + getSecondToLastPathSegment(uri));
 
 			if (sortOrder == null)
-				sortOrder = "title ASC";
+				sortOrder = Five.Music.Songs.TITLE_KEY + " ASC";
 
 			break;
 
@@ -456,7 +785,7 @@ public class FiveProvider extends AbstractSyncProvider
 			}
 
 			if (sortOrder == null)
-				sortOrder = "track_num ASC, title ASC";
+				sortOrder = "track_num ASC, " + Five.Music.Songs.TITLE_KEY + " ASC";
 
 			break;
 
@@ -466,6 +795,14 @@ public class FiveProvider extends AbstractSyncProvider
 			if (type == URIPatternIds.ARTIST)
 				qb.appendWhere("_id=" + uri.getLastPathSegment());
 			qb.setProjectionMap(sArtistsMap);
+
+			if (type == URIPatternIds.ARTISTS && isSectionsQuery(uri))
+			{
+				qb.setProjectionMap(null);
+				projection = getSectionsProjection(Five.Music.Artists.NAME_SECTION);
+				groupBy = Five.Music.Artists.NAME_SECTION;
+				sortOrder = "MIN(" + Five.Music.Artists.NAME_KEY + ")";
+			}
 			break;
 
 		case ALBUM:
@@ -487,6 +824,14 @@ public class FiveProvider extends AbstractSyncProvider
 			}
 
 			qb.setProjectionMap(sAlbumsMap);
+
+			if (type != URIPatternIds.ALBUM && isSectionsQuery(uri))
+			{
+				qb.setProjectionMap(null);
+				projection = getSectionsProjection("a." + Five.Music.Albums.NAME_SECTION);
+				groupBy = "a." + Five.Music.Albums.NAME_SECTION;
+				sortOrder = "MIN(a." + Five.Music.Albums.NAME_KEY + ")";
+			}
 			break;
 
 		case ALBUMS_WITH_ARTIST:
@@ -525,11 +870,23 @@ public class FiveProvider extends AbstractSyncProvider
 			qb.setTables(Five.Music.PlaylistSongs.SQL.DELETED_TABLE);
 			break;
 
+		case HISTORY:
+			qb.setTables(Five.Music.History.SQL.TABLE);
+
+			if (sortOrder == null)
+				sortOrder = Five.Music.History.TIMESTAMP + " DESC";
+
+			break;
+
+		case PINS:
+			qb.setTables(Five.Music.Pins.SQL.TABLE);
+			break;
+
 		default:
 			throw new IllegalArgumentException("Unknown URI: " + uri);
 		}
 
-		SQLiteDatabase db = mHelper.getReadableDatabase();
+		SQLiteDatabase db = getReaderDatabase();
 		Cursor c = qb.query(db, projection, selection, selectionArgs, groupBy, null, sortOrder);
 		if (isTemporary() == false)
 			c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -537,6 +894,19 @@ public class FiveProvider extends AbstractSyncProvider
 		return c;
 	}
 
+	private static boolean isSectionsQuery(Uri uri)
+	{
+		return uri.getQueryParameter(Five.SECTIONS) != null;
+	}
+
+	private static String[] getSectionsProjection(String sectionColumn)
+	{
+		return new String[] {
+			sectionColumn + " AS " + Five.SECTION,
+			"COUNT(*) AS " + Five.SECTION_COUNT,
+		};
+	}
+
 	/*-***********************************************************************/
 
 	private int updateSong(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v,
@@ -558,6 +928,9 @@ public class FiveProvider extends AbstractSyncProvider
 				throw new IllegalArgumentException();
 		}
 
+		if (v.containsKey(Five.Music.Songs.TITLE))
+			putSortKeys(v, Five.Music.Songs.TITLE, Five.Music.Songs.TITLE_KEY, null);
+
 		int ret = db.update(Five.Music.Songs.SQL.TABLE, v, custom, selArgs);
 
 		return ret;
@@ -570,6 +943,13 @@ public class FiveProvider extends AbstractSyncProvider
 
 		custom = extendWhere(sel, Five.Music.Albums._ID + '=' + uri.getLastPathSegment());
 
+		if (v.containsKey(Five.Music.Albums.NAME))
+		{
+			adjustNameWithPrefix(v);
+			putSortKeys(v, Five.Music.Albums.NAME, Five.Music.Albums.NAME_KEY,
+			  Five.Music.Albums.NAME_SECTION);
+		}
+
 		int ret = db.update(Five.Music.Albums.SQL.TABLE, v, custom, selArgs);
 
 		return ret;
@@ -582,6 +962,13 @@ public class FiveProvider extends AbstractSyncProvider
 
 		custom = extendWhere(sel, Five.Music.Artists._ID + '=' + uri.getLastPathSegment());
 
+		if (v.containsKey(Five.Music.Artists.NAME))
+		{
+			adjustNameWithPrefix(v);
+			putSortKeys(v, Five.Music.Artists.NAME, Five.Music.Artists.NAME_KEY,
+			  Five.Music.Artists.NAME_SECTION);
+		}
+
 		int ret = db.update(Five.Music.Artists.SQL.TABLE, v, custom, selArgs);
 
 		return ret;
@@ -599,6 +986,46 @@ public class FiveProvider extends AbstractSyncProvider
 		return ret;
 	}
 
+	private int updatePlaylistSong(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v,
+	  String sel, String[] selArgs)
+	{
+		String custom;
+
+		switch (type)
+		{
+			case PLAYLIST_SONG:
+				custom = extendWhere(sel, Five.Music.PlaylistSongs._ID + '=' + uri.getLastPathSegment());
+				break;
+
+			case PLAYLIST_SONGS:
+				custom = sel;
+				break;
+
+			default:
+				throw new IllegalArgumentException();
+		}
+
+		/* Moving an entry within its playlist: compute a position between
+		 * the new neighbours and rewrite only this row. */
+		if (v.containsKey(Five.Music.PlaylistSongs.INSERT_BEFORE) == true)
+		{
+			if (type != URIPatternIds.PLAYLIST_SONG)
+				throw new IllegalArgumentException("INSERT_BEFORE requires a single playlist entry");
+
+			long id = ContentUris.parseId(uri);
+			long playlistId = DatabaseUtils.longForQuery(db, "SELECT " +
+			  Five.Music.PlaylistSongs.PLAYLIST_ID + " FROM " +
+			  Five.Music.PlaylistSongs.SQL.TABLE + " WHERE " +
+			  Five.Music.PlaylistSongs._ID + " = " + id, null);
+
+			v.put(Five.Music.PlaylistSongs.POSITION, getPositionBefore(db,
+			  playlistId, v.getAsLong(Five.Music.PlaylistSongs.INSERT_BEFORE), id));
+			v.remove(Five.Music.PlaylistSongs.INSERT_BEFORE);
+		}
+
+		return db.update(Five.Music.PlaylistSongs.SQL.TABLE, v, custom, selArgs);
+	}
+
 	private int updateSource(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v,
 	  String sel, String[] selArgs)
 	{
@@ -614,17 +1041,28 @@ public class FiveProvider extends AbstractSyncProvider
 		return ret;
 	}
 
-	private void updateCount(SQLiteDatabase db, String updateSQL,
-	  String countsSQL)
+	/**
+	 * Brings a count column up to date, touching only rows whose count
+	 * actually differs.
+	 *
+	 * @param countsSQL
+	 *            Query returning _id and count for every id with a non-zero
+	 *            count.
+	 */
+	private void updateCount(SQLiteDatabase db, Uri tableUri, String table,
+	  String column, String countsSQL)
 	{
 		db.beginTransaction();
 
 		SQLiteStatement updateStmt = null;
 
 		try {
-			updateStmt = db.compileStatement(updateSQL);
+			updateStmt = db.compileStatement("UPDATE " + table + " SET " +
+			  column + " = ? WHERE _id = ?");
 
-			Cursor counts = db.rawQuery(countsSQL, null);
+			Cursor counts = db.rawQuery("SELECT t._id, IFNULL(c.count, 0) FROM " +
+			  table + " t LEFT JOIN (" + countsSQL + ") c ON c._id = t._id " +
+			  "WHERE t." + column + " IS NULL OR t." + column + " != IFNULL(c.count, 0)", null);
 
 			try {
 				while (counts.moveToNext() == true)
@@ -636,6 +1074,9 @@ public class FiveProvider extends AbstractSyncProvider
 					updateStmt.bindLong(2, _id);
 					updateStmt.execute();
 				}
+
+				if (counts.getCount() > 0 && isTemporary() == false)
+					getChangeNotifier().tableChanged(tableUri);
 			} finally {
 				counts.close();
 			}
@@ -655,14 +1096,18 @@ public class FiveProvider extends AbstractSyncProvider
 		db.beginTransaction();
 
 		try {
-			updateCount(db, "UPDATE music_artists SET num_songs = ? WHERE _id = ?",
-			  "SELECT artist_id, COUNT(*) FROM music_songs GROUP BY artist_id");
-			updateCount(db, "UPDATE music_artists SET num_albums = ? WHERE _id = ?",
-			  "SELECT artist_id, COUNT(*) FROM (SELECT artist_id FROM music_songs GROUP BY artist_id, album_id) GROUP BY artist_id");
-			updateCount(db, "UPDATE music_albums SET num_songs = ? WHERE _id = ?",
-			  "SELECT album_id, COUNT(*) FROM music_songs GROUP BY album_id");
-			updateCount(db, "UPDATE music_playlists SET num_songs = ? WHERE _id = ?",
-			  "SELECT playlist_id, COUNT(*) FROM music_playlist_songs GROUP BY playlist_id");
+			updateCount(db, Five.Music.Artists.CONTENT_URI, "music_artists", "num_songs",
+			  "SELECT artist_id AS _id, COUNT(*) AS count FROM music_songs GROUP BY artist_id");
+			updateCount(db, Five.Music.Artists.CONTENT_URI, "music_artists", "num_albums",
+			  "SELECT artist_id AS _id, COUNT(*) AS count FROM (SELECT artist_id FROM music_songs GROUP BY artist_id, album_id) GROUP BY artist_id");
+			updateCount(db, Five.Music.Albums.CONTENT_URI, "music_albums", "num_songs",
+			  "SELECT album_id AS _id, COUNT(*) AS count FROM music_songs GROUP BY album_id");
+			updateCount(db, Five.Music.Playlists.CONTENT_URI, "music_playlists", "num_songs",
+			  "SELECT playlist_id AS _id, COUNT(*) AS count FROM music_playlist_songs GROUP BY playlist_id");
+
+			/* Songs synced into a pinned album, artist or playlist are pinned too. */
+			if (updatePinned(db) > 0 && isTemporary() == false)
+				getChangeNotifier().tableChanged(Five.Music.Songs.CONTENT_URI);
 
 			db.setTransactionSuccessful();
 		} finally {
@@ -693,6 +1138,9 @@ public class FiveProvider extends AbstractSyncProvider
 			return updateArtist(db, uri, type, values, selection, selectionArgs);
 		case PLAYLIST:
 			return updatePlaylist(db, uri, type, values, selection, selectionArgs);
+		case PLAYLIST_SONG:
+		case PLAYLIST_SONGS:
+			return updatePlaylistSong(db, uri, type, values, selection, selectionArgs);
 		case SOURCE:
 			return updateSource(db, uri, type, values, selection, selectionArgs);
 		case ADJUST_COUNTS:
@@ -743,6 +1191,25 @@ public class FiveProvider extends AbstractSyncProvider
 		return false;
 	}
 
+	/**
+	 * Stores the collation key (and optionally the alphabet section) of the
+	 * named column so that lists can sort and index on plain columns instead
+	 * of collating every row at query time. Temporary sync databases are
+	 * never queried for display, so they skip the work.
+	 */
+	private void putSortKeys(ContentValues v, String nameColumn, String keyColumn,
+	  String sectionColumn)
+	{
+		if (isTemporary() == true)
+			return;
+
+		String name = v.getAsString(nameColumn);
+
+		v.put(keyColumn, SortKeys.getSortKey(name));
+		if (sectionColumn != null)
+			v.put(sectionColumn, SortKeys.getSection(name));
+	}
+
 	private Uri insertArtist(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v)
 	{
 		if (v.containsKey(Five.Music.Artists.NAME) == false)
@@ -755,6 +1222,8 @@ public class FiveProvider extends AbstractSyncProvider
 			v.put(Five.Music.Artists.NUM_SONGS, 0);
 
 		adjustNameWithPrefix(v);
+		putSortKeys(v, Five.Music.Artists.NAME, Five.Music.Artists.NAME_KEY,
+		  Five.Music.Artists.NAME_SECTION);
 
 		long id = mArtistInserter.insert(v);
 
@@ -777,6 +1246,8 @@ public class FiveProvider extends AbstractSyncProvider
 			v.put(Five.Music.Albums.NUM_SONGS, 0);
 
 		adjustNameWithPrefix(v);
+		putSortKeys(v, Five.Music.Albums.NAME, Five.Music.Albums.NAME_KEY,
+		  Five.Music.Albums.NAME_SECTION);
 
 		long id = mAlbumInserter.insert(v);
 
@@ -793,6 +1264,9 @@ public class FiveProvider extends AbstractSyncProvider
 		if (v.containsKey(Five.Music.Albums.ARTIST_ID) == false)
 			throw new IllegalArgumentException("ARTIST_ID cannot be NULL");
 
+		if (v.containsKey(Five.Music.Songs.TITLE))
+			putSortKeys(v, Five.Music.Songs.TITLE, Five.Music.Songs.TITLE_KEY, null);
+
 		long id = mSongInserter.insert(v);
 
 		if (id == -1)
@@ -823,12 +1297,128 @@ public class FiveProvider extends AbstractSyncProvider
 		return playlistUri;
 	}
 
-	private Uri insertPlaylistSongs(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v)
+	/**
+	 * Reads a single, possibly NULL, integer from the first row of a query.
+	 */
+	private static Long longForQueryOrNull(SQLiteDatabase db, String sql,
+	  String[] args)
 	{
-		/* TODO: Maybe lack of POSITION means append? */
-		if (v.containsKey(Five.Music.PlaylistSongs.POSITION) == false)
-			throw new IllegalArgumentException("POSITION cannot be NULL");
+		Cursor c = db.rawQuery(sql, args);
+		try {
+			if (c.moveToFirst() == false || c.isNull(0) == true)
+				return null;
+			return c.getLong(0);
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Renumber every entry in a playlist so that neighbours are once again
+	 * {@link Five.Music.PlaylistSongs#POSITION_GAP} apart. This is the only
+	 * operation which touches more than the affected row and is needed only
+	 * after many inserts have been made between the same two entries.
+	 */
+	private void rebalancePlaylist(SQLiteDatabase db, long playlistId)
+	{
+		if (Constants.DEBUG)
+			Log.d(TAG, "Rebalancing positions in playlist " + playlistId);
+
+		db.beginTransaction();
+
+		SQLiteStatement updateStmt = null;
+
+		try {
+			updateStmt = db.compileStatement("UPDATE " + Five.Music.PlaylistSongs.SQL.TABLE +
+			  " SET " + Five.Music.PlaylistSongs.POSITION + " = ? WHERE " +
+			  Five.Music.PlaylistSongs._ID + " = ?");
+
+			Cursor c = db.query(Five.Music.PlaylistSongs.SQL.TABLE,
+			  new String[] { Five.Music.PlaylistSongs._ID },
+			  Five.Music.PlaylistSongs.PLAYLIST_ID + " = " + playlistId,
+			  null, null, null, Five.Music.PlaylistSongs.POSITION + " ASC");
+
+			try {
+				long position = 0;
+				while (c.moveToNext() == true)
+				{
+					position += Five.Music.PlaylistSongs.POSITION_GAP;
+					updateStmt.bindLong(1, position);
+					updateStmt.bindLong(2, c.getLong(0));
+					updateStmt.execute();
+				}
+			} finally {
+				c.close();
+			}
+
+			db.setTransactionSuccessful();
+		} finally {
+			if (updateStmt != null)
+				updateStmt.close();
+
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Computes a POSITION for an entry placed immediately before
+	 * <code>beforeId</code>, or at the end of the playlist if
+	 * <code>beforeId</code> is null. Only the neighbouring entries are
+	 * consulted (through the playlist_id, position index), unless no room is
+	 * left between them in which case the playlist is rebalanced first.
+	 *
+	 * @param excludeId
+	 *            Entry to ignore when searching for neighbours, used when
+	 *            moving an existing entry; -1 otherwise.
+	 */
+	private long getPositionBefore(SQLiteDatabase db, long playlistId,
+	  Long beforeId, long excludeId)
+	{
+		String table = Five.Music.PlaylistSongs.SQL.TABLE;
+		String where = Five.Music.PlaylistSongs.PLAYLIST_ID + " = " + playlistId +
+		  " AND " + Five.Music.PlaylistSongs._ID + " != " + excludeId;
+
+		if (beforeId == null)
+		{
+			Long last = longForQueryOrNull(db, "SELECT MAX(" +
+			  Five.Music.PlaylistSongs.POSITION + ") FROM " + table +
+			  " WHERE " + where, null);
+
+			if (last == null)
+				return Five.Music.PlaylistSongs.POSITION_GAP;
+			else
+				return last + Five.Music.PlaylistSongs.POSITION_GAP;
+		}
+
+		for (int attempt = 0; attempt < 2; attempt++)
+		{
+			Long next = longForQueryOrNull(db, "SELECT " +
+			  Five.Music.PlaylistSongs.POSITION + " FROM " + table +
+			  " WHERE " + where + " AND " + Five.Music.PlaylistSongs._ID + " = " + beforeId,
+			  null);
+
+			if (next == null)
+				throw new IllegalArgumentException("No entry " + beforeId +
+				  " in playlist " + playlistId);
+
+			Long prev = longForQueryOrNull(db, "SELECT MAX(" +
+			  Five.Music.PlaylistSongs.POSITION + ") FROM " + table +
+			  " WHERE " + where + " AND " + Five.Music.PlaylistSongs.POSITION + " < " + next,
+			  null);
+
+			if (prev == null)
+				return next - Five.Music.PlaylistSongs.POSITION_GAP;
+			else if (next - prev > 1)
+				return prev + (next - prev) / 2;
+
+			rebalancePlaylist(db, playlistId);
+		}
 
+		throw new IllegalStateException("Unable to find room in playlist " + playlistId);
+	}
+
+	private Uri insertPlaylistSongs(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v)
+	{
 		if (v.containsKey(Five.Music.PlaylistSongs.SONG_ID) == false)
 			throw new IllegalArgumentException("SONG_ID cannot be NULL");
 
@@ -841,16 +1431,24 @@ public class FiveProvider extends AbstractSyncProvider
 		if (v.containsKey(Five.Music.PlaylistSongs.PLAYLIST_ID) == false)
 			throw new IllegalArgumentException("PLAYLIST_ID cannot be NULL");
 
-		/* TODO: Check that the inserted POSITION doesn't require that we
-		 * reposition other songs. */
-		db.insert(Five.Music.PlaylistSongs.SQL.TABLE,
+		/* Positions are sparse, so placing the new entry never requires
+		 * repositioning the songs around it. */
+		if (v.containsKey(Five.Music.PlaylistSongs.POSITION) == false)
+		{
+			v.put(Five.Music.PlaylistSongs.POSITION, getPositionBefore(db,
+			  v.getAsLong(Five.Music.PlaylistSongs.PLAYLIST_ID),
+			  v.getAsLong(Five.Music.PlaylistSongs.INSERT_BEFORE), -1));
+		}
+
+		v.remove(Five.Music.PlaylistSongs.INSERT_BEFORE);
+
+		long id = db.insert(Five.Music.PlaylistSongs.SQL.TABLE,
 		  Five.Music.PlaylistSongs.PLAYLIST_ID, v);
 
-		Uri playlistSongUri = uri.buildUpon()
-		  .appendEncodedPath(v.getAsString(Five.Music.PlaylistSongs.POSITION))
-		  .build();
+		if (id == -1)
+			return null;
 
-		return playlistSongUri;
+		return ContentUris.withAppendedId(Five.Music.PlaylistSongs.CONTENT_URI, id);
 	}
 
 	private Uri insertDeletedItem(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v)
@@ -875,6 +1473,96 @@ public class FiveProvider extends AbstractSyncProvider
 		return ContentUris.withAppendedId(uri, id);
 	}
 
+	private Uri insertHistory(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v)
+	{
+		if (v.containsKey(Five.Music.History.SONG_ID) == false)
+			throw new IllegalArgumentException("SONG_ID cannot be NULL");
+
+		if (v.containsKey(Five.Music.History.EVENT) == false)
+			throw new IllegalArgumentException("EVENT cannot be NULL");
+
+		if (v.containsKey(Five.Music.History.TIMESTAMP) == false)
+			v.put(Five.Music.History.TIMESTAMP, System.currentTimeMillis());
+
+		long id = db.insert(Five.Music.History.SQL.TABLE,
+		  Five.Music.History.SONG_ID, v);
+
+		if (id == -1)
+			return null;
+
+		/* Keep the song's own play statistics in step with the history. */
+		if (v.getAsInteger(Five.Music.History.EVENT) == Five.Music.History.EVENT_PLAY)
+		{
+			db.execSQL("UPDATE " + Five.Music.Songs.SQL.TABLE + " SET " +
+			  Five.Music.Songs.PLAY_COUNT + " = " + Five.Music.Songs.PLAY_COUNT + " + 1, " +
+			  Five.Music.LAST_PLAYED + " = ? WHERE " + Five.Music.Songs._ID + " = ?",
+			  new Object[] { v.getAsLong(Five.Music.History.TIMESTAMP),
+			    v.getAsLong(Five.Music.History.SONG_ID) });
+		}
+
+		return ContentUris.withAppendedId(Five.Music.History.CONTENT_URI, id);
+	}
+
+	/**
+	 * Brings {@link Five.Music.Songs#PINNED} into line with the pinned albums,
+	 * artists and playlists.
+	 *
+	 * @return
+	 *   Number of songs pinned or unpinned.
+	 */
+	private static int updatePinned(SQLiteDatabase db)
+	{
+		String pinned = "(" +
+		  "IFNULL(" + Five.Music.Songs.ALBUM_ID + ", -1) IN (" + getPinnedIds(Five.Music.Pins.KIND_ALBUM) + ") OR " +
+		  Five.Music.Songs.ARTIST_ID + " IN (" + getPinnedIds(Five.Music.Pins.KIND_ARTIST) + ") OR " +
+		  Five.Music.Songs._ID + " IN (SELECT " + Five.Music.PlaylistSongs.SONG_ID +
+		    " FROM " + Five.Music.PlaylistSongs.SQL.TABLE + " WHERE " +
+		    Five.Music.PlaylistSongs.PLAYLIST_ID + " IN (" +
+		    getPinnedIds(Five.Music.Pins.KIND_PLAYLIST) + ")))";
+
+		db.execSQL("UPDATE " + Five.Music.Songs.SQL.TABLE + " SET " +
+		  Five.Music.Songs.PINNED + " = " + pinned + " WHERE " +
+		  Five.Music.Songs.PINNED + " != " + pinned);
+
+		return (int)DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+	}
+
+	private static String getPinnedIds(int kind)
+	{
+		return "SELECT " + Five.Music.Pins.ITEM_ID + " FROM " +
+		  Five.Music.Pins.SQL.TABLE + " WHERE " + Five.Music.Pins.KIND + " = " + kind;
+	}
+
+	private Uri insertPin(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v)
+	{
+		if (v.containsKey(Five.Music.Pins.KIND) == false)
+			throw new IllegalArgumentException("KIND cannot be NULL");
+
+		if (v.containsKey(Five.Music.Pins.ITEM_ID) == false)
+			throw new IllegalArgumentException("ITEM_ID cannot be NULL");
+
+		long id;
+
+		db.beginTransaction();
+
+		try {
+			id = db.insert(Five.Music.Pins.SQL.TABLE, Five.Music.Pins.KIND, v);
+
+			if (id == -1)
+				return null;
+
+			updatePinned(db);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		if (isTemporary() == false)
+			getContext().getContentResolver().notifyChange(Five.Music.Songs.CONTENT_URI, null);
+
+		return ContentUris.withAppendedId(Five.Music.Pins.CONTENT_URI, id);
+	}
+
 	@Override
 	public Uri insertInternal(Uri uri, ContentValues values)
 	{
@@ -905,6 +1593,10 @@ public class FiveProvider extends AbstractSyncProvider
 		case DELETED_PLAYLIST:
 		case DELETED_PLAYLIST_SONG:
 			return insertDeletedItem(db, uri, type, values);
+		case HISTORY:
+			return insertHistory(db, uri, type, values);
+		case PINS:
+			return insertPin(db, uri, type, values);
 		}
 
 		throw new IllegalArgumentException("Cannot insert URI: " + uri);
@@ -993,8 +1685,8 @@ public class FiveProvider extends AbstractSyncProvider
 
 		try {
 			if (count > 0)
-				getArtistPhoto(artistId, false).delete();
-		} catch (FileNotFoundException e) {
+				getImagePack().remove(ImagePack.getArtistPhotoKey(artistId));
+		} catch (IOException e) {
 			if (Constants.DEBUG)
 				Log.d(TAG, "Unexpected sdcard error: " + e.toString());
 		}
@@ -1015,10 +1707,10 @@ public class FiveProvider extends AbstractSyncProvider
 		try {
 			if (count > 0)
 			{
-				getAlbumArtwork(albumId, false).delete();
-				getLargeAlbumArtwork(albumId, false).delete();
+				getImagePack().remove(ImagePack.getAlbumArtworkKey(albumId, false));
+				getImagePack().remove(ImagePack.getAlbumArtworkKey(albumId, true));
 			}
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			if (Constants.DEBUG)
 				Log.d(TAG, "Unexpected sdcard error: " + e.toString());
 		}
@@ -1049,7 +1741,19 @@ public class FiveProvider extends AbstractSyncProvider
 		int count = db.delete(Five.Music.Songs.SQL.TABLE, queryForSongId, null);
 
 		if (count > 0)
+		{
+			db.delete(Five.Music.History.SQL.TABLE,
+			  Five.Music.History.SONG_ID + " = " + songId, null);
+		}
+
+		/* Cached content may be shared with other songs; keep it for them. */
+		if (count > 0 && cachePath != null &&
+		  DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+		    Five.Music.Songs.SQL.TABLE + " WHERE " + Five.Music.Songs.CACHED_PATH +
+		    " = ?", new String[] { cachePath }) == 0)
+		{
 			new File(cachePath).delete();
+		}
 
 		return count;
 	}
@@ -1070,6 +1774,30 @@ public class FiveProvider extends AbstractSyncProvider
 				Five.Music.PlaylistSongs._ID + " = " + ContentUris.parseId(uri), null);
 	}
 
+	private int deletePins(SQLiteDatabase db, Uri uri, URIPatternIds type,
+			String selection, String[] selectionArgs)
+	{
+		int count;
+
+		db.beginTransaction();
+
+		try {
+			count = db.delete(Five.Music.Pins.SQL.TABLE, selection, selectionArgs);
+
+			if (count > 0)
+				updatePinned(db);
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		if (count > 0 && isTemporary() == false)
+			getContext().getContentResolver().notifyChange(Five.Music.Songs.CONTENT_URI, null);
+
+		return count;
+	}
+
 	@Override
 	public int deleteInternal(Uri uri, String selection, String[] selectionArgs)
 	{
@@ -1094,6 +1822,10 @@ public class FiveProvider extends AbstractSyncProvider
 			return deletePlaylist(db, uri, type, selection, selectionArgs);
 		case PLAYLIST_SONG:
 			return deletePlaylistSong(db, uri, type, selection, selectionArgs);
+		case HISTORY:
+			return db.delete(Five.Music.History.SQL.TABLE, selection, selectionArgs);
+		case PINS:
+			return deletePins(db, uri, type, selection, selectionArgs);
 		default:
 			throw new IllegalArgumentException("Cannot delete URI: " + uri);
 		}
@@ -1125,6 +1857,10 @@ public class FiveProvider extends AbstractSyncProvider
 			return Five.Music.Songs.CONTENT_TYPE;
 		case SONG:
 			return Five.Music.Songs.CONTENT_ITEM_TYPE;
+		case HISTORY:
+			return Five.Music.History.CONTENT_TYPE;
+		case PINS:
+			return Five.Music.Pins.CONTENT_TYPE;
 		default:
 			throw new IllegalArgumentException("Unknown URI: " + uri);
 		}
@@ -1170,6 +1906,10 @@ public class FiveProvider extends AbstractSyncProvider
 
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/adjust_counts", URIPatternIds.ADJUST_COUNTS.ordinal());
 
+		sUriMatcher.addURI(Five.AUTHORITY, "media/music/history", URIPatternIds.HISTORY.ordinal());
+
+		sUriMatcher.addURI(Five.AUTHORITY, "media/music/pins", URIPatternIds.PINS.ordinal());
+
 		sArtistsMap = new HashMap<String, String>();
 		sArtistsMap.put(Five.Music.Artists.MBID, Five.Music.Artists.MBID);
 		sArtistsMap.put(Five.Music.Artists._ID, Five.Music.Artists._ID);
@@ -1179,6 +1919,8 @@ public class FiveProvider extends AbstractSyncProvider
 		sArtistsMap.put(Five.Music.Artists.GENRE, Five.Music.Artists.GENRE);
 		sArtistsMap.put(Five.Music.Artists.NAME, Five.Music.Artists.NAME);
 		sArtistsMap.put(Five.Music.Artists.NAME_PREFIX, Five.Music.Artists.NAME_PREFIX);
+		sArtistsMap.put(Five.Music.Artists.NAME_KEY, Five.Music.Artists.NAME_KEY);
+		sArtistsMap.put(Five.Music.Artists.NAME_SECTION, Five.Music.Artists.NAME_SECTION);
 		sArtistsMap.put(Five.Music.Artists.FULL_NAME, "IFNULL(" + Five.Music.Artists.NAME_PREFIX + ", \"\") || " + Five.Music.Artists.NAME + " AS " + Five.Music.Artists.FULL_NAME);
 		sArtistsMap.put(Five.Music.Artists.PHOTO, Five.Music.Artists.PHOTO);
 		sArtistsMap.put(Five.Music.Artists.NUM_ALBUMS, Five.Music.Artists.NUM_ALBUMS);
@@ -1196,6 +1938,8 @@ public class FiveProvider extends AbstractSyncProvider
 		sAlbumsMap.put(Five.Music.Albums.DISCOVERY_DATE, "a." + Five.Music.Albums.DISCOVERY_DATE + " AS " + Five.Music.Albums.DISCOVERY_DATE);
 		sAlbumsMap.put(Five.Music.Albums.NAME, "a." + Five.Music.Albums.NAME + " AS " + Five.Music.Albums.NAME);
 		sAlbumsMap.put(Five.Music.Albums.NAME_PREFIX, "a." + Five.Music.Albums.NAME_PREFIX + " AS " + Five.Music.Albums.NAME_PREFIX);
+		sAlbumsMap.put(Five.Music.Albums.NAME_KEY, "a." + Five.Music.Albums.NAME_KEY + " AS " + Five.Music.Albums.NAME_KEY);
+		sAlbumsMap.put(Five.Music.Albums.NAME_SECTION, "a." + Five.Music.Albums.NAME_SECTION + " AS " + Five.Music.Albums.NAME_SECTION);
 		sAlbumsMap.put(Five.Music.Albums.FULL_NAME, "IFNULL(a." + Five.Music.Albums.NAME_PREFIX + ", \"\") || a." + Five.Music.Albums.NAME + " AS " + Five.Music.Albums.FULL_NAME);
 		sAlbumsMap.put(Five.Music.Albums.RELEASE_DATE, "a." + Five.Music.Albums.RELEASE_DATE + " AS " + Five.Music.Albums.RELEASE_DATE);
 		sAlbumsMap.put(Five.Music.Albums.NUM_SONGS, "a." + Five.Music.Albums.NUM_SONGS + " AS " + Five.Music.Albums.NUM_SONGS);
@@ -1206,6 +1950,7 @@ public class FiveProvider extends AbstractSyncProvider
 		sSongsMap.put(Five.Music.Songs._SYNC_TIME, "s." + Five.Music.Songs._SYNC_TIME + " AS " + Five.Music.Songs._SYNC_TIME);
 		sSongsMap.put(Five.Music.Songs.MBID, "s." + Five.Music.Songs.MBID + " AS " + Five.Music.Songs.MBID);
 		sSongsMap.put(Five.Music.Songs.TITLE, "s." + Five.Music.Songs.TITLE + " AS " + Five.Music.Songs.TITLE);
+		sSongsMap.put(Five.Music.Songs.TITLE_KEY, "s." + Five.Music.Songs.TITLE_KEY + " AS " + Five.Music.Songs.TITLE_KEY);
 		sSongsMap.put(Five.Music.Songs.ALBUM, "s." + Five.Music.Songs.ALBUM + " AS " + Five.Music.Songs.ALBUM);
 		sSongsMap.put(Five.Music.Songs.ALBUM_ID, "s." + Five.Music.Songs.ALBUM_ID + " AS " + Five.Music.Songs.ALBUM_ID);
 		sSongsMap.put(Five.Music.Songs.ARTIST, "s." + Five.Music.Songs.ARTIST + " AS " + Five.Music.Songs.ARTIST);
@@ -1214,6 +1959,7 @@ public class FiveProvider extends AbstractSyncProvider
 		sSongsMap.put(Five.Music.Songs.TRACK, "s." + Five.Music.Songs.TRACK + " AS " + Five.Music.Songs.TRACK);
 		sSongsMap.put(Five.Music.Songs.SET, "s." + Five.Music.Songs.SET + " AS " + Five.Music.Songs.SET);
 		sSongsMap.put(Five.Music.Songs.GENRE, "s." + Five.Music.Songs.GENRE + " AS " + Five.Music.Songs.GENRE);
+		sSongsMap.put(Five.Music.Songs.PINNED, "s." + Five.Music.Songs.PINNED + " AS " + Five.Music.Songs.PINNED);
 		sSongsMap.put(Five.Music.Songs.DISCOVERY_DATE, "s." + Five.Music.Songs.DISCOVERY_DATE + " AS " + Five.Music.Songs.DISCOVERY_DATE);
 	}
 }
@@ -49,7 +49,9 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.UnknownFieldSet;
 
 public class FiveSyncAdapter extends AbstractSyncAdapter
 {
@@ -60,6 +62,12 @@ public class FiveSyncAdapter extends AbstractSyncAdapter
 	private static final String LAST_MODIFIED_HEADER = "X-Last-Modified";
 	private static final String MODIFIED_SINCE_HEADER = "X-Modified-Since";
 
+	/**
+	 * Song record field holding a hash of the content, from servers which
+	 * provide one. Not yet part of the generated messages.
+	 */
+	private static final int SONG_CONTENT_HASH_FIELD = 12;
+
 	private static final String FEED_ARTISTS = "artists";
 	private static final String FEED_ALBUMS = "albums";
 	private static final String FEED_SONGS = "songs";
@@ -605,8 +613,25 @@ public class FiveSyncAdapter extends AbstractSyncAdapter
 			values.put(Five.Music.Songs.TRACK, song.getTrack());
 			values.put(Five.Music.Songs.MIME_TYPE, song.getMimeType());
 			values.put(Five.Music.Songs.SIZE, song.getFilesize());
+			values.put(Five.Music.Songs.CONTENT_HASH, getContentHash(song));
 			serverDiffs.insert(Five.Music.Songs.CONTENT_URI, values);
 		}
+
+		/**
+		 * @return Hash of the song's content, or null if the server didn't
+		 *         send one.
+		 */
+		private String getContentHash(Protos.Song song)
+		{
+			UnknownFieldSet.Field field =
+			  song.getUnknownFields().getField(SONG_CONTENT_HASH_FIELD);
+
+			if (field.getLengthDelimitedList().isEmpty() == true)
+				return null;
+
+			ByteString hash = field.getLengthDelimitedList().get(0);
+			return hash.toStringUtf8();
+		}
 	}
 
 	private class PlaylistRecordDispatcher extends RecordDispatcher
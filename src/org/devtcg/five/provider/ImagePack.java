@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.devtcg.five.Constants;
+import org.devtcg.five.util.FileUtils;
+import org.devtcg.util.IOUtilities;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Append-only pack of small image files (album artwork and artist photos)
+ * with a separate index mapping each image to an offset and length within
+ * the pack. Images are served as {@link AssetFileDescriptor} slices of the
+ * one pack file instead of as thousands of individual files on the sdcard.
+ * <p>
+ * Writers stage new images by appending them to the pack; nothing becomes
+ * visible to readers until {@link #publish()} atomically replaces the index.
+ * Replaced and removed images leave dead space behind which is reclaimed by
+ * rewriting the pack once it is mostly garbage.
+ */
+public final class ImagePack
+{
+	private static final String TAG = "ImagePack";
+
+	private static final int INDEX_VERSION = 1;
+	private static final String INDEX_NAME = "images.idx";
+	private static final String PACK_PREFIX = "images-";
+	private static final String PACK_SUFFIX = ".pack";
+
+	/** Compact when at least this much of the pack is dead space... */
+	private static final float COMPACT_WASTE_RATIO = 0.5f;
+
+	/** ...and the dead space amounts to at least this many bytes. */
+	private static final long COMPACT_MIN_WASTE = 1024 * 1024;
+
+	private final File mDir;
+	private final File mIndexFile;
+
+	private boolean mLoaded;
+	private int mGeneration;
+
+	/** Published index, the only one readers ever see. */
+	private HashMap<String, Entry> mIndex;
+
+	/** Copy of the index being modified by a merge; null if none. */
+	private HashMap<String, Entry> mPending;
+
+	/** Length of the pack described by the published index. */
+	private long mPublishedLength;
+
+	/** Length of the pack including staged but unpublished images. */
+	private long mPackLength;
+
+	private static final class Entry
+	{
+		public final long offset;
+		public final long length;
+
+		public Entry(long offset, long length)
+		{
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	public ImagePack(File dir)
+	{
+		mDir = dir;
+		mIndexFile = new File(dir, INDEX_NAME);
+	}
+
+	public static String getArtistPhotoKey(long artistId)
+	{
+		return "artist/" + artistId;
+	}
+
+	public static String getAlbumArtworkKey(long albumId, boolean big)
+	{
+		return "album/" + albumId + (big ? "-big" : "");
+	}
+
+	private File getPackFile(int generation)
+	{
+		return new File(mDir, PACK_PREFIX + generation + PACK_SUFFIX);
+	}
+
+	private void load() throws IOException
+	{
+		if (mLoaded == true)
+			return;
+
+		FileUtils.mkdirIfNecessary(mDir);
+
+		mIndex = new HashMap<String, Entry>();
+		mGeneration = 0;
+		mPublishedLength = 0;
+
+		if (mIndexFile.exists() == true)
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+			  new FileInputStream(mIndexFile), 8192));
+
+			try {
+				if (in.readInt() != INDEX_VERSION)
+					throw new IOException("Unknown index version");
+
+				mGeneration = in.readInt();
+				mPublishedLength = in.readLong();
+
+				int count = in.readInt();
+				for (int i = 0; i < count; i++)
+				{
+					String key = in.readUTF();
+					long offset = in.readLong();
+					long length = in.readLong();
+					mIndex.put(key, new Entry(offset, length));
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Discarding unreadable image index: " + e.toString());
+				mIndex.clear();
+				mGeneration = 0;
+				mPublishedLength = 0;
+			} finally {
+				IOUtilities.close(in);
+			}
+		}
+
+		/*
+		 * Drop anything appended after the last publish (an interrupted
+		 * merge) as well as packs orphaned by an interrupted compaction.
+		 */
+		RandomAccessFile pack = new RandomAccessFile(getPackFile(mGeneration), "rw");
+		try {
+			if (pack.length() < mPublishedLength)
+			{
+				Log.w(TAG, "Image pack is truncated, discarding index");
+				mIndex.clear();
+				mPublishedLength = 0;
+			}
+			pack.setLength(mPublishedLength);
+		} finally {
+			pack.close();
+		}
+
+		String current = getPackFile(mGeneration).getName();
+		String[] names = mDir.list();
+		if (names != null)
+		{
+			for (String name: names)
+			{
+				if (name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX) &&
+				    name.equals(current) == false)
+				{
+					new File(mDir, name).delete();
+				}
+			}
+		}
+
+		mPackLength = mPublishedLength;
+		mLoaded = true;
+	}
+
+	/**
+	 * Opens a published image for reading.
+	 *
+	 * @throws FileNotFoundException
+	 *             If no image is stored under this key.
+	 */
+	public synchronized AssetFileDescriptor open(String key)
+	  throws FileNotFoundException
+	{
+		try {
+			load();
+		} catch (IOException e) {
+			throw new FileNotFoundException(e.toString());
+		}
+
+		Entry entry = mIndex.get(key);
+		if (entry == null)
+			throw new FileNotFoundException("No image for " + key);
+
+		ParcelFileDescriptor pfd = ParcelFileDescriptor.open(getPackFile(mGeneration),
+		  ParcelFileDescriptor.MODE_READ_ONLY);
+
+		return new AssetFileDescriptor(pfd, entry.offset, entry.length);
+	}
+
+	private void beginPending()
+	{
+		if (mPending == null)
+			mPending = new HashMap<String, Entry>(mIndex);
+	}
+
+	/**
+	 * Appends the contents of <code>source</code> to the pack under
+	 * <code>key</code>, replacing any previous image once published. The
+	 * source file is deleted.
+	 *
+	 * @return False if <code>source</code> does not exist.
+	 */
+	public synchronized boolean stage(String key, File source) throws IOException
+	{
+		if (source.exists() == false)
+			return false;
+
+		load();
+		beginPending();
+
+		long length = source.length();
+
+		FileInputStream in = new FileInputStream(source);
+		RandomAccessFile pack = new RandomAccessFile(getPackFile(mGeneration), "rw");
+
+		try {
+			pack.seek(mPackLength);
+
+			byte[] b = new byte[8192];
+			int n;
+			long copied = 0;
+
+			while ((n = in.read(b)) != -1)
+			{
+				pack.write(b, 0, n);
+				copied += n;
+			}
+
+			if (copied != length)
+				throw new IOException("Short read from " + source);
+		} finally {
+			IOUtilities.close(in);
+			pack.close();
+		}
+
+		mPending.put(key, new Entry(mPackLength, length));
+		mPackLength += length;
+
+		source.delete();
+
+		return true;
+	}
+
+	/**
+	 * Removes an image. Takes effect at the next {@link #publish()}.
+	 */
+	public synchronized void remove(String key) throws IOException
+	{
+		load();
+
+		if (mIndex.containsKey(key) || (mPending != null && mPending.containsKey(key)))
+		{
+			beginPending();
+			mPending.remove(key);
+		}
+	}
+
+	/**
+	 * Makes all staged changes visible by atomically replacing the index,
+	 * then compacts the pack if enough of it has become dead space.
+	 */
+	public synchronized void publish() throws IOException
+	{
+		if (mPending == null)
+			return;
+
+		syncPack(mGeneration);
+		writeIndex(mPending, mGeneration, mPackLength);
+
+		mIndex = mPending;
+		mPending = null;
+		mPublishedLength = mPackLength;
+
+		compactIfNecessary();
+	}
+
+	/**
+	 * Discards all staged changes.
+	 */
+	public synchronized void abort()
+	{
+		if (mPending == null)
+			return;
+
+		mPending = null;
+		mPackLength = mPublishedLength;
+
+		try {
+			RandomAccessFile pack = new RandomAccessFile(getPackFile(mGeneration), "rw");
+			try {
+				pack.setLength(mPublishedLength);
+			} finally {
+				pack.close();
+			}
+		} catch (IOException e) {
+			/* Harmless, the tail will be trimmed on next load. */
+			Log.w(TAG, "Unable to trim image pack: " + e.toString());
+		}
+	}
+
+	private void syncPack(int generation) throws IOException
+	{
+		RandomAccessFile pack = new RandomAccessFile(getPackFile(generation), "rw");
+		try {
+			pack.getFD().sync();
+		} finally {
+			pack.close();
+		}
+	}
+
+	private void writeIndex(Map<String, Entry> index, int generation, long packLength)
+	  throws IOException
+	{
+		File tmp = new File(mDir, INDEX_NAME + ".tmp");
+		FileOutputStream fout = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 8192));
+
+		try {
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(generation);
+			out.writeLong(packLength);
+			out.writeInt(index.size());
+
+			for (Map.Entry<String, Entry> e: index.entrySet())
+			{
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue().offset);
+				out.writeLong(e.getValue().length);
+			}
+
+			out.flush();
+			fout.getFD().sync();
+		} finally {
+			IOUtilities.close(out);
+		}
+
+		if (tmp.renameTo(mIndexFile) == false)
+			throw new IOException("Unable to replace " + mIndexFile);
+	}
+
+	private void compactIfNecessary() throws IOException
+	{
+		long live = 0;
+		for (Entry entry: mIndex.values())
+			live += entry.length;
+
+		long waste = mPublishedLength - live;
+		if (waste < COMPACT_MIN_WASTE || waste < mPublishedLength * COMPACT_WASTE_RATIO)
+			return;
+
+		if (Constants.DEBUG)
+			Log.d(TAG, "Compacting image pack, reclaiming " + waste + " bytes");
+
+		int generation = mGeneration + 1;
+		HashMap<String, Entry> index = new HashMap<String, Entry>(mIndex.size());
+
+		RandomAccessFile src = new RandomAccessFile(getPackFile(mGeneration), "r");
+		RandomAccessFile dst = new RandomAccessFile(getPackFile(generation), "rw");
+
+		long offset = 0;
+
+		try {
+			dst.setLength(0);
+
+			byte[] b = new byte[8192];
+
+			for (Map.Entry<String, Entry> e: mIndex.entrySet())
+			{
+				Entry entry = e.getValue();
+
+				src.seek(entry.offset);
+
+				long remaining = entry.length;
+				while (remaining > 0)
+				{
+					int n = src.read(b, 0, (int)Math.min(b.length, remaining));
+					if (n == -1)
+						throw new IOException("Image pack is truncated");
+					dst.write(b, 0, n);
+					remaining -= n;
+				}
+
+				index.put(e.getKey(), new Entry(offset, entry.length));
+				offset += entry.length;
+			}
+
+			dst.getFD().sync();
+		} catch (IOException e) {
+			dst.close();
+			getPackFile(generation).delete();
+			throw e;
+		} finally {
+			src.close();
+			dst.close();
+		}
+
+		writeIndex(index, generation, offset);
+
+		/*
+		 * Readers that already opened the old pack keep a valid descriptor
+		 * after it is unlinked, so it can be deleted right away.
+		 */
+		getPackFile(mGeneration).delete();
+
+		mGeneration = generation;
+		mIndex = index;
+		mPublishedLength = offset;
+		mPackLength = offset;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Small, fixed set of extra connections used only to service queries while
+ * the primary connection is busy writing (most notably during a sync merge).
+ * Each SQLiteDatabase object serializes access behind its own lock, so
+ * spreading queries across separate connections is what keeps the UI from
+ * queueing up behind a long transaction.
+ * <p>
+ * This is only safe when the database is in write-ahead logging mode, where
+ * readers see the last committed snapshot and never block on the writer. See
+ * {@link #enableWriteAheadLogging}.
+ */
+final class ReaderPool
+{
+	private static final String TAG = "ReaderPool";
+
+	private final SQLiteDatabase[] mReaders;
+	private int mNext;
+
+	public ReaderPool(String path, int size)
+	{
+		mReaders = new SQLiteDatabase[size];
+
+		for (int i = 0; i < size; i++)
+		{
+			/*
+			 * Opened read/write so that SQLite may attach to the WAL index
+			 * (-shm) file, but these connections are never written to.
+			 */
+			mReaders[i] = SQLiteDatabase.openDatabase(path, null,
+			  SQLiteDatabase.OPEN_READWRITE);
+		}
+	}
+
+	/**
+	 * Returns the next reader connection, round-robin. Connections are
+	 * safe to share among threads; the pool merely spreads the load.
+	 */
+	public synchronized SQLiteDatabase acquire()
+	{
+		SQLiteDatabase db = mReaders[mNext];
+		mNext = (mNext + 1) % mReaders.length;
+		return db;
+	}
+
+	public synchronized void close()
+	{
+		for (SQLiteDatabase db: mReaders)
+			db.close();
+	}
+
+	/**
+	 * Switches the database to write-ahead logging if the platform's SQLite
+	 * supports it (3.7.0 and newer). Older versions silently ignore the
+	 * request and report their existing journal mode instead.
+	 *
+	 * @return True if the database is now in WAL mode.
+	 */
+	public static boolean enableWriteAheadLogging(SQLiteDatabase db)
+	{
+		String mode = null;
+
+		Cursor c = db.rawQuery("PRAGMA journal_mode=WAL", null);
+		try {
+			if (c.moveToFirst() == true)
+				mode = c.getString(0);
+		} finally {
+			c.close();
+		}
+
+		if ("wal".equalsIgnoreCase(mode) == false)
+		{
+			Log.i(TAG, "Write-ahead logging not available (journal_mode=" + mode + ")");
+			return false;
+		}
+
+		/* Durable as of the last checkpoint, which is all we need. */
+		db.execSQL("PRAGMA synchronous=NORMAL");
+
+		return true;
+	}
+}
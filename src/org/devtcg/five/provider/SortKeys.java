@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * Computes the precomputed sort key and alphabet section columns stored
+ * alongside artist, album, and song names. Keys are hex encoded collation
+ * keys so that SQLite's plain binary comparison orders them the same way
+ * the locale collator would order the names themselves.
+ * <p>
+ * Keys from different locales don't compare meaningfully, so the collator
+ * stays with one locale until {@link #setLocale} is called; the provider
+ * does that only while rebuilding every stored key.
+ */
+final class SortKeys
+{
+	private static final String SECTIONS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static Locale sLocale;
+	private static Collator sCollator;
+
+	private SortKeys() {}
+
+	/**
+	 * Switches the collator used for new keys and sections to
+	 * <code>locale</code>.
+	 */
+	public static synchronized void setLocale(Locale locale)
+	{
+		if (locale.equals(sLocale) == false)
+		{
+			sLocale = locale;
+			sCollator = null;
+		}
+	}
+
+	private static Collator getCollator()
+	{
+		if (sCollator == null)
+		{
+			if (sLocale == null)
+				sLocale = Locale.getDefault();
+
+			sCollator = Collator.getInstance(sLocale);
+			sCollator.setStrength(Collator.PRIMARY);
+		}
+		return sCollator;
+	}
+
+	public static synchronized String getSortKey(String name)
+	{
+		if (name == null)
+			return null;
+
+		CollationKey key = getCollator().getCollationKey(name);
+		byte[] bytes = key.toByteArray();
+
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+
+	/**
+	 * Returns the section letter a name files under: the last letter which
+	 * collates no later than the name's first character. Picking sections
+	 * this way keeps them in the same order as the sort keys, so accented
+	 * or lower case initials land with their base letter and anything that
+	 * sorts before "A" (digits, punctuation) goes in a leading " " section.
+	 */
+	public static synchronized String getSection(String name)
+	{
+		if (name == null || name.length() == 0)
+			return " ";
+
+		Collator collator = getCollator();
+		String first = name.substring(0, 1);
+
+		String section = " ";
+		for (int i = 0; i < SECTIONS.length(); i++)
+		{
+			String letter = SECTIONS.substring(i, i + 1);
+			if (collator.compare(letter, first) <= 0)
+				section = letter;
+			else
+				break;
+		}
+
+		return section;
+	}
+}
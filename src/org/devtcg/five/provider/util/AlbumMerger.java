@@ -15,12 +15,14 @@
 package org.devtcg.five.provider.util;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.HashMap;
 
 import org.devtcg.five.provider.AbstractTableMerger;
+import org.devtcg.five.provider.ChangeNotifier;
 import org.devtcg.five.provider.Five;
 import org.devtcg.five.provider.FiveProvider;
+import org.devtcg.five.provider.ImagePack;
 
 import android.content.ContentProvider;
 import android.content.ContentUris;
@@ -50,7 +52,13 @@ public final class AlbumMerger extends AbstractTableMerger
 	@Override
 	public void notifyChanges(Context context)
 	{
-		/* PlaylistSongs merger will do this for everyone after counts are updated. */
+		ChangeNotifier notifier = mProvider.getChangeNotifier();
+
+		postChanges(notifier);
+
+		/* Album lists are also reached through the artist URIs. */
+		if (hasChanges() == true)
+			notifier.tableChanged(Five.Music.Artists.CONTENT_URI);
 	}
 
 	@Override
@@ -102,10 +110,10 @@ public final class AlbumMerger extends AbstractTableMerger
 		if (thumbUri != null)
 		{
 			try {
-				File imageFile = FiveProvider.getAlbumArtwork(tmpId, true);
-				if (imageFile.renameTo(FiveProvider.getAlbumArtwork(actualId, false)))
+				File imageFile = FiveProvider.getAlbumArtwork(tmpId);
+				if (mProvider.getImagePack().stage(ImagePack.getAlbumArtworkKey(actualId, false), imageFile))
 					values.put(Five.Music.Albums.ARTWORK, Five.makeAlbumArtworkUri(actualId).toString());
-			} catch (FileNotFoundException e) {
+			} catch (IOException e) {
 			}
 		}
 
@@ -113,10 +121,10 @@ public final class AlbumMerger extends AbstractTableMerger
 		if (bigUri != null)
 		{
 			try {
-				File imageFile = FiveProvider.getLargeAlbumArtwork(tmpId, true);
-				if (imageFile.renameTo(FiveProvider.getLargeAlbumArtwork(actualId, false)))
+				File imageFile = FiveProvider.getLargeAlbumArtwork(tmpId);
+				if (mProvider.getImagePack().stage(ImagePack.getAlbumArtworkKey(actualId, true), imageFile))
 					values.put(Five.Music.Albums.ARTWORK_BIG, Five.makeAlbumArtworkBigUri(actualId).toString());
-			} catch (FileNotFoundException e) {
+			} catch (IOException e) {
 			}
 		}
 
@@ -142,6 +150,7 @@ public final class AlbumMerger extends AbstractTableMerger
 		rowToContentValues(diffs, diffsCursor, mTmpValues);
 		mProvider.updateInternal(mTableUri, mTmpValues, Five.Music.Albums._ID + " = ?",
 			new String[] { String.valueOf(id) });
+
 		mergeImageColumns(context, diffsCursor, id);
 	}
 }
@@ -15,11 +15,12 @@
 package org.devtcg.five.provider.util;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 
 import org.devtcg.five.provider.AbstractTableMerger;
 import org.devtcg.five.provider.Five;
 import org.devtcg.five.provider.FiveProvider;
+import org.devtcg.five.provider.ImagePack;
 
 import android.content.ContentProvider;
 import android.content.ContentUris;
@@ -47,7 +48,7 @@ public final class ArtistMerger extends AbstractTableMerger
 	@Override
 	public void notifyChanges(Context context)
 	{
-		/* PlaylistSongs merger will do this for everyone after counts are updated. */
+		postChanges(mProvider.getChangeNotifier());
 	}
 
 	@Override
@@ -75,10 +76,10 @@ public final class ArtistMerger extends AbstractTableMerger
 		{
 			try {
 				long tmpId = cursor.getLong(cursor.getColumnIndexOrThrow(Five.Music.Artists._ID));
-				File photoFile = FiveProvider.getArtistPhoto(tmpId, true);
-				if (photoFile.renameTo(FiveProvider.getArtistPhoto(actualId, false)) == false)
+				File photoFile = FiveProvider.getArtistPhoto(tmpId);
+				if (mProvider.getImagePack().stage(ImagePack.getArtistPhotoKey(actualId), photoFile) == false)
 					return;
-			} catch (FileNotFoundException e) {
+			} catch (IOException e) {
 				return;
 			}
 
@@ -43,7 +43,7 @@ public final class PlaylistMerger extends AbstractTableMerger
 	@Override
 	public void notifyChanges(Context context)
 	{
-		/* PlaylistSongs merger will do this for everyone after counts are updated. */
+		postChanges(mProvider.getChangeNotifier());
 	}
 
 	@Override
@@ -17,6 +17,7 @@ package org.devtcg.five.provider.util;
 import java.util.HashMap;
 
 import org.devtcg.five.provider.AbstractTableMerger;
+import org.devtcg.five.provider.ChangeNotifier;
 import org.devtcg.five.provider.Five;
 import org.devtcg.five.provider.FiveProvider;
 
@@ -49,6 +50,10 @@ public final class PlaylistSongMerger extends AbstractTableMerger
 		mProvider = provider;
 	}
 
+	/**
+	 * Runs last, so also adjusts the counts for everyone. Tables whose
+	 * counts actually changed are reported to the notifier by the provider.
+	 */
 	@Override
 	public void notifyChanges(Context context)
 	{
@@ -61,11 +66,13 @@ public final class PlaylistSongMerger extends AbstractTableMerger
 
 		Log.i(TAG, "Done!");
 
-		cr.notifyChange(Five.Music.Artists.CONTENT_URI, null);
-		cr.notifyChange(Five.Music.Albums.CONTENT_URI, null);
-		cr.notifyChange(Five.Music.Songs.CONTENT_URI, null);
-		cr.notifyChange(Five.Music.Playlists.CONTENT_URI, null);
-		cr.notifyChange(Five.Music.PlaylistSongs.CONTENT_URI, null);
+		ChangeNotifier notifier = mProvider.getChangeNotifier();
+
+		postChanges(notifier);
+
+		/* Playlist contents are listed under the playlist URIs. */
+		if (hasChanges() == true)
+			notifier.tableChanged(Five.Music.Playlists.CONTENT_URI);
 	}
 
 	@Override
@@ -112,7 +119,12 @@ public final class PlaylistSongMerger extends AbstractTableMerger
 		values.clear();
 		DatabaseUtils.cursorLongToContentValues(cursor, Five.Music.PlaylistSongs._SYNC_ID, values);
 		DatabaseUtils.cursorLongToContentValues(cursor, Five.Music.PlaylistSongs._SYNC_TIME, values);
-		DatabaseUtils.cursorStringToContentValues(cursor, Five.Music.PlaylistSongs.POSITION, values);
+
+		/* The server sends dense positions; spread them out locally so that
+		 * entries can later be placed between them without renumbering. */
+		values.put(Five.Music.PlaylistSongs.POSITION, cursor.getLong(
+			cursor.getColumnIndexOrThrow(Five.Music.PlaylistSongs.POSITION)) *
+			Five.Music.PlaylistSongs.POSITION_GAP);
 
 		values.put(Five.Music.PlaylistSongs.PLAYLIST_ID, getPlaylistId(diffs, cursor.getLong(
 			cursor.getColumnIndexOrThrow(Five.Music.PlaylistSongs.PLAYLIST_ID))));
@@ -25,9 +25,15 @@ public class SongItem extends AbstractDAOItem
 {
 	private int mColumnSyncId;
 	private int mColumnCachePath;
+	private int mColumnCachedLength;
 	private int mColumnSize;
+	private int mColumnContentHash;
 	private int mColumnSourceId;
 	private int mColumnMimeType;
+	private int mColumnLength;
+	private int mColumnBitrate;
+	private int mColumnPinned;
+	private int mColumnPlayCount;
 
 	public static SongItem getInstance(Context context, Uri uri)
 	{
@@ -46,9 +52,15 @@ public class SongItem extends AbstractDAOItem
 		/* XXX: We don't currently support all columns.  Finish later. */
 		mColumnSyncId = cursor.getColumnIndex(Five.Music.Songs._SYNC_ID);
 		mColumnCachePath = cursor.getColumnIndex(Five.Music.Songs.CACHED_PATH);
+		mColumnCachedLength = cursor.getColumnIndex(Five.Music.Songs.CACHED_LENGTH);
 		mColumnSize = cursor.getColumnIndex(Five.Music.Songs.SIZE);
+		mColumnContentHash = cursor.getColumnIndex(Five.Music.Songs.CONTENT_HASH);
 		mColumnSourceId = cursor.getColumnIndex(Five.Music.Songs.SOURCE_ID);
 		mColumnMimeType = cursor.getColumnIndex(Five.Music.Songs.MIME_TYPE);
+		mColumnLength = cursor.getColumnIndex(Five.Music.Songs.LENGTH);
+		mColumnBitrate = cursor.getColumnIndex(Five.Music.Songs.BITRATE);
+		mColumnPinned = cursor.getColumnIndex(Five.Music.Songs.PINNED);
+		mColumnPlayCount = cursor.getColumnIndex(Five.Music.Songs.PLAY_COUNT);
 	}
 
 	public Uri getUri()
@@ -66,11 +78,31 @@ public class SongItem extends AbstractDAOItem
 		return mCursor.getString(mColumnCachePath);
 	}
 
+	/**
+	 * @return Length of the cached file as committed, or -1 if it has not
+	 *         been committed.
+	 */
+	public long getCachedLength()
+	{
+		if (mCursor.isNull(mColumnCachedLength) == true)
+			return -1;
+
+		return mCursor.getLong(mColumnCachedLength);
+	}
+
 	public long getSize()
 	{
 		return mCursor.getLong(mColumnSize);
 	}
 
+	/**
+	 * @return Hash of the content as given by the server, or null.
+	 */
+	public String getContentHash()
+	{
+		return mCursor.getString(mColumnContentHash);
+	}
+
 	public long getSourceId()
 	{
 		return mCursor.getLong(mColumnSourceId);
@@ -81,6 +113,32 @@ public class SongItem extends AbstractDAOItem
 		return mCursor.getString(mColumnMimeType);
 	}
 
+	/**
+	 * @return Running time in seconds.
+	 */
+	public int getLength()
+	{
+		return mCursor.getInt(mColumnLength);
+	}
+
+	/**
+	 * @return Average or estimated bitrate in kbps, or 0 if unknown.
+	 */
+	public int getBitrate()
+	{
+		return mCursor.getInt(mColumnBitrate);
+	}
+
+	public boolean isPinned()
+	{
+		return mCursor.getInt(mColumnPinned) != 0;
+	}
+
+	public int getPlayCount()
+	{
+		return mCursor.getInt(mColumnPlayCount);
+	}
+
 	private static final AbstractDAOItem.Creator<SongItem> CREATOR =
 		new AbstractDAOItem.Creator<SongItem>()
 	{
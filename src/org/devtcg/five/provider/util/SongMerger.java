@@ -17,6 +17,7 @@ package org.devtcg.five.provider.util;
 import java.util.HashMap;
 
 import org.devtcg.five.provider.AbstractTableMerger;
+import org.devtcg.five.provider.ChangeNotifier;
 import org.devtcg.five.provider.Five;
 import org.devtcg.five.provider.FiveProvider;
 
@@ -48,7 +49,16 @@ public final class SongMerger extends AbstractTableMerger
 	@Override
 	public void notifyChanges(Context context)
 	{
-		/* PlaylistSongs merger will do this for everyone after counts are updated. */
+		ChangeNotifier notifier = mProvider.getChangeNotifier();
+
+		postChanges(notifier);
+
+		/* Song lists are also reached through the artist and album URIs. */
+		if (hasChanges() == true)
+		{
+			notifier.tableChanged(Five.Music.Artists.CONTENT_URI);
+			notifier.tableChanged(Five.Music.Albums.CONTENT_URI);
+		}
 	}
 
 	@Override
@@ -104,6 +114,7 @@ public final class SongMerger extends AbstractTableMerger
 		DatabaseUtils.cursorStringToContentValues(cursor, Five.Music.Songs.MIME_TYPE, values);
 		DatabaseUtils.cursorLongToContentValues(cursor, Five.Music.Songs.SOURCE_ID, values);
 		DatabaseUtils.cursorLongToContentValues(cursor, Five.Music.Songs.SIZE, values);
+		DatabaseUtils.cursorStringToContentValues(cursor, Five.Music.Songs.CONTENT_HASH, values);
 
 		values.put(Five.Music.Songs.ARTIST_ID, getArtistId(diffs, cursor.getLong(
 			cursor.getColumnIndexOrThrow(Five.Music.Songs.ARTIST_ID))));
@@ -103,6 +103,15 @@ public class SourceItem extends AbstractDAOItem
 		return "http://" + getHost() + ":" + getPort() + "/songs/" + syncId;
 	}
 
+	/**
+	 * @param bitrate
+	 *            Bitrate in kbps the server should transcode the song down to.
+	 */
+	public String getSongUrl(long syncId, int bitrate)
+	{
+		return getSongUrl(syncId) + "?bitrate=" + bitrate;
+	}
+
 	public String getImageUrl(String feedType, long syncId, int width, int height)
 	{
 		return "http://" + getHost() + ":" + getPort() + "/image/" + feedType + "/" +
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Adaptive replacement, after Megiddo and Modha's ARC, measured in bytes.
+ * Content played at most once is kept apart from content played more
+ * often, and a target share of the cache for the former is adjusted
+ * according to which kind of content, having been evicted, turns out to be
+ * wanted again. Eviction is from whichever side is over its share, least
+ * recently used first.
+ * <p>
+ * The histories of evicted content are only kept in memory, so the target
+ * starts over whenever the process does.
+ */
+class ArcCachePolicy extends CachePolicy
+{
+	/** Target bytes for content played at most once. */
+	private long mTarget;
+
+	/** Bytes the cache may hold, as last told. */
+	private long mCapacity;
+
+	/* Recently evicted content, by song id, with its size. */
+	private final LinkedHashMap<Long, Long> mRecentGhosts =
+	  new LinkedHashMap<Long, Long>();
+	private final LinkedHashMap<Long, Long> mFrequentGhosts =
+	  new LinkedHashMap<Long, Long>();
+
+	private long mRecentGhostBytes;
+	private long mFrequentGhostBytes;
+
+	private static boolean isRecent(Entry entry)
+	{
+		return entry.accessCount <= 1;
+	}
+
+	@Override
+	public synchronized void order(List<Entry> entries, long capacity)
+	{
+		mCapacity = capacity;
+		mTarget = Math.min(mTarget, capacity);
+
+		ArrayList<Entry> recent = new ArrayList<Entry>();
+		ArrayList<Entry> frequent = new ArrayList<Entry>();
+		long recentBytes = 0;
+
+		for (Entry entry: entries)
+		{
+			if (isRecent(entry) == true)
+			{
+				recent.add(entry);
+				recentBytes += entry.size;
+			}
+			else
+				frequent.add(entry);
+		}
+
+		Collections.sort(recent, RECENCY_ORDER);
+		Collections.sort(frequent, RECENCY_ORDER);
+
+		entries.clear();
+
+		int r = 0;
+		int f = 0;
+
+		while (r < recent.size() || f < frequent.size())
+		{
+			if (f >= frequent.size() ||
+			  (r < recent.size() && recentBytes > mTarget))
+			{
+				Entry entry = recent.get(r++);
+				recentBytes -= entry.size;
+				entries.add(entry);
+			}
+			else
+				entries.add(frequent.get(f++));
+		}
+	}
+
+	@Override
+	public synchronized void onEvicted(Entry entry)
+	{
+		if (isRecent(entry) == true)
+		{
+			Long old = mRecentGhosts.put(entry.songId, entry.size);
+			mRecentGhostBytes += entry.size - (old != null ? old : 0);
+		}
+		else
+		{
+			Long old = mFrequentGhosts.put(entry.songId, entry.size);
+			mFrequentGhostBytes += entry.size - (old != null ? old : 0);
+		}
+
+		/* Remember about as much as the cache itself holds. */
+		mRecentGhostBytes = trim(mRecentGhosts, mRecentGhostBytes, mCapacity);
+		mFrequentGhostBytes = trim(mFrequentGhosts, mFrequentGhostBytes, mCapacity);
+	}
+
+	private static long trim(LinkedHashMap<Long, Long> ghosts, long bytes,
+	  long limit)
+	{
+		Iterator<Long> i = ghosts.values().iterator();
+
+		while (bytes > limit && i.hasNext() == true)
+		{
+			bytes -= i.next();
+			i.remove();
+		}
+
+		return bytes;
+	}
+
+	@Override
+	public synchronized void onMiss(long songId, long size)
+	{
+		Long ghost;
+
+		if ((ghost = mRecentGhosts.remove(songId)) != null)
+		{
+			/* Would have kept it with more room for recent content. */
+			mRecentGhostBytes -= ghost;
+			long weight = Math.max(mFrequentGhostBytes / Math.max(mRecentGhostBytes, 1), 1);
+			mTarget = Math.min(mTarget + weight * size, mCapacity);
+		}
+		else if ((ghost = mFrequentGhosts.remove(songId)) != null)
+		{
+			/* Would have kept it with more room for frequent content. */
+			mFrequentGhostBytes -= ghost;
+			long weight = Math.max(mRecentGhostBytes / Math.max(mFrequentGhostBytes, 1), 1);
+			mTarget = Math.max(mTarget - weight * size, 0);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import org.devtcg.five.util.streaming.ThroughputEstimator;
+
+/**
+ * Chooses between a track's original file and a reduced bitrate variant
+ * transcoded by the server, based on whether the measured throughput can
+ * sustain the original. The choice is made as each track's download
+ * starts, so once conditions improve the next track goes back to the
+ * original.
+ */
+class BitrateSelector
+{
+	/** Variants the server may be asked for, in kbps, highest first. */
+	private static final int[] VARIANTS = { 192, 128, 96, 64 };
+
+	/**
+	 * Throughput must exceed a bitrate by this factor to be considered able
+	 * to keep up with it, leaving room for prefetches and fluctuations.
+	 */
+	private static final float HEADROOM = 1.5f;
+
+	private final ThroughputEstimator mThroughput;
+
+	public BitrateSelector(ThroughputEstimator throughput)
+	{
+		mThroughput = throughput;
+	}
+
+	/**
+	 * @param bitrate
+	 *            Bitrate of the original file in kbps, or 0 if unknown.
+	 * @return Bitrate in kbps of the variant to request, or 0 for the
+	 *         original.
+	 */
+	public int select(int bitrate)
+	{
+		float bytesPerSecond = mThroughput.getBytesPerSecond();
+
+		/* Nothing to go on; assume the best. */
+		if (bytesPerSecond <= 0 || bitrate <= 0)
+			return 0;
+
+		float sustainable = (bytesPerSecond * 8 / 1000) / HEADROOM;
+
+		if (bitrate <= sustainable)
+			return 0;
+
+		for (int variant: VARIANTS)
+		{
+			if (variant < bitrate && variant <= sustainable)
+				return variant;
+		}
+
+		/* Too slow for any of them; the lowest at least stalls the least. */
+		int lowest = VARIANTS[VARIANTS.length - 1];
+		return lowest < bitrate ? lowest : 0;
+	}
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+
+package org.devtcg.five.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.devtcg.five.provider.Five;
+import org.devtcg.five.util.streaming.RangeMap;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * In-memory index of the content in the cache, so that room can be made
+ * for new content without consulting the database or the file system.
+ * <p>
+ * The index is first built from a scan of the cache directories, which
+ * tells us what's there and how much room it takes, then reconciled with
+ * the database for what the files are and how they've been used.
+ * Reconciliation also tidies up after any disagreement between the two:
+ * files the database doesn't know about are deleted, and songs whose files
+ * have gone are marked as no longer cached.
+ * <p>
+ * Content stored by hash may be shared by several songs. Such an entry is
+ * pinned if any of its songs are, and is only evicted as a whole.
+ */
+class CacheIndex
+{
+	private static final String TAG = "CacheIndex";
+
+	public static class Entry
+	{
+		public final String path;
+
+		/** Song the content belongs to, or -1 until reconciled. */
+		public long songId = -1;
+
+		/** All songs sharing the content, songId among them. */
+		public final HashSet<Long> songIds = new HashSet<Long>();
+
+		/** Full size of the content, or what's on disk until reconciled. */
+		public long size;
+
+		public boolean pinned;
+
+		/** Time the content was last played, or else cached. */
+		public long lastAccess;
+
+		public int accessCount;
+
+		public Entry(String path)
+		{
+			this.path = path;
+		}
+	}
+
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	private final HashMap<Long, Entry> mEntriesBySong = new HashMap<Long, Entry>();
+
+	private long mUsedBytes;
+
+	private boolean mLoaded = false;
+	private boolean mReconciled = false;
+
+	/**
+	 * Builds the index from the cache directories under <code>root</code>,
+	 * unless it already has been.
+	 *
+	 * @param exclude
+	 *   Name of a directory under <code>root</code> which is not to be
+	 *   indexed.
+	 * @return
+	 *   True if the index was just built and should now be reconciled.
+	 */
+	public synchronized boolean load(File root, String exclude)
+	{
+		if (mLoaded == true)
+			return false;
+
+		mLoaded = true;
+		mReconciled = false;
+
+		File[] dirs = root.listFiles();
+		if (dirs == null)
+			return true;
+
+		for (File dir: dirs)
+		{
+			if (dir.isDirectory() == false || dir.getName().equals(exclude) == true)
+				continue;
+
+			File[] files = dir.listFiles();
+			if (files == null)
+				continue;
+
+			for (File file: files)
+			{
+				/* Sidecars go along with their cache files. */
+				if (RangeMap.isSidecar(file) == true)
+					continue;
+
+				Entry entry = new Entry(file.getAbsolutePath());
+				entry.size = file.length();
+				entry.lastAccess = file.lastModified();
+				add(entry);
+			}
+		}
+
+		Log.i(TAG, "Indexed " + mEntries.size() + " cache entries using " +
+		  mUsedBytes + " bytes");
+
+		return true;
+	}
+
+	private void add(Entry entry)
+	{
+		Entry old = mEntries.put(entry.path, entry);
+		if (old != null && old != entry)
+			forget(old);
+
+		mUsedBytes += entry.size;
+
+		for (long songId: entry.songIds)
+			mEntriesBySong.put(songId, entry);
+	}
+
+	private void forget(Entry entry)
+	{
+		mUsedBytes -= entry.size;
+
+		for (long songId: entry.songIds)
+		{
+			if (mEntriesBySong.get(songId) == entry)
+				mEntriesBySong.remove(songId);
+		}
+	}
+
+	/**
+	 * Drops the song's claim on whatever content it had, forgetting the
+	 * content if no other song shares it.
+	 */
+	private void release(long songId)
+	{
+		Entry entry = mEntriesBySong.remove(songId);
+		if (entry == null)
+			return;
+
+		entry.songIds.remove(songId);
+
+		if (entry.songIds.isEmpty() == true)
+		{
+			mEntries.remove(entry.path);
+			forget(entry);
+		}
+		else if (entry.songId == songId)
+			entry.songId = entry.songIds.iterator().next();
+	}
+
+	/**
+	 * Forgets everything, such as after the cache has been wiped. The index
+	 * is built again on next use.
+	 */
+	public synchronized void clear()
+	{
+		mEntries.clear();
+		mEntriesBySong.clear();
+		mUsedBytes = 0;
+		mLoaded = false;
+		mReconciled = false;
+	}
+
+	/**
+	 * Records newly allocated storage for a song.
+	 */
+	public synchronized void put(long songId, String path, long size,
+	  boolean pinned, int accessCount, long lastAccess)
+	{
+		/* The song may have been cached elsewhere before. */
+		release(songId);
+
+		Entry entry = new Entry(path);
+		entry.songId = songId;
+		entry.songIds.add(songId);
+		entry.size = size;
+		entry.pinned = pinned;
+		entry.accessCount = accessCount;
+		entry.lastAccess = lastAccess;
+		add(entry);
+	}
+
+	/**
+	 * Records a song sharing content already in the index.
+	 *
+	 * @return
+	 *   False if the content isn't indexed (yet).
+	 */
+	public synchronized boolean addRef(long songId, String path, boolean pinned)
+	{
+		Entry entry = mEntries.get(path);
+		if (entry == null)
+			return false;
+
+		if (entry.songIds.contains(songId) == false)
+		{
+			release(songId);
+
+			entry.songIds.add(songId);
+			mEntriesBySong.put(songId, entry);
+		}
+
+		entry.pinned |= pinned;
+
+		return true;
+	}
+
+	/**
+	 * @return
+	 *   True if any song other than <code>songId</code> has content at
+	 *   <code>path</code>.
+	 */
+	public synchronized boolean isShared(String path, long songId)
+	{
+		Entry entry = mEntries.get(path);
+		if (entry == null)
+			return false;
+
+		return entry.songIds.size() > (entry.songIds.contains(songId) ? 1 : 0);
+	}
+
+	public synchronized void remove(String path)
+	{
+		Entry entry = mEntries.remove(path);
+		if (entry != null)
+			forget(entry);
+	}
+
+	public synchronized void recordAccess(long songId, long time)
+	{
+		Entry entry = mEntriesBySong.get(songId);
+		if (entry != null)
+		{
+			entry.accessCount++;
+			entry.lastAccess = time;
+		}
+	}
+
+	public synchronized boolean contains(String path)
+	{
+		return mEntries.containsKey(path);
+	}
+
+	public synchronized long getUsedBytes()
+	{
+		return mUsedBytes;
+	}
+
+	/**
+	 * @return
+	 *   Copies of the entries which may be evicted.
+	 */
+	public synchronized List<CachePolicy.Entry> getEvictable()
+	{
+		ArrayList<CachePolicy.Entry> evictable =
+		  new ArrayList<CachePolicy.Entry>(mEntries.size());
+
+		for (Entry entry: mEntries.values())
+		{
+			if (entry.pinned == false && entry.songId >= 0)
+			{
+				evictable.add(new CachePolicy.Entry(entry.songId, entry.path,
+				  entry.size, entry.lastAccess, entry.accessCount));
+			}
+		}
+
+		return evictable;
+	}
+
+	/**
+	 * Marks the index as needing to be reconciled again, such as after the
+	 * songs pinned have changed.
+	 */
+	public synchronized void invalidate()
+	{
+		mReconciled = false;
+	}
+
+	public synchronized boolean isReconciled()
+	{
+		return mReconciled;
+	}
+
+	/**
+	 * Brings the index and the database into agreement. The database is
+	 * queried outside the lock, so allocations aren't held up for long.
+	 */
+	public void reconcile(ContentResolver cr)
+	{
+		Cursor c = cr.query(Five.Music.Songs.CONTENT_URI,
+		  new String[] { Five.Music.Songs._ID, Five.Music.Songs.CACHED_PATH,
+		    Five.Music.Songs.SIZE, Five.Music.Songs.PINNED,
+		    Five.Music.Songs.PLAY_COUNT, Five.Music.LAST_PLAYED,
+		    Five.Music.Songs.CACHED_TIMESTAMP },
+		  Five.Music.Songs.CACHED_PATH + " IS NOT NULL", null, null);
+
+		if (c == null)
+			return;
+
+		ArrayList<Long> missing = new ArrayList<Long>();
+		ArrayList<String> orphans = new ArrayList<String>();
+
+		/* Shared content appears once for each of its songs. */
+		HashSet<String> seen = new HashSet<String>();
+
+		try {
+			synchronized(this) {
+				while (c.moveToNext() == true)
+				{
+					String path = c.getString(1);
+
+					Entry entry = mEntries.get(path);
+					if (entry == null)
+					{
+						if (new File(path).exists() == false)
+						{
+							missing.add(c.getLong(0));
+							continue;
+						}
+
+						entry = new Entry(path);
+					}
+					else
+						forget(entry);
+
+					long songId = c.getLong(0);
+					boolean pinned = c.getInt(3) != 0;
+					long lastAccess = c.isNull(5) ? c.getLong(6) : c.getLong(5);
+
+					if (seen.add(path) == true)
+					{
+						entry.songIds.clear();
+						entry.songId = songId;
+						entry.pinned = pinned;
+						entry.accessCount = c.getInt(4);
+						entry.lastAccess = lastAccess;
+					}
+					else
+					{
+						entry.pinned |= pinned;
+						entry.accessCount += c.getInt(4);
+						entry.lastAccess = Math.max(entry.lastAccess, lastAccess);
+					}
+
+					entry.songIds.add(songId);
+					entry.size = c.getLong(2);
+					add(entry);
+				}
+
+				/* Scanned, but no song claims them. */
+				Iterator<Entry> i = mEntries.values().iterator();
+				while (i.hasNext() == true)
+				{
+					Entry entry = i.next();
+					if (entry.songIds.isEmpty() == true)
+					{
+						forget(entry);
+						i.remove();
+						orphans.add(entry.path);
+					}
+				}
+
+				mReconciled = true;
+			}
+		} finally {
+			c.close();
+		}
+
+		for (long songId: missing)
+		{
+			ContentValues cv = new ContentValues();
+			cv.putNull(Five.Music.Songs.CACHED_TIMESTAMP);
+			cv.putNull(Five.Music.Songs.CACHED_PATH);
+			cv.putNull(Five.Music.Songs.CACHED_LENGTH);
+			cv.putNull(Five.Music.Songs.CACHED_VALIDATOR);
+			cr.update(ContentUris.withAppendedId(Five.Music.Songs.CONTENT_URI,
+			  songId), cv, null, null);
+		}
+
+		for (String path: orphans)
+		{
+			File file = new File(path);
+			file.delete();
+			RangeMap.getSidecar(file).delete();
+		}
+
+		if (missing.isEmpty() == false || orphans.isEmpty() == false)
+		{
+			Log.i(TAG, "Reconciled cache index: " + missing.size() +
+			  " missing, " + orphans.size() + " orphaned");
+		}
+	}
+}
@@ -16,26 +16,51 @@ package org.devtcg.five.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
 
+import org.devtcg.five.R;
 import org.devtcg.five.provider.Five;
+import org.devtcg.five.provider.util.SongItem;
+import org.devtcg.five.provider.util.Songs;
 import org.devtcg.five.util.FileUtils;
+import org.devtcg.five.util.streaming.RangeMap;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.StatFs;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
  * Mechanism for managing cached content.
  *
- * TODO: Implement this using configurable CachePolicy's.  For now it is
- * hardcoded with a policy which attempts to leave 100MB free on the storage
- * card for other applications.
+ * The cache is kept within a configurable quota and, whatever the quota,
+ * attempts to leave 100MB free on the storage card for other applications.
+ * Which content is evicted to stay within those limits is up to the
+ * {@link CachePolicy} selected in preferences.  Pinned content is never
+ * evicted.
+ * <p>
+ * What's in the cache is tracked in memory by a {@link CacheIndex}, so
+ * allocating storage normally touches neither the database (which is
+ * written behind on a worker thread) nor StatFs.
+ * <p>
+ * Songs are stored under their source and id, unless the server gave a
+ * hash of the content. Then they're stored by hash, and a song whose
+ * content is already cached for another song shares that file rather than
+ * downloading it again. The songs table is what counts the references: a
+ * shared file is evicted for all of its songs at once, and only deleted
+ * with a song if no other song refers to it.
  */
 public class CacheManager
 {
@@ -43,11 +68,58 @@ public class CacheManager
 
 	private static CacheManager INSTANCE;
 
-	/* XXX: The default policy (which is not configurable, sadly) is to
-	 * attempt to leave 100MB free.  This should be made far more robust
-	 * and flexible in the future. */
+	/* Space left free on the storage card, quota or no quota. */
 	private static final int POLICY_LEAVE_FREE = 100 * 1024 * 1024;
 
+	/** Preference holding the cache quota in megabytes, or 0 for none. */
+	public static final String KEY_CACHE_QUOTA = "cache_quota";
+
+	/** Preference naming the eviction policy; see {@link CachePolicy}. */
+	public static final String KEY_CACHE_POLICY = "cache_policy";
+
+	/**
+	 * Content played or cached this recently is probably playing or about
+	 * to, so is only evicted once nothing else will do.
+	 */
+	private static final long PROTECT_RECENT = 60 * 60 * 1000;
+
+	/** Longest we'll go by our own count of free space between StatFs calls. */
+	private static final long STATFS_INTERVAL = 60 * 1000;
+
+	private CachePolicy mPolicy;
+	private String mPolicyName;
+
+	/** Cache sub-directory holding reduced bitrate variants. */
+	private static final String VARIANTS_DIRECTORY = "variants";
+
+	/** Cache sub-directory holding content stored by hash. */
+	private static final String BLOBS_DIRECTORY = "blobs";
+
+	/** What we'll accept as a hash, being careful as it names a file. */
+	private static final Pattern CONTENT_HASH = Pattern.compile("[0-9a-zA-Z]{16,128}");
+
+	private final CacheIndex mIndex = new CacheIndex();
+
+	/* Free space on the storage card, less what we've since allocated. */
+	private long mFreeBytes;
+	private long mFreeBytesTime = -1;
+
+	/* Cache directories known to exist. */
+	private final HashSet<String> mDirectories = new HashSet<String>();
+
+	/* Runs database updates and index reconciliation. */
+	private Handler mWorker;
+
+	private ContentResolver mResolver;
+
+	private final Runnable mReconcile = new Runnable()
+	{
+		public void run()
+		{
+			mIndex.reconcile(mResolver);
+		}
+	};
+
 	private CacheManager() {}
 
 	public synchronized static CacheManager getInstance()
@@ -58,97 +130,226 @@ public class CacheManager
 		return INSTANCE;
 	}
 
-	private String getContentWhereClause(long sourceId, long contentId)
+	private synchronized Handler getWorker()
+	{
+		if (mWorker == null)
+		{
+			HandlerThread thread = new HandlerThread(TAG,
+			  Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+
+			mWorker = new Handler(thread.getLooper());
+		}
+
+		return mWorker;
+	}
+
+	private void scheduleReconcile(Context context)
+	{
+		synchronized(this) {
+			if (mResolver == null)
+				mResolver = context.getApplicationContext().getContentResolver();
+		}
+
+		Handler worker = getWorker();
+		worker.removeCallbacks(mReconcile);
+		worker.post(mReconcile);
+	}
+
+	/**
+	 * Builds the index from the cache directories if this is our first time
+	 * through, leaving the database side to be filled in behind us.
+	 */
+	private void ensureIndex(Context context, File sdcard)
 	{
-		return Five.Music.Songs.SOURCE_ID + " = " + sourceId + " AND " +
-			Five.Music.Songs._SYNC_ID + " = " + contentId;
+		if (mIndex.load(new File(sdcard, "five/cache"), VARIANTS_DIRECTORY) == true)
+			scheduleReconcile(context);
 	}
 
-	private Cursor getContentCursor(Context context, long sourceId, long contentId)
+	/**
+	 * Ask that the index be brought up to date with the database, after
+	 * songs have been pinned or unpinned.
+	 */
+	public void invalidateIndex(Context context)
 	{
-		String fields[] =
-		  new String[] { Five.Music.Songs._ID, Five.Music.Songs.SIZE,
-		    Five.Music.Songs.CACHED_PATH, Five.Music.Songs.MIME_TYPE };
-		return context.getContentResolver()
-		  .query(Five.Music.Songs.CONTENT_URI, fields,
-			  getContentWhereClause(sourceId, contentId), null, null);
+		mIndex.invalidate();
+		scheduleReconcile(context);
 	}
 
-	private int updateContentRow(Context context, long sourceId, long contentId,
-	  ContentValues values)
+	/**
+	 * Informs the cache manager of a play of the song, for the benefit of
+	 * the eviction policy.
+	 */
+	public void recordPlay(long songId, long time)
 	{
-		return context.getContentResolver().update(Five.Music.Songs.CONTENT_URI, values,
-			getContentWhereClause(sourceId, contentId), null);
+		mIndex.recordAccess(songId, time);
 	}
 
-	private boolean deleteSufficientSpace(Context context, File sdcard, long size)
+	private long getFreeBytes(File sdcard)
 	{
-		ContentResolver cr = null;
-		Cursor c = null;
+		long now = SystemClock.elapsedRealtime();
 
-OUTER:
-		while (true)
+		if (mFreeBytesTime < 0 || now - mFreeBytesTime >= STATFS_INTERVAL)
 		{
 			StatFs fs = new StatFs(sdcard.getAbsolutePath());
+			mFreeBytes = (long)fs.getAvailableBlocks() * fs.getBlockSize();
+			mFreeBytesTime = now;
+		}
 
-			long freeBytes = (long)fs.getAvailableBlocks() * fs.getBlockSize();
-			long necessary = POLICY_LEAVE_FREE - (freeBytes + size);
+		return mFreeBytes;
+	}
 
-			if (necessary <= 0)
-				return true;
+	private long getQuota(Context context)
+	{
+		String quota = PreferenceManager.getDefaultSharedPreferences(context)
+		  .getString(KEY_CACHE_QUOTA, context.getString(R.string.defaultCacheQuota));
+
+		try {
+			return Long.parseLong(quota) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private synchronized CachePolicy getPolicy(Context context)
+	{
+		String name = PreferenceManager.getDefaultSharedPreferences(context)
+		  .getString(KEY_CACHE_POLICY, context.getString(R.string.defaultCachePolicy));
+
+		if (mPolicy == null || name.equals(mPolicyName) == false)
+		{
+			mPolicy = CachePolicy.newInstance(name);
+			mPolicyName = name;
+		}
+
+		return mPolicy;
+	}
+
+	private static long getCapacity(long quota, long usedBytes, long freeBytes)
+	{
+		if (quota > 0)
+			return quota;
 
-			Log.i(TAG, "Hunting for cache entries to delete (need " + necessary + " more bytes)...");
+		return Math.max(usedBytes + freeBytes - POLICY_LEAVE_FREE, 0);
+	}
+
+	/**
+	 * @return
+	 *   Bytes the cache may hold in all: the quota if there is one, else
+	 *   what it holds now and the free space it may yet use. 0 if there is
+	 *   no storage card.
+	 */
+	public synchronized long getCapacity(Context context)
+	{
+		if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED) == false)
+			return 0;
+
+		File sdcard = Environment.getExternalStorageDirectory();
+
+		ensureIndex(context, sdcard);
+
+		return getCapacity(getQuota(context), mIndex.getUsedBytes(),
+		  getFreeBytes(sdcard));
+	}
+
+	private synchronized boolean deleteSufficientSpace(Context context,
+	  File sdcard, long size)
+	{
+		ensureIndex(context, sdcard);
+
+		long freeBytes = getFreeBytes(sdcard);
+		long usedBytes = mIndex.getUsedBytes();
+		long necessary = POLICY_LEAVE_FREE - (freeBytes - size);
+		long quota = getQuota(context);
+
+		if (quota > 0)
+			necessary = Math.max(necessary, usedBytes + size - quota);
+
+		if (necessary > 0)
+		{
+			long capacity = getCapacity(quota, usedBytes, freeBytes);
+
+			if (evict(context, necessary, capacity) == false)
+				return false;
+		}
+
+		/* Counted from now, though it's only written as it downloads. */
+		mFreeBytes -= size;
+
+		return true;
+	}
+
+	private boolean evict(Context context, long necessary, long capacity)
+	{
+		ContentResolver cr = context.getContentResolver();
+
+		/* Make sure we know what's pinned and how everything's been used. */
+		if (mIndex.isReconciled() == false)
+			mIndex.reconcile(cr);
+
+		List<CachePolicy.Entry> entries = mIndex.getEvictable();
+		ArrayList<CachePolicy.Entry> protectedEntries = new ArrayList<CachePolicy.Entry>();
+
+		long protectFrom = System.currentTimeMillis() - PROTECT_RECENT;
 
-			/* Initialize lazy so that for the common case of there
-			 * being enough space we don't have to perform a query. */
-			if (cr == null)
+		Iterator<CachePolicy.Entry> i = entries.iterator();
+		while (i.hasNext() == true)
+		{
+			CachePolicy.Entry entry = i.next();
+			if (entry.lastAccess >= protectFrom)
 			{
-				cr = context.getContentResolver();
-				c = cr.query(Five.Music.Songs.CONTENT_URI,
-				  new String[] { Five.Music.Songs._ID,
-				    Five.Music.Songs.CACHED_PATH, Five.Music.Songs.SIZE },
-				  Five.Music.Songs.CACHED_PATH + " IS NOT NULL", null,
-				  Five.Music.Songs.CACHED_TIMESTAMP + " ASC");
+				protectedEntries.add(entry);
+				i.remove();
 			}
+		}
 
-			/* Inner loop here to avoid calling StatFs for each cached
-			 * entry delete.  Only call it again to confirm what we
-			 * gathered from the database. */
-			while (necessary >= 0)
-			{
-				if (c.moveToNext() == false)
-					break OUTER;
+		CachePolicy policy = getPolicy(context);
+		policy.order(entries, capacity);
+		policy.order(protectedEntries, capacity);
+		entries.addAll(protectedEntries);
 
-				File f = new File(c.getString(1));
+		Log.i(TAG, "Evicting cache entries (need " + necessary + " more bytes)...");
 
-				if (f.exists() == true)
-				{
-					/* The file's size might differ from the databases as we
-					 * may have an uncommitted, partial cache hit. */
-					long cachedSize = f.length();
+		for (CachePolicy.Entry entry: entries)
+		{
+			if (necessary <= 0)
+				break;
+
+			File f = new File(entry.path);
 
-					if (f.delete() == true)
-						necessary -= cachedSize;
+			if (f.exists() == true)
+			{
+				/* The file's size might differ from the databases as we
+				 * may have an uncommitted, partial cache hit. */
+				long cachedSize = f.length();
+
+				if (f.delete() == true)
+				{
+					necessary -= cachedSize;
+					mFreeBytes += cachedSize;
 				}
 
-				/* Eliminate this entry from the cache. */
-				Uri contentUri =
-				  ContentUris.withAppendedId(Five.Music.Songs.CONTENT_URI,
-				    c.getLong(0));
-				ContentValues cv = new ContentValues();
-				cv.putNull(Five.Music.Songs.CACHED_TIMESTAMP);
-				cv.putNull(Five.Music.Songs.CACHED_PATH);
-				cr.update(contentUri, cv, null, null);
+				RangeMap.getSidecar(f).delete();
 			}
-		}
 
-		if (c != null)
-			c.close();
+			mIndex.remove(entry.path);
 
-		return false;
+			/* Eliminate this entry from the cache, for every song sharing it. */
+			ContentValues cv = new ContentValues();
+			cv.putNull(Five.Music.Songs.CACHED_TIMESTAMP);
+			cv.putNull(Five.Music.Songs.CACHED_PATH);
+			cv.putNull(Five.Music.Songs.CACHED_LENGTH);
+			cv.putNull(Five.Music.Songs.CACHED_VALIDATOR);
+			cr.update(Five.Music.Songs.CONTENT_URI, cv,
+			  Five.Music.Songs.CACHED_PATH + " = ?", new String[] { entry.path });
+
+			policy.onEvicted(entry);
+		}
+
+		return necessary <= 0;
 	}
 
-	private String getExtensionFromMimeType(String mime)
+	private static String getExtensionFromMimeType(String mime)
 	{
 		if (mime.equals("audio/mpeg") == true)
 			return "mp3";
@@ -162,6 +363,21 @@ OUTER:
 		throw new IllegalArgumentException("Unknown mime type " + mime);
 	}
 
+	/**
+	 * @return
+	 *   The song's content hash if it's usable to store the content by, or
+	 *   else null.
+	 */
+	private static String getBlobName(SongItem song)
+	{
+		String hash = song.getContentHash();
+
+		if (hash == null || CONTENT_HASH.matcher(hash).matches() == false)
+			return null;
+
+		return hash.toLowerCase() + '.' + getExtensionFromMimeType(song.getMimeType());
+	}
+
 	/**
 	 * Attempt to carve out sufficient storage from the storage card.
 	 *
@@ -174,6 +390,45 @@ OUTER:
 	private String makeStorage(Context context, long sourceId, long contentId,
 	  String mime, long size)
 	  throws CacheAllocationException
+	{
+		String basePath = makeDirectory(context, String.valueOf(sourceId), size);
+
+		return basePath + '/' + contentId + '.' +
+		  getExtensionFromMimeType(mime);
+	}
+
+	/**
+	 * Like {@link #makeStorage}, but for content stored by hash.
+	 *
+	 * @return
+	 *   Filename for storage, or null if another song is already using it.
+	 */
+	private String makeBlobStorage(Context context, long songId,
+	  String name, long size)
+	  throws CacheAllocationException
+	{
+		String basePath = makeDirectory(context, BLOBS_DIRECTORY, size);
+		String path = basePath + '/' + name;
+
+		/*
+		 * Either it's being downloaded for another song, or else it's
+		 * complete but we've lost track of that. Don't write over it.
+		 */
+		if (mIndex.isShared(path, songId) == true)
+			return null;
+
+		return path;
+	}
+
+	/**
+	 * Ensures the storage card is usable with room for <code>size</code>
+	 * more bytes, and creates the named cache sub-directory.
+	 *
+	 * @return
+	 *   Path to the directory.
+	 */
+	private String makeDirectory(Context context, String name, long size)
+	  throws CacheAllocationException
 	{
 		String state = Environment.getExternalStorageState();
 
@@ -188,17 +443,24 @@ OUTER:
 		if (deleteSufficientSpace(context, sdcard, size) == false)
 			throw new OutOfSpaceException();
 
-		String basePath = sdcard.getAbsolutePath() + "/five/cache/" + sourceId;
-		File basePathFile = new File(basePath);
+		String basePath = sdcard.getAbsolutePath() + "/five/cache/" + name;
 
-		if (basePathFile.exists() == false)
-		{
-			if (basePathFile.mkdirs() == false)
-				throw new CacheAllocationException("Could not create cache directory: " + basePath);
+		synchronized(mDirectories) {
+			if (mDirectories.contains(basePath) == true)
+				return basePath;
+
+			File basePathFile = new File(basePath);
+
+			if (basePathFile.exists() == false)
+			{
+				if (basePathFile.mkdirs() == false)
+					throw new CacheAllocationException("Could not create cache directory: " + basePath);
+			}
+
+			mDirectories.add(basePath);
 		}
 
-		return basePath + '/' + contentId + '.' +
-		  getExtensionFromMimeType(mime);
+		return basePath;
 	}
 
 	/**
@@ -207,46 +469,247 @@ OUTER:
 	 * truncated.  Caller is responsible for calling either
 	 * {@link #commitStorage} or {@link #releaseStorage} when finished.
 	 *
-	 * @throws IllegalStateException
-	 *   Illegal state exception is thrown if another active CacheEntry
-	 *   object has been provided but not released.
+	 * The allocation is recorded against the song in the database on a
+	 * worker thread, shortly after this returns. Until it is committed, the
+	 * new entry is never taken to be complete.
+	 *
+	 * Songs with a content hash are stored by it, unless another song has
+	 * that file in use, in which case this one gets a file of its own.
+	 *
+	 * @param song
+	 *   Song to cache, as given by {@link Songs#getSong}.
 	 *
 	 * @return
 	 *   The path to the allocated storage.
 	 */
-	public String requestStorage(Context context, long sourceId, long contentId)
+	public synchronized String requestStorage(Context context, SongItem song)
 	  throws CacheAllocationException
 	{
-		Cursor c = getContentCursor(context, sourceId, contentId);
+		final long songId = song.getId();
+		long size = song.getSize();
 
-		try {
-			if (c.moveToFirst() == false)
-				throw new IllegalArgumentException("Invalid content");
+		getPolicy(context).onMiss(songId, size);
 
-			long size = c.getLong(c.getColumnIndexOrThrow(Five.Music.Songs.SIZE));
-			String mime = c.getString(c.getColumnIndexOrThrow(Five.Music.Songs.MIME_TYPE));
+		String blobName = getBlobName(song);
+		String blobPath = null;
 
-			String path = makeStorage(context, sourceId, contentId, mime, size);
+		if (blobName != null)
+			blobPath = makeBlobStorage(context, songId, blobName, size);
 
-			ContentValues cv = new ContentValues();
-			cv.put(Five.Music.Songs.CACHED_TIMESTAMP,
-			  System.currentTimeMillis());
-			cv.put(Five.Music.Songs.CACHED_PATH, path);
-			updateContentRow(context, sourceId, contentId, cv);
+		final String path = (blobPath != null) ? blobPath :
+		  makeStorage(context, song.getSourceId(), song.getSyncId(),
+		    song.getMimeType(), size);
+
+		final long now = System.currentTimeMillis();
+
+		mIndex.put(songId, path, size, song.isPinned(), song.getPlayCount(), now);
+
+		final ContentResolver cr = context.getContentResolver();
+
+		getWorker().post(new Runnable() {
+			public void run() {
+				/* Evicted again already; don't resurrect it. */
+				if (mIndex.contains(path) == false)
+					return;
 
-			return path;
+				ContentValues cv = new ContentValues();
+				cv.put(Five.Music.Songs.CACHED_TIMESTAMP, now);
+				cv.put(Five.Music.Songs.CACHED_PATH, path);
+				cv.putNull(Five.Music.Songs.CACHED_LENGTH);
+				cv.putNull(Five.Music.Songs.CACHED_VALIDATOR);
+
+				/* Tiny files can be committed before we get here. */
+				cr.update(Songs.makeUri(songId), cv,
+				  Five.Music.Songs.CACHED_LENGTH + " IS NULL OR " +
+				  Five.Music.Songs.CACHED_PATH + " IS NOT ?",
+				  new String[] { path });
+			}
+		});
+
+		return path;
+	}
+
+	/**
+	 * Looks for the song's content already complete in the cache for
+	 * another song with the same hash, and if it's there, records it as
+	 * cached for this song too.
+	 *
+	 * @return
+	 *   True if the song now shares complete content in the cache.
+	 */
+	public boolean shareStorage(Context context, SongItem song)
+	{
+		String hash = song.getContentHash();
+
+		if (hash == null || getBlobName(song) == null)
+			return false;
+
+		if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED) == false)
+			return false;
+
+		long songId = song.getId();
+
+		Cursor c = context.getContentResolver().query(Five.Music.Songs.CONTENT_URI,
+		  new String[] { Five.Music.Songs.CACHED_PATH, Five.Music.Songs.CACHED_LENGTH,
+		    Five.Music.Songs.CACHED_VALIDATOR },
+		  Five.Music.Songs.CONTENT_HASH + " = ? AND " +
+		    Five.Music.Songs.CACHED_LENGTH + " IS NOT NULL AND " +
+		    Five.Music.Songs._ID + " != " + songId,
+		  new String[] { hash }, null);
+
+		if (c == null)
+			return false;
+
+		String path = null;
+		long length = -1;
+		String validator = null;
+
+		try {
+			while (c.moveToNext() == true)
+			{
+				if (isComplete(c.getString(0), c.getLong(1)) == true)
+				{
+					path = c.getString(0);
+					length = c.getLong(1);
+					validator = c.getString(2);
+					break;
+				}
+			}
 		} finally {
 			c.close();
 		}
+
+		if (path == null)
+			return false;
+
+		synchronized(this) {
+			ensureIndex(context, Environment.getExternalStorageDirectory());
+
+			if (mIndex.addRef(songId, path, song.isPinned()) == false)
+				scheduleReconcile(context);
+		}
+
+		Log.i(TAG, "Sharing cached content " + path + " with songId=" + songId);
+
+		commitStorage(context, songId, path, length, validator);
+
+		return true;
+	}
+
+	/**
+	 * Request storage for a reduced bitrate variant of a content item. Unlike
+	 * {@link #requestStorage}, nothing is recorded against the content
+	 * entry: variants are only kept for as long as they're being played, and
+	 * never stand in for the original in the cache. Any previous variant of
+	 * the same item is overwritten.
+	 *
+	 * @param size
+	 *   Expected size of the variant.
+	 *
+	 * @return
+	 *   The path to the allocated storage.
+	 */
+	public String requestVariantStorage(Context context, long sourceId, long contentId,
+	  String mime, long size)
+	  throws CacheAllocationException
+	{
+		String basePath = makeDirectory(context, VARIANTS_DIRECTORY, size);
+
+		File file = new File(basePath, sourceId + "-" + contentId + '.' +
+		  getExtensionFromMimeType(mime));
+		file.delete();
+		RangeMap.getSidecar(file).delete();
+
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Delete all reduced bitrate variants. Should be called when no variant
+	 * can be in use, such as when the playback service starts.
+	 */
+	public void releaseVariants()
+	{
+		File variants = new File(Environment.getExternalStorageDirectory(),
+		  "five/cache/" + VARIANTS_DIRECTORY);
+
+		if (variants.exists() == false)
+			return;
+
+		try {
+			FileUtils.deleteDirectory(variants);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to delete variants: " + e);
+		}
+	}
+
+	/**
+	 * @param committedLength
+	 *   Length the entry was committed with, or -1 if it hasn't been.
+	 *
+	 * @return
+	 *   True if the cache file at <code>path</code> is a committed entry
+	 *   still holding all of its content.
+	 */
+	public static boolean isComplete(String path, long committedLength)
+	{
+		if (path == null || committedLength < 0)
+			return false;
+
+		File file = new File(path);
+
+		/* The range map outlives the commit only if we crashed while
+		 * writing the file again. */
+		return file.length() == committedLength &&
+		  RangeMap.getSidecar(file).exists() == false;
+	}
+
+	/**
+	 * Works out how much of an uncommitted cache file can be trusted. Only
+	 * what its range map records is known to have reached the disk; without
+	 * one, we don't know that any of it did.
+	 *
+	 * @return
+	 *   Length of the filled range at the start of <code>path</code>, which
+	 *   is where a resumed download picks up, or 0 if it must start over.
+	 *   Ranges filled beyond a gap aren't counted.
+	 */
+	public static long getVerifiedBytes(String path)
+	{
+		File file = new File(path);
+
+		if (RangeMap.getSidecar(file).exists() == false)
+			return 0;
+
+		return RangeMap.load(file).getFilledEnd(0);
 	}
 
 	/**
 	 * Commit cached content to disk.  This indicates that the file is fully
-	 * downloaded and that the cached entry should be tidied.
+	 * downloaded and on disk, and from now on will be taken as complete for
+	 * as long as it keeps the committed length.  Unlike the allocation, the
+	 * commit is recorded before this returns.
+	 *
+	 * @param length
+	 *   Length of the complete file.
+	 * @param validator
+	 *   Entity tag or modification date the content was served with, or
+	 *   null.
 	 */
-	public void commitStorage(long sourceId, long contentId)
+	public void commitStorage(Context context, long songId, String path,
+	  long length, String validator)
 	{
-		/* XXX. */
+		/* Evicted while we were downloading it. */
+		if (new File(path).exists() == false)
+			return;
+
+		ContentValues cv = new ContentValues();
+		cv.put(Five.Music.Songs.CACHED_TIMESTAMP, System.currentTimeMillis());
+		cv.put(Five.Music.Songs.CACHED_PATH, path);
+		cv.put(Five.Music.Songs.CACHED_LENGTH, length);
+		cv.put(Five.Music.Songs.CACHED_VALIDATOR, validator);
+
+		context.getContentResolver().update(Songs.makeUri(songId), cv,
+		  null, null);
 	}
 
 	/**
@@ -272,6 +735,12 @@ OUTER:
 		File fiveStorage = new File(Environment.getExternalStorageDirectory(), "five");
 		if (fiveStorage.exists())
 			FileUtils.deleteDirectory(fiveStorage);
+
+		mIndex.clear();
+
+		synchronized(mDirectories) {
+			mDirectories.clear();
+		}
 	}
 
 	/**
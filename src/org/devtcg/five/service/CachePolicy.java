@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides which cached content goes first when room has to be made in the
+ * cache. Policies go by how content has actually been used: when it was
+ * last played and how often, with content never played counting from when
+ * it was cached.
+ */
+abstract class CachePolicy
+{
+	/** Evicts the least recently played content first. */
+	public static final String LRU = "lru";
+
+	/** Evicts the least often played content first. */
+	public static final String LFU = "lfu";
+
+	/**
+	 * Balances recency against frequency, adapting to which of the two
+	 * would have kept the content asked for again.
+	 */
+	public static final String ARC = "arc";
+
+	/** A cached item which may be evicted. */
+	public static class Entry
+	{
+		public final long songId;
+		public final String path;
+		public final long size;
+
+		/** Time the item was last played, or else cached. */
+		public final long lastAccess;
+
+		/** Number of times the item has been played. */
+		public final int accessCount;
+
+		public Entry(long songId, String path, long size, long lastAccess,
+		  int accessCount)
+		{
+			this.songId = songId;
+			this.path = path;
+			this.size = size;
+			this.lastAccess = lastAccess;
+			this.accessCount = accessCount;
+		}
+	}
+
+	/** Least recently accessed first. */
+	protected static final Comparator<Entry> RECENCY_ORDER = new Comparator<Entry>()
+	{
+		public int compare(Entry a, Entry b)
+		{
+			return a.lastAccess < b.lastAccess ? -1 :
+			  (a.lastAccess == b.lastAccess ? 0 : 1);
+		}
+	};
+
+	/**
+	 * @param name
+	 *   One of {@link #LRU}, {@link #LFU} or {@link #ARC}; anything else
+	 *   gives the default.
+	 */
+	public static CachePolicy newInstance(String name)
+	{
+		if (LRU.equals(name) == true)
+			return new LruCachePolicy();
+		else if (LFU.equals(name) == true)
+			return new LfuCachePolicy();
+		else
+			return new ArcCachePolicy();
+	}
+
+	/**
+	 * Sorts entries into the order in which they should be evicted.
+	 *
+	 * @param entries
+	 *   Everything which may be evicted.
+	 * @param capacity
+	 *   Bytes the cache may hold in all.
+	 */
+	public abstract void order(List<Entry> entries, long capacity);
+
+	/**
+	 * Informs the policy that an entry has been evicted.
+	 */
+	public void onEvicted(Entry entry) {}
+
+	/**
+	 * Informs the policy that content not in the cache is about to be.
+	 */
+	public void onMiss(long songId, long size) {}
+}
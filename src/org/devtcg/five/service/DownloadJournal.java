@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Small on-disk record of the downloads in flight, so that those which are
+ * interrupted by the service being killed can be picked up again when it
+ * next starts. The whole journal is rewritten on each change; it only ever
+ * holds a handful of entries.
+ */
+class DownloadJournal
+{
+	private static final String TAG = "DownloadJournal";
+
+	private static final int FILE_FORMAT = 1;
+
+	private final File mFile;
+	private final File mTmpFile;
+
+	private final LinkedHashMap<String, Entry> mEntries =
+	  new LinkedHashMap<String, Entry>();
+
+	public static class Entry
+	{
+		public final long songId;
+		public final String url;
+		public final String path;
+
+		/** Bytes available contiguously from the start of the file. */
+		public long offset;
+
+		public int priority;
+
+		/** Entity tag or last modified date of the content, or null. */
+		public String validator;
+
+		public Entry(long songId, String url, String path, long offset,
+		  int priority, String validator)
+		{
+			this.songId = songId;
+			this.url = url;
+			this.path = path;
+			this.offset = offset;
+			this.priority = priority;
+			this.validator = validator;
+		}
+	}
+
+	public DownloadJournal(File file)
+	{
+		mFile = file;
+		mTmpFile = new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Replaces whatever we hold with the journal last written to disk.
+	 *
+	 * @return The entries read, in the order they were added.
+	 */
+	public synchronized List<Entry> load()
+	{
+		mEntries.clear();
+
+		DataInputStream in = null;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+			  new FileInputStream(mFile), 1024));
+
+			if (in.readInt() != FILE_FORMAT)
+				return new ArrayList<Entry>();
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				long songId = in.readLong();
+				String url = in.readUTF();
+				String path = in.readUTF();
+				long offset = in.readLong();
+				int priority = in.readInt();
+				String validator = in.readBoolean() ? in.readUTF() : null;
+
+				mEntries.put(url, new Entry(songId, url, path, offset,
+				  priority, validator));
+			}
+		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable download journal: " + e);
+			mEntries.clear();
+		} finally {
+			if (in != null)
+				try { in.close(); } catch (IOException e) {}
+		}
+
+		return new ArrayList<Entry>(mEntries.values());
+	}
+
+	public synchronized void put(Entry entry)
+	{
+		mEntries.put(entry.url, entry);
+		save();
+	}
+
+	/**
+	 * Records progress on a journaled download.
+	 *
+	 * @return False if the download is not in the journal.
+	 */
+	public synchronized boolean update(String url, long offset, int priority,
+	  String validator)
+	{
+		Entry entry = mEntries.get(url);
+		if (entry == null)
+			return false;
+
+		if (entry.offset == offset && entry.priority == priority &&
+		  (validator == null ? entry.validator == null :
+		    validator.equals(entry.validator)))
+			return true;
+
+		entry.offset = offset;
+		entry.priority = priority;
+		entry.validator = validator;
+		save();
+
+		return true;
+	}
+
+	public synchronized void remove(String url)
+	{
+		if (mEntries.remove(url) != null)
+			save();
+	}
+
+	public synchronized void clear()
+	{
+		mEntries.clear();
+		mFile.delete();
+	}
+
+	private void save()
+	{
+		if (mEntries.isEmpty() == true)
+		{
+			mFile.delete();
+			return;
+		}
+
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+			  new FileOutputStream(mTmpFile), 1024));
+
+			out.writeInt(FILE_FORMAT);
+			out.writeInt(mEntries.size());
+
+			for (Entry entry: mEntries.values())
+			{
+				out.writeLong(entry.songId);
+				out.writeUTF(entry.url);
+				out.writeUTF(entry.path);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.priority);
+
+				out.writeBoolean(entry.validator != null);
+				if (entry.validator != null)
+					out.writeUTF(entry.validator);
+			}
+
+			out.close();
+			out = null;
+
+			mTmpFile.renameTo(mFile);
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't save download journal", e);
+		} finally {
+			if (out != null)
+				try { out.close(); } catch (IOException e) {}
+		}
+	}
+}
@@ -38,4 +38,20 @@ public class IPlaylistBufferListenerCallbackList extends
 
 		finishBroadcast();
 	}
+
+	public void broadcastOnBufferHealthUpdate(long songId, int secondsAhead,
+	  int secondsNeeded)
+	{
+		int N = beginBroadcast();
+
+		for (int i = 0; i < N; i++)
+		{
+			try {
+				getBroadcastItem(i).onBufferHealthUpdate(songId, secondsAhead,
+				  secondsNeeded);
+			} catch (RemoteException e) {}
+		}
+
+		finishBroadcast();
+	}
 }
@@ -94,4 +94,18 @@ public class IPlaylistDownloadListenerCallbackList extends
 
 		finishBroadcast();
 	}
+
+	public void broadcastOnPinProgressUpdate(int complete, int total)
+	{
+		int N = beginBroadcast();
+
+		for (int i = 0; i < N; i++)
+		{
+			try {
+				getBroadcastItem(i).onPinProgressUpdate(complete, total);
+			} catch (RemoteException e) {}
+		}
+
+		finishBroadcast();
+	}
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import org.devtcg.five.provider.Five;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * Queue of pinned songs still to be downloaded for offline use. The pinned
+ * albums, artists and playlists are recorded in the provider, which keeps
+ * each song's pinned flag in step with them; the queue itself is just rebuilt
+ * from there whenever the service starts, pins change, or a sync completes.
+ */
+class PinQueue
+{
+	private final Context mContext;
+
+	/** Pinned songs not yet complete in the cache, in download order. */
+	private final LinkedList<Long> mPending = new LinkedList<Long>();
+
+	/** Pinned songs we've given up on until the queue is next reloaded. */
+	private final HashSet<Long> mFailed = new HashSet<Long>();
+
+	private int mTotal;
+
+	public PinQueue(Context context)
+	{
+		mContext = context;
+	}
+
+	private static String getSelection(int kind, long id)
+	{
+		switch (kind)
+		{
+		case PlaylistService.PIN_ALBUM:
+			return Five.Music.Songs.ALBUM_ID + " = " + id;
+		case PlaylistService.PIN_ARTIST:
+			return Five.Music.Songs.ARTIST_ID + " = " + id;
+		case PlaylistService.PIN_PLAYLIST:
+			return Five.Music.Songs._ID + " IN (SELECT " +
+			  Five.Music.PlaylistSongs.SONG_ID + " FROM " +
+			  Five.Music.PlaylistSongs.SQL.TABLE + " WHERE " +
+			  Five.Music.PlaylistSongs.PLAYLIST_ID + " = " + id + ")";
+		default:
+			throw new IllegalArgumentException("Unknown pin kind " + kind);
+		}
+	}
+
+	/**
+	 * Pins or unpins an album, artist or playlist, then reloads the queue.
+	 * Songs which are also in another pinned collection stay pinned.
+	 *
+	 * @return
+	 *   Number of songs in the collection.
+	 */
+	public int setPinned(int kind, long id, boolean pinned)
+	{
+		ContentResolver cr = mContext.getContentResolver();
+
+		/* Checks the kind before anything is stored. */
+		String selection = getSelection(kind, id);
+
+		if (pinned == true)
+		{
+			ContentValues values = new ContentValues();
+			values.put(Five.Music.Pins.KIND, kind);
+			values.put(Five.Music.Pins.ITEM_ID, id);
+
+			cr.insert(Five.Music.Pins.CONTENT_URI, values);
+		}
+		else
+		{
+			cr.delete(Five.Music.Pins.CONTENT_URI, Five.Music.Pins.KIND + " = " +
+			  kind + " AND " + Five.Music.Pins.ITEM_ID + " = " + id, null);
+		}
+
+		reload();
+
+		int count = 0;
+
+		Cursor c = cr.query(Five.Music.Songs.CONTENT_URI,
+		  new String[] { Five.Music.Songs._ID }, selection, null, null);
+
+		if (c != null)
+		{
+			try {
+				count = c.getCount();
+			} finally {
+				c.close();
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Picks up songs pinned or unpinned behind our back, as by a sync which
+	 * brought new songs into a pinned collection.
+	 */
+	public void reload()
+	{
+		CacheManager.getInstance().invalidateIndex(mContext);
+		load();
+	}
+
+	/**
+	 * Rebuilds the queue from the songs currently pinned, giving those which
+	 * failed to download before another chance.
+	 */
+	public void load()
+	{
+		Cursor c = mContext.getContentResolver().query(Five.Music.Songs.CONTENT_URI,
+		  new String[] { Five.Music.Songs._ID, Five.Music.Songs.CACHED_PATH,
+		    Five.Music.Songs.CACHED_LENGTH },
+		  Five.Music.Songs.PINNED + " != 0", null,
+		  Five.Music.Songs.ALBUM_ID + " ASC, " + Five.Music.Songs.TRACK + " ASC");
+
+		if (c == null)
+			return;
+
+		try {
+			synchronized(this) {
+				mPending.clear();
+				mFailed.clear();
+				mTotal = c.getCount();
+
+				while (c.moveToNext() == true)
+				{
+					long length = c.isNull(2) ? -1 : c.getLong(2);
+
+					if (CacheManager.isComplete(c.getString(1), length) == false)
+						mPending.add(c.getLong(0));
+				}
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @return
+	 *   The next pinned song to download, or -1 if there are none.
+	 */
+	public synchronized long peek()
+	{
+		return mPending.isEmpty() ? -1 : mPending.getFirst();
+	}
+
+	public synchronized boolean isPending(long songId)
+	{
+		return mPending.contains(songId);
+	}
+
+	/**
+	 * Takes a song off the queue now that it's complete in the cache.
+	 */
+	public synchronized void complete(long songId)
+	{
+		mPending.remove(songId);
+	}
+
+	/**
+	 * Takes a song off the queue which couldn't be downloaded. It will be
+	 * tried again when the queue is reloaded.
+	 */
+	public synchronized void fail(long songId)
+	{
+		if (mPending.remove(songId) == true)
+			mFailed.add(songId);
+	}
+
+	/**
+	 * @return
+	 *   Number of pinned songs complete in the cache.
+	 */
+	public synchronized int getComplete()
+	{
+		return mTotal - mPending.size() - mFailed.size();
+	}
+
+	/**
+	 * @return
+	 *   Number of pinned songs.
+	 */
+	public synchronized int getTotal()
+	{
+		return mTotal;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+
+import org.devtcg.five.provider.Five;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Journal of playback events. Events are held in memory as they happen and
+ * written to the provider in batches from a background thread, so that
+ * recording them never puts a database write on the playback path.
+ * <p>
+ * Anything still buffered when the process dies without {@link #close()}
+ * is lost; that's at most a few events, which is fine for statistics.
+ * Only the most recent {@link #MAX_EVENTS} events are kept.
+ */
+class PlayHistory
+{
+	private static final String TAG = "PlayHistory";
+
+	/** Number of buffered events which triggers a write straight away. */
+	private static final int FLUSH_EVENTS = 20;
+
+	/** Longest we'll hold on to an event before writing it. */
+	private static final long FLUSH_DELAY = 30 * 1000;
+
+	/** Events kept in the history; older ones go as new ones are written. */
+	private static final int MAX_EVENTS = 10000;
+
+	private final Context mContext;
+
+	private final Handler mWorker;
+
+	private ArrayList<ContentValues> mPending = new ArrayList<ContentValues>();
+
+	private final Runnable mFlush = new Runnable()
+	{
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	public PlayHistory(Context context)
+	{
+		mContext = context;
+
+		HandlerThread thread = new HandlerThread(TAG,
+		  Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+
+		mWorker = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Records an event. Cheap enough to call from any thread.
+	 *
+	 * @param event
+	 *   One of the {@link Five.Music.History} EVENT_* constants.
+	 * @param position
+	 *   Playback position in milliseconds.
+	 */
+	public void add(long songId, int event, long position)
+	{
+		ContentValues values = new ContentValues();
+		values.put(Five.Music.History.SONG_ID, songId);
+		values.put(Five.Music.History.EVENT, event);
+		values.put(Five.Music.History.POSITION, position);
+		values.put(Five.Music.History.TIMESTAMP, System.currentTimeMillis());
+
+		int count;
+
+		synchronized(this) {
+			mPending.add(values);
+			count = mPending.size();
+		}
+
+		if (count >= FLUSH_EVENTS)
+		{
+			mWorker.removeCallbacks(mFlush);
+			mWorker.post(mFlush);
+		}
+		else if (count == 1)
+			mWorker.postDelayed(mFlush, FLUSH_DELAY);
+	}
+
+	private void flush()
+	{
+		ArrayList<ContentValues> batch;
+
+		synchronized(this) {
+			if (mPending.isEmpty() == true)
+				return;
+
+			batch = mPending;
+			mPending = new ArrayList<ContentValues>();
+		}
+
+		try {
+			ContentResolver cr = mContext.getContentResolver();
+
+			cr.bulkInsert(Five.Music.History.CONTENT_URI,
+			  batch.toArray(new ContentValues[batch.size()]));
+
+			cr.delete(Five.Music.History.CONTENT_URI,
+			  Five.Music.History._ID + " <= (SELECT MAX(" + Five.Music.History._ID +
+			    ") FROM " + Five.Music.History.SQL.TABLE + ") - " + MAX_EVENTS, null);
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't write " + batch.size() + " playback events", e);
+		}
+	}
+
+	/**
+	 * Writes out whatever is still buffered, then stops the worker thread.
+	 */
+	public void close()
+	{
+		mWorker.removeCallbacks(mFlush);
+
+		/* Quit from the worker itself, so the flush isn't jumped. */
+		mWorker.post(new Runnable() {
+			public void run() {
+				flush();
+				mWorker.getLooper().quit();
+			}
+		});
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import org.devtcg.five.util.streaming.DownloadManager;
+import org.devtcg.five.util.streaming.DownloadProgress;
+
+/**
+ * Tracks how much audio is buffered ahead of the playhead for a track being
+ * played, and how much should be buffered before playback of it starts.
+ * <p>
+ * Buffered amounts are measured in seconds of audio, converting from bytes
+ * at the track's average byte rate. This is only approximate for variable
+ * bitrate files, but it's close enough to judge whether playback is at
+ * risk of catching up with the download.
+ */
+class PlaybackBuffer
+{
+	/** Least amount of audio to buffer before starting playback. */
+	private static final int MIN_START_BUFFER = 3;
+
+	/** Most we'll make the user wait for, even if we expect to run dry. */
+	private static final int MAX_START_BUFFER = 60;
+
+	/** Buffer used when we've no idea of the download rate yet. */
+	private static final int DEFAULT_START_BUFFER = 10;
+
+	/** Fraction of the measured throughput we count on keeping. */
+	private static final float THROUGHPUT_SAFETY = 0.8f;
+
+	/** Less audio than this ahead of a playing track is an underrun. */
+	public static final int UNDERRUN_THRESHOLD = 1;
+
+	/** Audio needed ahead again before an underrun is considered over. */
+	public static final int RECOVERY_THRESHOLD = 3;
+
+	public final long songId;
+
+	/** Download of the track, or null if it is complete on disk. */
+	public final DownloadManager.Download download;
+
+	/** Running time of the track in seconds. */
+	private final int mLength;
+
+	/** Estimated bytes per second of audio, until the real length is known. */
+	private final float mByteRate;
+
+	/** Number of underruns seen during playback of this track. */
+	public int underruns;
+
+	/** Set while we're in an underrun, so that each is counted once. */
+	public boolean underrunning;
+
+	/**
+	 * @param byteRate
+	 *            Estimated average bytes per second of audio in the file
+	 *            being played.
+	 */
+	public PlaybackBuffer(long songId, DownloadManager.Download download,
+	  int length, float byteRate)
+	{
+		this.songId = songId;
+		this.download = download;
+		mLength = length;
+		mByteRate = byteRate;
+	}
+
+	/**
+	 * @return Average bytes per second of audio in the file, from the
+	 *         content length once the server has told us.
+	 */
+	public float getByteRate()
+	{
+		if (download != null && mLength > 0)
+		{
+			long length = download.getDownloadProgress().getLength();
+			if (length > 0)
+				return (float)length / mLength;
+		}
+
+		return mByteRate;
+	}
+
+	/**
+	 * @param position
+	 *            Playhead position in milliseconds.
+	 * @return Seconds of audio available ahead of <code>position</code>.
+	 */
+	public int getSecondsAhead(int position)
+	{
+		/* Without a running time, only the download can tell us. */
+		int remaining = mLength > 0 ?
+		  Math.max(mLength - (position / 1000), 0) : Integer.MAX_VALUE;
+
+		if (download == null)
+			return mLength > 0 ? remaining : 0;
+
+		float byteRate = getByteRate();
+		if (byteRate <= 0)
+			return 0;
+
+		DownloadProgress progress = download.getDownloadProgress();
+
+		long playhead = (long)((position / 1000f) * byteRate);
+		long available = progress.getAvailable(playhead);
+
+		long length = progress.getLength();
+		if (length >= 0 && available >= length)
+			return remaining;
+
+		return (int)Math.min((available - playhead) / byteRate, remaining);
+	}
+
+	/**
+	 * Works out how much audio to buffer before starting playback such that,
+	 * at the given download rate, the download stays ahead of the playhead
+	 * all the way to the end of the track.
+	 *
+	 * @param bytesPerSecond
+	 *            Measured download throughput, or -1 if unknown.
+	 * @return Seconds of audio to buffer before starting.
+	 */
+	public int getStartThreshold(float bytesPerSecond)
+	{
+		if (download == null)
+			return 0;
+
+		float byteRate = getByteRate();
+
+		if (mLength <= 0 || bytesPerSecond <= 0 || byteRate <= 0)
+			return DEFAULT_START_BUFFER;
+
+		float ratio = (bytesPerSecond * THROUGHPUT_SAFETY) / byteRate;
+
+		/*
+		 * Downloading at a fraction r of the playback rate, the download of
+		 * a track lasting L seconds finishes L / r seconds from now; we can
+		 * afford to start once L (1 - r) seconds are buffered.
+		 */
+		int needed = MIN_START_BUFFER;
+		if (ratio < 1)
+			needed = Math.max(needed, (int)Math.ceil(mLength * (1 - ratio)));
+
+		return Math.min(Math.min(needed, MAX_START_BUFFER), mLength);
+	}
+}
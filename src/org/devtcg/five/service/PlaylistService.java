@@ -32,6 +32,7 @@ import java.util.Set;
 import java.util.Map.Entry;
 
 import org.devtcg.five.Constants;
+import org.devtcg.five.R;
 import org.devtcg.five.provider.Five;
 import org.devtcg.five.provider.util.SongItem;
 import org.devtcg.five.provider.util.Songs;
@@ -46,21 +47,19 @@ import org.devtcg.five.util.streaming.TailStream;
 
 import android.app.Service;
 import android.content.BroadcastReceiver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.RemoteException;
+import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -76,6 +75,31 @@ public class PlaylistService extends Service implements
 	private static final String STATE_FILE_TMP = STATE_FILE + ".tmp";
 	private static final int STATE_FILE_FORMAT = 3;
 
+	private static final String JOURNAL_FILE = "download_journal";
+
+	/** Preference holding the maximum number of tracks to prefetch. */
+	public static final String KEY_PREFETCH_DEPTH = "prefetch_depth";
+
+	/** Preference enabling multi-connection downloads of large files. */
+	public static final String KEY_SEGMENTED_DOWNLOADS = "segmented_downloads";
+
+	/** Preference holding the percentage of the cache to precache into. */
+	public static final String KEY_PRECACHE_SHARE = "precache_share";
+
+	/* Kinds of collection which can be pinned for offline use. */
+	public static final int PIN_ALBUM = Five.Music.Pins.KIND_ALBUM;
+	public static final int PIN_ARTIST = Five.Music.Pins.KIND_ARTIST;
+	public static final int PIN_PLAYLIST = Five.Music.Pins.KIND_PLAYLIST;
+
+	/**
+	 * Priority of downloads for pinned songs: behind anything wanted for
+	 * playback, but still making use of the link when it's otherwise idle.
+	 */
+	private static final int PRIORITY_PIN = 100;
+
+	/** Priority of precache downloads, which give way to pinned songs. */
+	private static final int PRIORITY_PRECACHE = 200;
+
 	/* Lock synchronizing resource access from binder threads.  This is more
 	 * of a hint than a rule as we know that only one thread will be making
 	 * changes to the playlist state at any time. */
@@ -83,10 +107,57 @@ public class PlaylistService extends Service implements
 
 	SongDownloadManager mManager;
 
+	/** Downloads in flight, to be resumed if the service is killed. */
+	DownloadJournal mJournal;
+
+	/** Pinned songs still to be downloaded for offline use. */
+	PinQueue mPins;
+
+	/** Song whose pinned download is in flight, or -1. */
+	volatile long mPinSongId = -1;
+
+	/** Songs to download ahead of time while charging on Wi-Fi. */
+	PrecacheQueue mPrecache;
+
+	/** Song whose precache download is in flight, or -1. */
+	volatile long mPrecacheSongId = -1;
+
+	PrefetchScheduler mScheduler;
+
+	BitrateSelector mBitrates;
+
+	/**
+	 * Completely downloaded reduced bitrate variants, by song id. These are
+	 * kept out of the cache proper, so we track them ourselves.
+	 */
+	final Map<Long, String> mVariants =
+	  Collections.synchronizedMap(new HashMap<Long, String>());
+
 	CacheManager mCacheMgr = null;
 
 	StreamMediaPlayer mPlayer = null;
 
+	/**
+	 * Second player, prepared on the next track while the current one plays
+	 * so that advancing to it is just a matter of swapping players. Each
+	 * player has its own local streaming server.
+	 */
+	StreamMediaPlayer mNextPlayer = null;
+
+	/** Song mNextPlayer is prepared (or preparing) on, or -1. */
+	long mNextSongId = -1;
+	volatile boolean mNextPrepared = false;
+
+	/* Buffer state of the tracks on mPlayer and mNextPlayer. */
+	PlaybackBuffer mBuffer;
+	PlaybackBuffer mNextBuffer;
+
+	/**
+	 * Set when the player is prepared but holding off on starting until
+	 * enough audio is buffered.
+	 */
+	volatile boolean mStartPending = false;
+
 	final List<Long> mPlaylist =
 	  Collections.synchronizedList(new ArrayList<Long>(50));
 
@@ -95,6 +166,12 @@ public class PlaylistService extends Service implements
 	volatile boolean mPaused = false;
 	volatile boolean mPrepared = false;
 
+	/** Journal of plays, completions and skips. */
+	PlayHistory mHistory;
+
+	/** Set once the current track has played to the end. */
+	volatile boolean mCompleted = false;
+
 	/**
 	 * Tracks whether there are activities currently bound to the service so
 	 * that we can determine when it would be safe to call stopSelf().
@@ -132,15 +209,26 @@ public class PlaylistService extends Service implements
 		mPlayer = new StreamMediaPlayer();
 		mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
 
+		mNextPlayer = new StreamMediaPlayer();
+		mNextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+
 		mChangeListeners = new IPlaylistChangeListenerCallbackList();
 		mMoveListeners = new IPlaylistMoveListenerCallbackList();
 		mDownloadListeners = new IPlaylistDownloadListenerCallbackList();
 		mBufferListeners = new IPlaylistBufferListenerCallbackList();
 
+		mJournal = new DownloadJournal(getFileStreamPath(JOURNAL_FILE));
 		mManager = new SongDownloadManager(this);
+		mScheduler = new PrefetchScheduler(mManager.getThroughputEstimator());
+		mBitrates = new BitrateSelector(mManager.getThroughputEstimator());
 
 		mCacheMgr = CacheManager.getInstance();
 
+		mHistory = new PlayHistory(this);
+
+		/* Left over from a previous run; we no longer know what they are. */
+		mCacheMgr.releaseVariants();
+
 		/* When the service dies we attempt to serialize playlist state to
 		 * disk.  Check for, and recover from, this state file. */
 		try {
@@ -149,6 +237,21 @@ public class PlaylistService extends Service implements
 			Log.e(TAG, "Couldn't recover state!", e);
 		}
 
+		resumeJournaledDownloads();
+
+		/* Carry on with any pinned songs not yet downloaded. */
+		mPins = new PinQueue(this);
+		mPins.load();
+		pinCheck();
+
+		mPrecache = new PrecacheQueue(this);
+		precacheCheck();
+
+		/* Precache only while charging. */
+		IntentFilter powerFilter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+		powerFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+		registerReceiver(mPowerReceiver, powerFilter);
+
 		/* Detect when the headphone jack is suddenly unplugged. */
 		registerReceiver(mNoisyReceiver,
 		  new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY));
@@ -158,6 +261,10 @@ public class PlaylistService extends Service implements
 		 * stalled or failed downloads. */
 		registerReceiver(mConnectivityReceiver,
 		  new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+		/* A sync may bring new songs into a pinned collection. */
+		registerReceiver(mSyncReceiver,
+		  new IntentFilter(Constants.ACTION_SYNC_END));
 	}
 
 	@Override
@@ -169,8 +276,15 @@ public class PlaylistService extends Service implements
 
 		saveStateQuietly();
 
+		mHistory.close();
+
+		mPrecache.close();
+		mHandler.removeCallbacks(mPrecacheLoaded);
+
 		unregisterReceiver(mNoisyReceiver);
 		unregisterReceiver(mConnectivityReceiver);
+		unregisterReceiver(mPowerReceiver);
+		unregisterReceiver(mSyncReceiver);
 
 		TelephonyManager tm =
 		  (TelephonyManager)getSystemService(TELEPHONY_SERVICE);
@@ -184,9 +298,15 @@ public class PlaylistService extends Service implements
 			mDownloadListeners.kill();
 			mBufferListeners.kill();
 
+			mBufferMonitor.cancel();
+
 			mPlayer.reset();
 			mPlayer.release();
 			mPlayer = null;
+
+			mNextPlayer.reset();
+			mNextPlayer.release();
+			mNextPlayer = null;
 		}
 
 		mWakeLock.release();
@@ -222,6 +342,29 @@ public class PlaylistService extends Service implements
 					Log.d(Constants.TAG, "PlaylistService failed to start", e);
 			}
 		}
+		else if (Constants.ACTION_PRECACHE.equals(intent.getAction()))
+		{
+			precacheCheck();
+
+			/* Started just for this; don't linger if there's nothing to do. */
+			if (mPrecacheSongId < 0 && mPinSongId < 0 && mActive == false &&
+			  (mPlaying == false || mPaused == true))
+				mHandler.deferredStopSelf();
+		}
+	}
+
+	/**
+	 * Starts the service to precache songs in the background, if the device
+	 * is charging on Wi-Fi and some of the cache is set aside for it.
+	 */
+	public static void requestPrecache(Context context)
+	{
+		if (PrecacheQueue.getShare(context) <= 0 ||
+		  PrecacheQueue.isAllowed(context) == false)
+			return;
+
+		context.startService(new Intent(Constants.ACTION_PRECACHE, null,
+		  context, PlaylistService.class));
 	}
 
 	public void saveState()
@@ -389,6 +532,13 @@ public class PlaylistService extends Service implements
 			switch (msg.what)
 			{
 			case DEFERRED_STOP:
+				/* Pinned and precache downloads keep us going; pinCheck()
+				 * and precacheCheck() reschedule the stop once they're
+				 * done, as does choosing the songs to precache. */
+				if (mPinSongId >= 0 || mPrecacheSongId >= 0 ||
+				  mPrecache.isLoading() == true)
+					break;
+
 				stopSelf();
 				break;
 			default:
@@ -414,6 +564,171 @@ public class PlaylistService extends Service implements
 		}
 	};
 
+	private final BufferMonitor mBufferMonitor = new BufferMonitor();
+	private class BufferMonitor extends Handler
+	{
+		/* How often to measure while the playing track is downloading. */
+		private static final long CHECK_INTERVAL = 1000;
+
+		private static final int CHECK = 0;
+
+		public void handleMessage(Message msg)
+		{
+			switch (msg.what)
+			{
+			case CHECK:
+				checkBuffer();
+				break;
+			default:
+				super.handleMessage(msg);
+			}
+		}
+
+		/**
+		 * Measures the playing track's buffer now, and then periodically for
+		 * as long as it is downloading.
+		 */
+		public void check()
+		{
+			removeMessages(CHECK);
+			sendEmptyMessage(CHECK);
+		}
+
+		public void cancel()
+		{
+			removeMessages(CHECK);
+		}
+
+		private float getThroughput()
+		{
+			return mManager.getThroughputEstimator().getBytesPerSecond();
+		}
+
+		private boolean isDownloadFinished(PlaybackBuffer buffer)
+		{
+			return buffer.download == null ||
+			  buffer.download.getDownloadProgress().isFinished() == true;
+		}
+
+		/**
+		 * @return True if enough of the prepared track is buffered to start
+		 *         playing it without expecting to catch up with the download.
+		 */
+		public boolean isBufferedToStart(PlaybackBuffer buffer)
+		{
+			if (isDownloadFinished(buffer) == true)
+				return true;
+
+			int needed = buffer.getStartThreshold(getThroughput());
+			return buffer.getSecondsAhead(mPlayer.getCurrentPosition()) >= needed;
+		}
+
+		/**
+		 * @return How much of what's needed to start the prepared track is
+		 *         buffered, as a percentage; 100 once it may start.
+		 */
+		public int getStartPercent(PlaybackBuffer buffer)
+		{
+			if (isBufferedToStart(buffer) == true)
+				return 100;
+
+			int needed = Math.max(buffer.getStartThreshold(getThroughput()), 1);
+			int ahead = Math.max(buffer.getSecondsAhead(mPlayer.getCurrentPosition()), 0);
+
+			return Math.min(ahead * 100 / needed, 99);
+		}
+
+		private void checkBuffer()
+		{
+			long songId;
+			int ahead;
+			int needed;
+			int percent = -1;
+			boolean finished;
+
+			synchronized(mBinderLock) {
+				PlaybackBuffer buffer = mBuffer;
+				if (mPlaying == false || buffer == null)
+					return;
+
+				songId = buffer.songId;
+
+				int position = (mPrepared == true) ? mPlayer.getCurrentPosition() : 0;
+				float throughput = getThroughput();
+
+				ahead = buffer.getSecondsAhead(position);
+				needed = buffer.getStartThreshold(throughput);
+				finished = isDownloadFinished(buffer);
+
+				if (mStartPending == true)
+				{
+					if (ahead >= needed || finished == true)
+					{
+						Log.i(TAG, "Buffered " + ahead + "s of songId=" + songId +
+						  " (wanted " + needed + "s), starting playback");
+
+						mStartPending = false;
+						if (mPaused == false)
+							mPlayer.start();
+
+						percent = 100;
+					}
+					else
+						percent = Math.min(ahead * 100 / needed, 99);
+				}
+				else if (mPrepared == true && mPaused == false && finished == false)
+				{
+					if (ahead < PlaybackBuffer.UNDERRUN_THRESHOLD)
+					{
+						if (buffer.underrunning == false)
+						{
+							buffer.underrunning = true;
+							buffer.underruns++;
+							logUnderrun(buffer, position, ahead, throughput);
+							percent = 0;
+						}
+					}
+					else if (buffer.underrunning == true &&
+					  ahead >= PlaybackBuffer.RECOVERY_THRESHOLD)
+					{
+						Log.i(TAG, "Recovered from underrun on songId=" + songId);
+						buffer.underrunning = false;
+						percent = 100;
+					}
+				}
+			}
+
+			if (percent >= 0)
+				mBufferListeners.broadcastOnBufferingUpdate(songId, percent);
+
+			mBufferListeners.broadcastOnBufferHealthUpdate(songId, ahead, needed);
+
+			/* Nothing more can change once the whole track is on disk. */
+			if (finished == false)
+				sendEmptyMessageDelayed(CHECK, CHECK_INTERVAL);
+		}
+
+		private void logUnderrun(PlaybackBuffer buffer, int position, int ahead,
+		  float throughput)
+		{
+			StringBuilder b = new StringBuilder();
+
+			b.append("Buffer underrun #").append(buffer.underruns);
+			b.append(" on songId=").append(buffer.songId);
+			b.append(" at ").append(position / 1000).append("s");
+			b.append(": ").append(ahead).append("s ahead");
+			b.append(", audio ").append((int)buffer.getByteRate()).append(" B/s");
+			b.append(", link ").append((int)throughput).append(" B/s");
+			b.append(", download state ").append(buffer.download.getDownloadState());
+
+			String message = buffer.download.getStateMessage();
+			if (message != null)
+				b.append(" (").append(message).append(')');
+
+			Log.w(TAG, b.toString());
+		}
+	};
+
 	@Override
 	public IBinder onBind(Intent intent)
 	{
@@ -481,225 +796,854 @@ public class PlaylistService extends Service implements
 			NetworkInfo info = (NetworkInfo)intent.getParcelableExtra
 			  (ConnectivityManager.EXTRA_NETWORK_INFO);
 
-			Log.v(TAG, "ConnectivityChange: info=" + info);
+			Log.v(TAG, "ConnectivityChange: info=" + info);
+
+			/* Resume paused downloads if we get connected.  Note that there is
+			 * no matching action when we've lost connectivity as we may
+			 * regain it before the established connection has timed out
+			 * and failed. */
+			if (info != null && info.isConnected() == true)
+				mManager.resumeDownloads();
+
+			/* Precaching starts and stops with Wi-Fi. */
+			precacheCheck();
+		}
+	};
+
+	private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver()
+	{
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			precacheCheck();
+		}
+	};
+
+	private final BroadcastReceiver mSyncReceiver = new BroadcastReceiver()
+	{
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			/* Wait for the end of the whole sync, not each source. */
+			if (intent.hasExtra(Constants.EXTRA_SOURCE_ID) == true)
+				return;
+
+			mPins.reload();
+			pinCheck();
+
+			mDownloadListeners.broadcastOnPinProgressUpdate(mPins.getComplete(),
+			  mPins.getTotal());
+		}
+	};
+
+	/**
+	 * Does all the heavy lifting to play a song.  Checks the cache,
+	 * manages the local HTTP server / streaming, and (later) playback
+	 * events.
+	 *
+	 * @return
+	 *   True if playback is starting; false if an unforeseen error has
+	 *   occurred.
+	 */
+	private boolean playInternal(long songId)
+	{
+		mHandler.cancelStopSelf();
+
+		recordPlay(songId);
+
+		if (songId == mNextSongId && mNextPrepared == true)
+		{
+			int percent = swapToNextPlayer();
+
+			notifySong(songId);
+			mBufferListeners.broadcastOnBufferingUpdate(songId, percent);
+			mBufferMonitor.check();
+
+			return true;
+		}
+
+		mPrepared = false;
+		mStartPending = false;
+		mBuffer = null;
+		resetPlayer(mPlayer);
+
+		SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
+		try {
+			DownloadManager.Download download =
+			  acquireDownload(song, DownloadManager.PRIORITY_HIGHEST);
+
+			setDataSource(mPlayer, song, download);
+			mBuffer = newPlaybackBuffer(song, download);
+		} catch (Exception e) {
+			/*
+			 * This code looks suspicious to me. If this ever happens, I believe
+			 * we'll end up leaving the PlaylistService in a weird state where
+			 * it think its still playing but nothing is happening.
+			 */
+			Log.e(Constants.TAG, "Unable to start playback", e);
+			mPlayer.reset();
+		} finally {
+			song.close();
+		}
+
+		notifySong(songId);
+
+		mBufferListeners.broadcastOnBufferingUpdate(songId, 0);
+		mPlayer.prepareAsync();
+		mBufferMonitor.check();
+
+		return true;
+	}
+
+	/**
+	 * Counts a play of the song, which is what cache eviction goes by. The
+	 * song's play count is brought up to date when the history is written.
+	 */
+	private void recordPlay(long songId)
+	{
+		mCompleted = false;
+		mHistory.add(songId, Five.Music.History.EVENT_PLAY, 0);
+		mCacheMgr.recordPlay(songId, System.currentTimeMillis());
+	}
+
+	/**
+	 * Records that the playing song, if any, is being left before it
+	 * finished.
+	 */
+	private void recordSkip()
+	{
+		long songId = getPlayingSong();
+
+		if (songId >= 0 && mCompleted == false)
+		{
+			mHistory.add(songId, Five.Music.History.EVENT_SKIP,
+			  (mPrepared == true) ? mPlayer.getCurrentPosition() : 0);
+		}
+	}
+
+	private void resetPlayer(StreamMediaPlayer player)
+	{
+		player.reset();
+//		player.setOnBufferingUpdateListener(this);
+		player.setOnCompletionListener(this);
+		player.setOnErrorListener(this);
+		player.setOnPreparedListener(this);
+	}
+
+	/**
+	 * @param download
+	 *            Download of the song, or null if it is complete in cache
+	 *            (or a complete variant is to be played).
+	 */
+	private void setDataSource(StreamMediaPlayer player, SongItem song,
+	  DownloadManager.Download download) throws IOException
+	{
+		if (download == null)
+			player.setDataSource(getCompletePath(song));
+		else
+		{
+			/*
+			 * The length is whatever the server responds with (which
+			 * may differ from the synced size, or be unknown until the
+			 * end for a transcoded stream), not our initial guess.
+			 */
+			player.setDataSource(new TailStream(download.getDestination().getAbsolutePath(),
+					song.getMimeType(), download.getDownloadProgress()));
+		}
+	}
+
+	/**
+	 * Makes the player prepared on the next track the current one, starting
+	 * it straight away unless paused or, as for any prepared track, not yet
+	 * buffered enough to start.
+	 *
+	 * @return
+	 *   How much of what's needed to start is buffered, as a percentage.
+	 */
+	private int swapToNextPlayer()
+	{
+		StreamMediaPlayer previous = mPlayer;
+
+		mPlayer = mNextPlayer;
+		mNextPlayer = previous;
+		mNextSongId = -1;
+		mNextPrepared = false;
+
+		mBuffer = mNextBuffer;
+		mNextBuffer = null;
+
+		/*
+		 * The next track may have been prepared while still downloading;
+		 * if so, mBufferMonitor starts it once there's enough.
+		 */
+		int percent = (mBuffer != null) ? mBufferMonitor.getStartPercent(mBuffer) : 100;
+		mStartPending = (percent < 100);
+
+		if (mStartPending == true)
+			Log.i(TAG, "Next track ready, but waiting to buffer.");
+
+		/* Get the audio going before tearing anything down. */
+		if (mStartPending == false && mPaused == false)
+			mPlayer.start();
+
+		mPrepared = true;
+
+		if (previous.isPlaying() == true)
+			previous.stop();
+
+		previous.reset();
+
+		return percent;
+	}
+
+	private void discardNextPlayer()
+	{
+		if (mNextSongId >= 0)
+		{
+			mNextSongId = -1;
+			mNextPrepared = false;
+			mNextBuffer = null;
+			mNextPlayer.reset();
+		}
+	}
+
+	/**
+	 * @return The song due to play after the current one, or -1.
+	 */
+	private long getNextSong()
+	{
+		synchronized(mBinderLock) {
+			try {
+				int next = mBinder.peekNext();
+				return next >= 0 ? mPlaylist.get(next) : -1;
+			} catch (RemoteException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Prepares the second player on the next track once the current one is
+	 * underway. Only tracks which are cached or already downloading are
+	 * considered; {@link #prefetchCheck()} decides what to download.
+	 */
+	private void prepareNextPlayer()
+	{
+		synchronized(mBinderLock) {
+			if (mPlaying == false || mPrepared == false)
+				return;
+
+			long nextId = getNextSong();
+			if (nextId == mNextSongId)
+				return;
+
+			discardNextPlayer();
+
+			if (nextId < 0)
+				return;
+
+			SongItem song = SongItem.getInstance(Songs.getSong(this, nextId));
+			try {
+				DownloadManager.Download download = mManager.lookupDownload(nextId);
+				if (download == null && getCompletePath(song) == null)
+					return;
+
+				resetPlayer(mNextPlayer);
+				setDataSource(mNextPlayer, song, download);
+
+				mNextSongId = nextId;
+				mNextBuffer = newPlaybackBuffer(song, download);
+				mNextPlayer.prepareAsync();
+
+				Log.i(TAG, "Preparing next track (songId=" + nextId + ")");
+			} catch (Exception e) {
+				Log.e(TAG, "Unable to prepare next track", e);
+				discardNextPlayer();
+			} finally {
+				song.close();
+			}
+		}
+	}
+
+	/**
+	 * Get or start a download for the request song id.
+	 *
+	 * @param priority
+	 *            Priority to give the download, as in
+	 *            {@link DownloadManager#setPriority}.
+	 * @return The download instance (either recently started, or reacquired
+	 *         from an existing download) if the song is not in cache;
+	 *         otherwise, null.
+	 *
+	 * @throws IOException
+	 *             When the download destination path cannot be opened for
+	 *             writing.
+	 * @throws CacheAllocationException
+	 */
+	private DownloadManager.Download acquireDownload(SongItem song, int priority)
+			throws IOException, CacheAllocationException
+	{
+		SourceItem source = SourceItem.getInstance(this, Sources.makeUri(song.getSourceId()));
+
+		try {
+			long songId = song.getId();
+			String cachePath = song.getCachePath();
+
+			if (isCached(song) == true)
+			{
+				Log.i(TAG, "Cache hit, download of " + cachePath + " already complete!");
+				return null;
+			}
+
+			/*
+			 * Carry on with whatever is already under way for this song,
+			 * whether the original or a variant.
+			 *
+			 * XXX: We have a small race condition possibility here since we
+			 * aren't synchronizing anything. The download might have just
+			 * finished, in which case our lookup would yield null, but
+			 * we'll foolishly try a resumed download for a very small
+			 * section of the file.
+			 */
+			DownloadManager.Download download = mManager.lookupDownload(songId);
+			if (download != null)
+			{
+				mManager.setPriority(download, priority);
+				return download;
+			}
+
+			/*
+			 * Choose as the download starts; once throughput recovers, the
+			 * next track we start goes back to the original.
+			 */
+			int bitrate = mBitrates.select(song.getBitrate());
+
+			if (bitrate > 0)
+			{
+				if (mVariants.containsKey(songId) == true)
+				{
+					Log.i(TAG, "Variant of songId=" + songId + " already complete");
+					return null;
+				}
+
+				return startVariantDownload(song, source, bitrate, priority);
+			}
+
+			return startOriginalDownload(song, source, priority);
+		} finally {
+			if (source != null)
+				source.close();
+		}
+	}
+
+	/**
+	 * Starts (or resumes from what is in the cache) the download of the
+	 * song's original file.
+	 */
+	private DownloadManager.Download startOriginalDownload(SongItem song,
+	  SourceItem source, int priority)
+	  throws IOException, CacheAllocationException
+	{
+		long songId = song.getId();
+		long size = song.getSize();
+		String cachePath = song.getCachePath();
+
+		String url = source.getSongUrl(song.getSyncId());
+
+		Log.v(TAG, "Preparing to download [url=" + url + "; size=" + size +
+				"; cachePath=" + cachePath + "]");
+
+		long resumeFrom = 0;
+
+		if (cachePath != null)
+		{
+			/* Whatever isn't known to have reached the disk is fetched again. */
+			resumeFrom = CacheManager.getVerifiedBytes(cachePath);
+
+			Log.i(TAG, "Partial cache hit, resuming " +
+					cachePath + " with " + resumeFrom + " bytes verified");
+		}
+		else
+		{
+			cachePath = mCacheMgr.requestStorage(this, song);
+		}
+
+		mManager.updateCredentials(source);
+		mManager.setSegmented(PreferenceManager.getDefaultSharedPreferences(this)
+		  .getBoolean(KEY_SEGMENTED_DOWNLOADS, false));
+
+		try {
+			return mManager.startDownload(songId, url, cachePath, size, resumeFrom,
+			  priority, 0);
+		} catch (IOException e) {
+			mManager.stopDownload(songId);
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts downloading a reduced bitrate variant of the song, transcoded
+	 * by the server, in place of the original.
+	 *
+	 * @param bitrate
+	 *            Bitrate of the variant, in kbps.
+	 */
+	private DownloadManager.Download startVariantDownload(SongItem song,
+	  SourceItem source, int bitrate, int priority)
+	  throws IOException, CacheAllocationException
+	{
+		long songId = song.getId();
+		String url = source.getSongUrl(song.getSyncId(), bitrate);
+
+		Log.i(TAG, "Throughput can't sustain " + song.getBitrate() +
+		  " kbps, requesting " + url);
+
+		long estimatedSize = (long)song.getLength() * bitrate * 1000 / 8;
+		String path = mCacheMgr.requestVariantStorage(this, song.getSourceId(),
+		  song.getSyncId(), song.getMimeType(), estimatedSize);
+
+		mManager.updateCredentials(source);
+
+		/* Transcoded on the fly, so neither the size nor segments apply. */
+		mManager.setSegmented(false);
+
+		try {
+			return mManager.startDownload(songId, url, path, -1, 0, priority, bitrate);
+		} catch (IOException e) {
+			mManager.stopDownload(songId);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Path of a complete copy of the song which can be played
+	 *         directly: the original in cache, or else a variant; null if
+	 *         there is neither.
+	 */
+	private String getCompletePath(SongItem song)
+	{
+		if (isCached(song) == true)
+			return song.getCachePath();
+
+		return mVariants.get(song.getId());
+	}
+
+	/**
+	 * @param download
+	 *            Download of the song, as given to {@link #setDataSource}.
+	 */
+	private PlaybackBuffer newPlaybackBuffer(SongItem song,
+	  DownloadManager.Download download)
+	{
+		float byteRate;
+
+		int variantBitrate = (download != null) ?
+		  mManager.getVariantBitrate(download.getUrl()) : 0;
+
+		if (variantBitrate > 0)
+			byteRate = variantBitrate * 1000 / 8f;
+		else if (song.getLength() > 0 && song.getSize() > 0)
+			byteRate = (float)song.getSize() / song.getLength();
+		else
+			byteRate = song.getBitrate() * 1000 / 8f;
+
+		return new PlaybackBuffer(song.getId(), download, song.getLength(),
+		  byteRate);
+	}
+
+	/**
+	 * Checks the cache for the song, taking up the same content cached for
+	 * another song if there is any. In that case <code>song</code> is read
+	 * again to pick up where it's now cached.
+	 *
+	 * @return True if the complete song is committed to the cache.
+	 */
+	private boolean isCached(SongItem song)
+	{
+		if (CacheManager.isComplete(song.getCachePath(),
+		  song.getCachedLength()) == true)
+			return true;
+
+		if (mCacheMgr.shareStorage(this, song) == false)
+			return false;
+
+		song.getCursor().requery();
+		song.moveToFirst();
+
+		return CacheManager.isComplete(song.getCachePath(),
+		  song.getCachedLength());
+	}
+
+	private int getPrefetchDepth()
+	{
+		String defaultDepth = getString(R.string.defaultPrefetchDepth);
+		String depth = PreferenceManager.getDefaultSharedPreferences(this)
+		  .getString(KEY_PREFETCH_DEPTH, defaultDepth);
+
+		try {
+			return Integer.parseInt(depth);
+		} catch (NumberFormatException e) {
+			return Integer.parseInt(defaultDepth);
+		}
+	}
+
+	/**
+	 * Check at key stages to make sure that the tracks which aren't yet
+	 * cached are downloading in order of priority: the playing track, then
+	 * the next, then (as far as {@link PrefetchScheduler} thinks necessary)
+	 * the ones after it. Downloads for tracks no longer coming up are
+	 * paused rather than thrown away, in case we skip back to them.
+	 */
+	private void prefetchCheck()
+	  throws RemoteException
+	{
+		synchronized(mBinderLock) {
+			if (mPlaying == false)
+				return;
+		}
+
+		List<Long> wanted = pickDownloads();
+
+		/*
+		 * Anything else is no longer needed soon; pause it, keeping what it
+		 * has, unless it's pinned and can carry on in the background.
+		 */
+		for (DownloadManager.Download dl: mManager.getDownloadsCopy())
+		{
+			long songId = mManager.getSongIdFromUrl(dl.getUrl());
+
+			if (wanted.contains(songId) == false)
+			{
+				int priority = DownloadManager.PRIORITY_IDLE;
+
+				if (songId == mPinSongId)
+					priority = PRIORITY_PIN;
+				else if (songId == mPrecacheSongId)
+					priority = PRIORITY_PRECACHE;
+
+				mManager.setPriority(dl, priority);
+			}
+		}
+
+		for (int priority = 0; priority < wanted.size(); priority++)
+		{
+			long songId = wanted.get(priority);
+
+			SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
+			try {
+				if (acquireDownload(song, priority) != null)
+					Log.i(TAG, "Prefetch of songId=" + songId + " at priority " + priority);
+			} catch (Exception e) {
+				Log.e(TAG, "acquireDownload failed", e);
+			} finally {
+				song.close();
+			}
+		}
+
+		prepareNextPlayer();
+	}
+
+	/**
+	 * @return Songs at and after the current playlist position which should
+	 *         be downloading, most urgent first.
+	 */
+	private List<Long> pickDownloads()
+	{
+		mScheduler.setMaxDepth(getPrefetchDepth());
+
+		List<Long> upcoming;
+
+		synchronized(mBinderLock) {
+			if (mPosition < 0 || mPosition >= mPlaylist.size())
+				return new ArrayList<Long>();
+
+			int end = Math.min(mPosition + 1 + mScheduler.getMaxDepth(),
+			  mPlaylist.size());
+
+			upcoming = new ArrayList<Long>(mPlaylist.subList(mPosition, end));
+		}
 
-			/* Resume paused downloads if we get connected.  Note that there is
-			 * no matching action when we've lost connectivity as we may
-			 * regain it before the established connection has timed out
-			 * and failed. */
-			if (info != null && info.isConnected() == true)
-				mManager.resumeDownloads();
+		ArrayList<PrefetchScheduler.Track> tracks =
+		  new ArrayList<PrefetchScheduler.Track>(upcoming.size());
+
+		for (long songId: upcoming)
+		{
+			SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
+			try {
+				tracks.add(new PrefetchScheduler.Track(songId, song.getSize(),
+				  song.getLength(), getCompletePath(song) != null));
+			} finally {
+				song.close();
+			}
 		}
-	};
 
-	private Cursor getContentCursor(long songId)
-	{
-		Uri songUri = ContentUris.withAppendedId(Five.Music.Songs.CONTENT_URI,
-		  songId);
+		List<Integer> picked = mScheduler.pick(tracks);
 
-		Cursor c = getContentResolver().query(songUri,
-			new String[] { Five.Music.Songs._SYNC_ID, Five.Music.Songs.SOURCE_ID,
-				Five.Music.Songs.CACHED_PATH, Five.Music.Songs.SIZE },
-			null, null, null);
+		ArrayList<Long> wanted = new ArrayList<Long>(picked.size());
+		for (int index: picked)
+			wanted.add(upcoming.get(index));
 
-		return c;
+		return wanted;
 	}
 
 	/**
-	 * Does all the heavy lifting to play a song.  Checks the cache,
-	 * manages the local HTTP server / streaming, and (later) playback
-	 * events.
-	 *
-	 * @return
-	 *   True if playback is starting; false if an unforeseen error has
-	 *   occurred.
+	 * Picks up the downloads which were in flight when the service last went
+	 * away without finishing them, as far as the prefetch policy still wants
+	 * them from the recovered playlist position. The rest are dropped from
+	 * the journal; their partial content stays in the cache to be resumed
+	 * if they are played.
 	 */
-	private boolean playInternal(long songId)
+	private void resumeJournaledDownloads()
 	{
-		mHandler.cancelStopSelf();
+		List<DownloadJournal.Entry> entries = mJournal.load();
+		if (entries.isEmpty() == true)
+			return;
 
-		mPrepared = false;
-		mPlayer.reset();
-//		mPlayer.setOnBufferingUpdateListener(this);
-		mPlayer.setOnCompletionListener(this);
-		mPlayer.setOnErrorListener(this);
-		mPlayer.setOnPreparedListener(this);
+		/* Downloads we resume are journaled afresh as they start. */
+		mJournal.clear();
 
-		SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
-		try {
-			DownloadManager.Download download = acquireDownload(song);
+		List<Long> wanted = pickDownloads();
 
-			if (download == null)
-				mPlayer.setDataSource(song.getCachePath());
-			else
+		for (DownloadJournal.Entry entry: entries)
+		{
+			int priority = wanted.indexOf(entry.songId);
+			if (priority < 0)
 			{
-				/*
-				 * XXX: There is a bug here where if the server responds with a
-				 * different content length than was our initial guess (based on
-				 * the synced meta data), we'll end up waiting for the download
-				 * to complete forever.
-				 */
-				mPlayer.setDataSource(new TailStream(download.getDestination().getAbsolutePath(),
-						song.getMimeType(), download.getExpectedContentLength()));
+				Log.i(TAG, "Not resuming download of songId=" + entry.songId +
+				  ", no longer due to play");
+				continue;
 			}
-		} catch (Exception e) {
-			/*
-			 * This code looks suspicious to me. If this ever happens, I believe
-			 * we'll end up leaving the PlaylistService in a weird state where
-			 * it think its still playing but nothing is happening.
-			 */
-			Log.e(Constants.TAG, "Unable to start playback", e);
-			mPlayer.reset();
-		} finally {
-			song.close();
-		}
 
-		notifySong(songId);
+			SongItem song = SongItem.getInstance(Songs.getSong(this, entry.songId));
+			if (song == null)
+				continue;
 
-		mBufferListeners.broadcastOnBufferingUpdate(songId, 0);
-		mPlayer.prepareAsync();
+			try {
+				/* The cache entry has moved on since; start over as usual. */
+				if (entry.path.equals(song.getCachePath()) == false)
+					continue;
 
-		return true;
+				if (acquireDownload(song, priority) != null)
+				{
+					Log.i(TAG, "Resumed download of songId=" + entry.songId +
+					  " from " + entry.offset + " at priority " + priority);
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "Unable to resume download of songId=" + entry.songId, e);
+			} finally {
+				song.close();
+			}
+		}
 	}
 
 	/**
-	 * Get or start a download for the request song id.
-	 *
-	 * @return The download instance (either recently started, or reacquired
-	 *         from an existing download) if the song is not in cache;
-	 *         otherwise, null.
-	 *
-	 * @throws IOException
-	 *             When the download destination path cannot be opened for
-	 *             writing.
-	 * @throws CacheAllocationException
+	 * Keeps one pinned song downloading in the background, moving on to the
+	 * next as each completes, until every pinned song is in the cache. Must
+	 * be called from the main thread.
 	 */
-	private DownloadManager.Download acquireDownload(SongItem song)
-			throws IOException, CacheAllocationException
+	private void pinCheck()
 	{
-		SourceItem source = SourceItem.getInstance(this, Sources.makeUri(song.getSourceId()));
+		boolean wasPinning = mPinSongId >= 0;
 
-		try {
-			long songId = song.getId();
-			String url = source.getSongUrl(song.getSyncId());
-			long size = song.getSize();
-			String cachePath = song.getCachePath();
-
-			Log.v(TAG, "Preparing to download [url=" + url + "; size=" + size +
-					"; cachePath=" + cachePath + "]");
+		/* Unpinned while downloading; keep what it has, as for any other. */
+		if (wasPinning == true && mPins.isPending(mPinSongId) == false)
+		{
+			DownloadManager.Download d = mManager.lookupDownload(mPinSongId);
+			if (d != null && d.getDownloadPriority() == PRIORITY_PIN)
+				mManager.setPriority(d, DownloadManager.PRIORITY_IDLE);
+		}
 
-			long resumeFrom = 0;
+		mPinSongId = -1;
 
-			if (cachePath != null)
+		long songId;
+		while ((songId = mPins.peek()) >= 0)
+		{
+			/* Already under way, perhaps for playback; see it through. */
+			DownloadManager.Download d = mManager.lookupDownload(songId);
+			if (d != null)
 			{
-				resumeFrom = (new File(cachePath)).length();
+				if (d.getDownloadPriority() == DownloadManager.PRIORITY_IDLE)
+					mManager.setPriority(d, PRIORITY_PIN);
 
-				if (resumeFrom == size)
-				{
-					Log.i(TAG, "Cache hit, download of " + cachePath + " already complete!");
-					return null;
-				}
-				else
-				{
-					Log.i(TAG, "Partial cache hit, resuming from " +
-							cachePath + " at " + resumeFrom);
-
-					/*
-					 * XXX: We have a small race condition possibility here
-					 * since we aren't synchronizing anything. The download
-					 * might have just finished, in which case our lookup would
-					 * yield null, but we'll foolishly try a resumed download
-					 * for a very small section of the file.
-					 */
-					DownloadManager.Download download = mManager.lookupDownload(songId);
-					if (download != null)
-						return download;
-				}
+				mPinSongId = songId;
+				return;
 			}
-			else
-			{
-				if (mManager.lookupDownload(songId) != null)
-					throw new IllegalStateException("Download started, but did not register with the cache.");
 
-				cachePath = mCacheMgr.requestStorage(this, song.getSourceId(), song.getSyncId());
+			SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
+			if (song == null)
+			{
+				mPins.fail(songId);
+				continue;
 			}
 
-			/*
-			 * We only allow 1 download at a time, so invoking this method
-			 * implicitly asks for all other downloads to be canceled.
-			 */
-			mManager.stopAllDownloads();
+			try {
+				if (isCached(song) == true)
+				{
+					mPins.complete(songId);
+					mDownloadListeners.broadcastOnPinProgressUpdate(
+					  mPins.getComplete(), mPins.getTotal());
+					continue;
+				}
 
-			mManager.updateCredentials(source);
+				SourceItem source =
+				  SourceItem.getInstance(this, Sources.makeUri(song.getSourceId()));
+				try {
+					/* Always the original; variants aren't kept. */
+					if (startOriginalDownload(song, source, PRIORITY_PIN) != null)
+					{
+						Log.i(TAG, "Downloading pinned songId=" + songId);
+						mPinSongId = songId;
+						return;
+					}
+				} finally {
+					if (source != null)
+						source.close();
+				}
 
-			try {
-				return mManager.startDownload(songId, url, cachePath, size, resumeFrom);
-			} catch (IOException e) {
-				mManager.stopDownload(songId);
-				throw e;
+				mPins.fail(songId);
+			} catch (CacheAllocationException e) {
+				/* No room or no storage card; we'll try again later. */
+				Log.w(TAG, "Unable to download pinned songs: " + e.getMessage());
+				return;
+			} catch (Exception e) {
+				Log.e(TAG, "Unable to download pinned songId=" + songId, e);
+				mPins.fail(songId);
+			} finally {
+				song.close();
 			}
-		} finally {
-			if (source != null)
-				source.close();
 		}
+
+		/* All done; go away unless something else needs us. */
+		if (wasPinning == true && mActive == false &&
+		  (mPlaying == false || mPaused == true))
+			mHandler.deferredStopSelf();
 	}
 
 	/**
-	 * Check at key stages to make sure that the song to be played next
-	 * is preemptively downloading.
+	 * Keeps one of the songs we expect to be played downloading in the
+	 * background while the device is charging on Wi-Fi, until the precache
+	 * share of the cache is full. Pinned songs go first. Must be called
+	 * from the main thread.
 	 */
-	private void prefetchCheck()
-	  throws RemoteException
+	private void precacheCheck()
 	{
-		long currentId;
-		long nextId = -1;
-
-		synchronized(mBinderLock) {
-			if (mPlaying == false)
-				return;
+		boolean wasPrecaching = mPrecacheSongId >= 0;
+		boolean allowed = mPinSongId < 0 && PrecacheQueue.isAllowed(this);
 
-			currentId = getPlayingSong();
-			assert currentId >= 0;
+		if (wasPrecaching == true)
+		{
+			DownloadManager.Download d = mManager.lookupDownload(mPrecacheSongId);
+			if (d != null)
+			{
+				if (allowed == true)
+					return;
 
-			int next = mBinder.peekNext();
-			if (next < 0)
-				return;
+				/* Keep what it has for next time. */
+				if (d.getDownloadPriority() == PRIORITY_PRECACHE)
+					mManager.setPriority(d, DownloadManager.PRIORITY_IDLE);
+			}
 
-			nextId = mPlaylist.get(next);
-			assert nextId >= 0;
+			mPrecacheSongId = -1;
 		}
 
-		if (mManager.lookupDownload(currentId) != null)
+		if (allowed == false)
+			mPrecache.clear();
+		else
 		{
-			Log.i(TAG, "Prefetch miss due to active download.");
-			return;
+			/* Ranked afresh each time we're plugged in, off the main thread. */
+			if (mPrecache.isLoaded() == false)
+			{
+				mPrecache.loadAsync(mHandler, mPrecacheLoaded);
+				return;
+			}
+
+			long songId;
+			while ((songId = mPrecache.peek()) >= 0)
+			{
+				/* Already under way, perhaps for playback; see it through. */
+				DownloadManager.Download d = mManager.lookupDownload(songId);
+				if (d != null)
+				{
+					if (d.getDownloadPriority() == DownloadManager.PRIORITY_IDLE)
+						mManager.setPriority(d, PRIORITY_PRECACHE);
+
+					mPrecacheSongId = songId;
+					return;
+				}
+
+				SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
+				if (song == null)
+				{
+					mPrecache.remove(songId);
+					continue;
+				}
+
+				try {
+					if (isCached(song) == true)
+					{
+						mPrecache.remove(songId);
+						continue;
+					}
+
+					SourceItem source =
+					  SourceItem.getInstance(this, Sources.makeUri(song.getSourceId()));
+					try {
+						if (startOriginalDownload(song, source, PRIORITY_PRECACHE) != null)
+						{
+							Log.i(TAG, "Precaching songId=" + songId);
+							mPrecacheSongId = songId;
+							return;
+						}
+					} finally {
+						if (source != null)
+							source.close();
+					}
+
+					mPrecache.remove(songId);
+				} catch (CacheAllocationException e) {
+					Log.w(TAG, "Unable to precache songs: " + e.getMessage());
+					mPrecache.clear();
+					break;
+				} catch (Exception e) {
+					Log.e(TAG, "Unable to precache songId=" + songId, e);
+					mPrecache.remove(songId);
+				} finally {
+					song.close();
+				}
+			}
 		}
 
-		if (mManager.lookupDownload(nextId) != null)
+		/* Done, or no longer allowed; go away unless something else needs us. */
+		if (wasPrecaching == true && mPinSongId < 0 && mActive == false &&
+		  (mPlaying == false || mPaused == true))
+			mHandler.deferredStopSelf();
+	}
+
+	/** Carries on with precaching once the songs have been chosen. */
+	private final Runnable mPrecacheLoaded = new Runnable()
+	{
+		public void run()
 		{
-			Log.i(TAG, "Prefetch already in progress.");
-			return;
-		}
+			precacheCheck();
 
-		SongItem song = SongItem.getInstance(Songs.getSong(this, nextId));
-		try {
-			DownloadManager.Download download = acquireDownload(song);
-			if (download == null)
-				Log.i(TAG, "Prefetch not necessary, next track (nextId=" + nextId + ") already in cache");
-			else
-				Log.i(TAG, "Prefetch started on next track (nextId=" + nextId + ")");
-		} catch (Exception e) {
-			Log.e(TAG, "acquireDownload failed", e);
-		} finally {
-			song.close();
+			if (mPrecacheSongId < 0 && mPinSongId < 0 && mActive == false &&
+			  (mPlaying == false || mPaused == true))
+				mHandler.deferredStopSelf();
 		}
-	}
+	};
 
 	private class SongDownloadManager extends DownloadManager
 	{
 		private final Map<String, Long> mUrlToSongMap =
 		  Collections.synchronizedMap(new HashMap<String, Long>());
 
+		/* Bitrates of the downloads which are of reduced bitrate variants. */
+		private final Map<String, Integer> mVariantBitrates =
+		  Collections.synchronizedMap(new HashMap<String, Integer>());
+
+		/* Downloads stopped by shutdown stay journaled to resume later. */
+		private volatile boolean mShuttingDown = false;
+
 		public SongDownloadManager(Context ctx)
 		{
 			super(ctx);
@@ -722,26 +1666,40 @@ public class PlaylistService extends Service implements
 			}
 		}
 
-		public boolean commitStorage(long songId)
+		/**
+		 * Records the finished download of the original file as a complete
+		 * cache entry, so that it will not be fetched again.
+		 */
+		private void commitStorage(long songId, Download d)
 		{
-			Cursor c = getContentCursor(songId);
-
-			long sourceId;
-			long contentId;
+			File dest = d.getDestination();
 
-			try {
-				if (c.moveToFirst() == false)
-					return false;
+			mCacheMgr.commitStorage(PlaylistService.this, songId,
+			  dest.getAbsolutePath(), dest.length(), d.getValidator());
+		}
 
-				sourceId = c.getLong(c.getColumnIndexOrThrow(Five.Music.Songs.SOURCE_ID));
-				contentId = c.getLong(c.getColumnIndexOrThrow(Five.Music.Songs._SYNC_ID));
-			} finally {
-				c.close();
-			}
+		@Override
+		public void shutdown()
+		{
+			mShuttingDown = true;
+			super.shutdown();
+		}
 
-			mCacheMgr.commitStorage(sourceId, contentId);
+		@Override
+		public void setPriority(Download d, int priority)
+		{
+			super.setPriority(d, priority);
+			updateJournal(d);
+		}
 
-			return true;
+		/**
+		 * Records the progress of <code>d</code> in the journal, if it's
+		 * one we're journaling.
+		 */
+		private void updateJournal(Download d)
+		{
+			mJournal.update(d.getUrl(), d.getDownloadProgress().getBytes(),
+			  d.getDownloadPriority(), d.getValidator());
 		}
 
 		@Override
@@ -750,10 +1708,15 @@ public class PlaylistService extends Service implements
 			long songId = mUrlToSongMap.get(url);
 			mDownloadListeners.broadcastOnDownloadFinish(songId);
 
-			commitStorage(songId);
+			mJournal.remove(url);
 
 			final Download d = lookupDownload(url);
 
+			if (mVariantBitrates.containsKey(url) == true)
+				mVariants.put(songId, d.getDestination().getAbsolutePath());
+			else if (d.isComplete() == true)
+				commitStorage(songId, d);
+
 			mHandler.post(new Runnable() {
 				public void run() {
 					try {
@@ -762,6 +1725,9 @@ public class PlaylistService extends Service implements
 						d.joinUninterruptibly();
 						prefetchCheck();
 					} catch (RemoteException e) {}
+
+					pinCheck();
+					precacheCheck();
 				}
 			});
 		}
@@ -780,6 +1746,27 @@ public class PlaylistService extends Service implements
 		{
 			long songId = mUrlToSongMap.get(url);
 			mDownloadListeners.broadcastOnDownloadError(songId, err);
+
+			if (songId == mPinSongId)
+			{
+				mPins.fail(songId);
+
+				mHandler.post(new Runnable() {
+					public void run() {
+						pinCheck();
+					}
+				});
+			}
+			else if (songId == mPrecacheSongId)
+			{
+				mPrecache.remove(songId);
+
+				mHandler.post(new Runnable() {
+					public void run() {
+						precacheCheck();
+					}
+				});
+			}
 		}
 
 		@Override
@@ -787,11 +1774,16 @@ public class PlaylistService extends Service implements
 		{
 			long songId = mUrlToSongMap.get(url);
 			mDownloadListeners.broadcastOnDownloadProgressUpdate(songId, percent);
+
+			Download d = lookupDownload(url);
+			if (d != null)
+				updateJournal(d);
 		}
 
 		long getSongIdFromUrl(String url)
 		{
-			return mUrlToSongMap.get(url);
+			Long songId = mUrlToSongMap.get(url);
+			return songId != null ? songId : -1;
 		}
 
 		public Download lookupDownload(long songId)
@@ -810,16 +1802,52 @@ public class PlaylistService extends Service implements
 			return null;
 		}
 
+		/**
+		 * @param variantBitrate
+		 *            Bitrate in kbps if the download is of a reduced bitrate
+		 *            variant, or 0 for the original file.
+		 */
 		public Download startDownload(long songId, String url, String path,
-		  long expectedContentLength, long resumeFrom)
-		  throws IOException
+		  long expectedContentLength, long resumeFrom, int priority,
+		  int variantBitrate) throws IOException
 		{
-			Download d = super.startDownload(url, path, expectedContentLength, resumeFrom);
+			/* In place before the download thread starts reporting on it. */
+			mUrlToSongMap.put(url, songId);
 
-			if (d != null)
-				mUrlToSongMap.put(url, songId);
+			/* Variants are transcoded on the fly and can't be resumed. */
+			if (variantBitrate > 0)
+				mVariantBitrates.put(url, variantBitrate);
+			else
+			{
+				mJournal.put(new DownloadJournal.Entry(songId, url, path,
+				  resumeFrom, priority, null));
+			}
+
+			boolean started = false;
 
-			return d;
+			try {
+				Download d = super.startDownload(url, path, expectedContentLength,
+				  resumeFrom, priority);
+				started = true;
+				return d;
+			} finally {
+				if (started == false)
+				{
+					mUrlToSongMap.remove(url);
+					mVariantBitrates.remove(url);
+					mJournal.remove(url);
+				}
+			}
+		}
+
+		/**
+		 * @return Bitrate in kbps of the variant being downloaded from
+		 *         <code>url</code>, or 0 if it's the original.
+		 */
+		public int getVariantBitrate(String url)
+		{
+			Integer bitrate = mVariantBitrates.get(url);
+			return bitrate != null ? bitrate : 0;
 		}
 
 		public void stopDownload(long songId)
@@ -832,17 +1860,18 @@ public class PlaylistService extends Service implements
 		{
 			super.removeDownload(url);
 			mUrlToSongMap.remove(url);
+			mVariantBitrates.remove(url);
+
+			if (mShuttingDown == false)
+				mJournal.remove(url);
 		}
 	};
 
-	/* This callback doesn't report useful information in 1.0r1, so we
-	 * ignore it. */
+	/* This callback doesn't report useful information in 1.0r1, and knows
+	 * nothing of our download anyway, so we ignore it.  Buffering is
+	 * measured directly by mBufferMonitor instead. */
 	public void onBufferingUpdate(MediaPlayer mp, int percent)
 	{
-//		long songId = getPlayingSong();
-//		assert songId >= 0;
-//
-//		mBufferListeners.broadcastOnBufferingUpdate(songId, percent);
 	}
 
 	private void tidyThenAdvance()
@@ -861,6 +1890,7 @@ public class PlaylistService extends Service implements
 			mPlayer.reset();
 
 			mPrepared = false;
+			mStartPending = false;
 		}
 
 		/* If we were previously playing, advance to the next track. */
@@ -874,7 +1904,14 @@ public class PlaylistService extends Service implements
 	{
 		Log.d(TAG, "Media playback error, what=" + what + ", extra=" + extra);
 
-		assert mp == mPlayer;
+		/* We'll simply start the next track from scratch when we get there. */
+		if (mp == mNextPlayer)
+		{
+			synchronized(mBinderLock) {
+				discardNextPlayer();
+			}
+			return true;
+		}
 
 		long songId = getPlayingSong();
 
@@ -912,30 +1949,76 @@ public class PlaylistService extends Service implements
 	public void onCompletion(MediaPlayer mp)
 	{
 		Log.i(TAG, "Should be finished.");
+
+		if (mp != mPlayer)
+			return;
+
+		long songId = getPlayingSong();
+		if (songId >= 0)
+		{
+			mHistory.add(songId, Five.Music.History.EVENT_COMPLETE,
+			  mp.getDuration());
+			mCompleted = true;
+		}
+
+		/*
+		 * If the next track is ready on the other player, advancing swaps
+		 * to it directly, so don't tear this one down first.
+		 */
+		if (mPlaying == true && mPaused == false && mNextPrepared == true &&
+		  getNextSong() == mNextSongId)
+		{
+			try {
+				mBinder.next();
+			} catch (RemoteException e) {}
+			return;
+		}
+
 		tidyThenAdvance();
 	}
 
 	public void onPrepared(MediaPlayer mp)
 	{
-		assert mp == mPlayer;
+		if (mp == mNextPlayer)
+		{
+			synchronized(mBinderLock) {
+				if (mNextSongId >= 0)
+				{
+					Log.i(TAG, "Next track ready.");
+					mNextPrepared = true;
+				}
+			}
+			return;
+		}
 
 		assert mPlaying == true;
 
 		synchronized(mBinderLock) {
-			if (mPaused == true)
+			mPrepared = true;
+
+			if (mBuffer != null && mBufferMonitor.isBufferedToStart(mBuffer) == false)
+			{
+				/* mBufferMonitor starts us once there's enough. */
+				Log.i(TAG, "Ready to play, but waiting to buffer.");
+				mStartPending = true;
+			}
+			else if (mPaused == true)
 				Log.i(TAG, "Ready to play, but paused.");
 			else
 			{
 				Log.i(TAG, "Should be playing...");
 				mPlayer.start();
 			}
+		}
 
-			mPrepared = true;
+		if (mStartPending == false)
+		{
+			long songId = getPlayingSong();
+			assert songId >= 0;
+			mBufferListeners.broadcastOnBufferingUpdate(songId, 100);
 		}
 
-		long songId = getPlayingSong();
-		assert songId >= 0;
-		mBufferListeners.broadcastOnBufferingUpdate(songId, 100);
+		prepareNextPlayer();
 	}
 
 	private final IPlaylistService.Stub mBinder = new IPlaylistService.Stub()
@@ -1017,6 +2100,7 @@ public class PlaylistService extends Service implements
 				return;
 
 			synchronized(mBinderLock) {
+				recordSkip();
 				mPosition = pos;
 			}
 
@@ -1097,8 +2181,12 @@ public class PlaylistService extends Service implements
 				long songId = mPlaylist.get(mPosition);
 				notifySong(songId);
 
+				/* A pending start is left to mBufferMonitor. */
 				if (mPrepared == true)
-					mPlayer.start();
+				{
+					if (mStartPending == false)
+						mPlayer.start();
+				}
 				else
 				{
 					boolean ret = playInternal(songId);
@@ -1126,8 +2214,14 @@ public class PlaylistService extends Service implements
 				mPlayer.stop();
 				mPlayer.reset();
 				mPrepared = false;
+				mStartPending = false;
 				mPaused = false;
 				mPlaying = false;
+				mBuffer = null;
+
+				mBufferMonitor.cancel();
+
+				discardNextPlayer();
 			}
 
 			mMoveListeners.broadcastOnStop();
@@ -1472,7 +2566,8 @@ public class PlaylistService extends Service implements
 			if (mPlaying == true)
 			{
 				long songId = getPlayingSong();
-				l.onBufferingUpdate(songId, (mPrepared == true) ? 100 : 0);
+				l.onBufferingUpdate(songId,
+				  (mPrepared == true && mStartPending == false) ? 100 : 0);
 			}
 
 			mBufferListeners.register(l);
@@ -1483,5 +2578,46 @@ public class PlaylistService extends Service implements
 		{
 			mBufferListeners.unregister(l);
 		}
+
+		/*-*******************************************************************/
+
+		public int pin(int kind, long id)
+		{
+			return setPinned(kind, id, true);
+		}
+
+		public int unpin(int kind, long id)
+		{
+			return setPinned(kind, id, false);
+		}
+
+		private int setPinned(int kind, long id, boolean pinned)
+		{
+			int count = mPins.setPinned(kind, id, pinned);
+
+			/* Stay around after being unbound until the downloads are done. */
+			if (pinned == true)
+			{
+				startService(new Intent(PlaylistService.this, PlaylistService.class));
+				mHandler.cancelStopSelf();
+			}
+
+			mHandler.post(new Runnable() {
+				public void run() {
+					pinCheck();
+					precacheCheck();
+				}
+			});
+
+			mDownloadListeners.broadcastOnPinProgressUpdate(mPins.getComplete(),
+			  mPins.getTotal());
+
+			return count;
+		}
+
+		public int[] getPinProgress()
+		{
+			return new int[] { mPins.getComplete(), mPins.getTotal() };
+		}
 	};
 }
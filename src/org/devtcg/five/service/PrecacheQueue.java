@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+import org.devtcg.five.R;
+import org.devtcg.five.provider.Five;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.preference.PreferenceManager;
+
+/**
+ * Queue of songs we expect to be played, to be downloaded ahead of time
+ * while the device is charging on Wi-Fi. Songs are ranked by how often and
+ * how recently they've been played and by how many playlists they're on,
+ * and as many as fit in the share of the cache set aside for precaching
+ * are kept there.
+ * <p>
+ * Precached songs are ordinary cache entries; it's up to the eviction
+ * policy whether they stay once the device is back in use.
+ * <p>
+ * Ranking the library takes a while, so it's done on a worker thread of
+ * our own; see {@link #loadAsync}.
+ */
+class PrecacheQueue
+{
+	/** Score of a play, before any allowance for how long ago it was. */
+	private static final float PLAY_WEIGHT = 1;
+
+	/** Score of a song played just now, halving every RECENCY_HALF_LIFE. */
+	private static final float RECENCY_WEIGHT = 4;
+	private static final long RECENCY_HALF_LIFE = 7 * 24 * 60 * 60 * 1000L;
+
+	/** Score of being on a playlist, for up to MAX_PLAYLISTS of them. */
+	private static final float PLAYLIST_WEIGHT = 2;
+	private static final int MAX_PLAYLISTS = 3;
+
+	private final Context mContext;
+
+	/** Chosen songs not yet complete in the cache, best first. */
+	private final LinkedList<Long> mPending = new LinkedList<Long>();
+
+	private boolean mLoaded;
+
+	/** Set while a load is under way on the worker. */
+	private boolean mLoading;
+
+	/** Bumped on clear(), so that a load started before it is discarded. */
+	private int mGeneration;
+
+	private Handler mWorker;
+
+	private static class Candidate
+	{
+		public final long songId;
+		public final long size;
+		public final boolean cached;
+		public final float score;
+
+		public Candidate(long songId, long size, boolean cached, float score)
+		{
+			this.songId = songId;
+			this.size = size;
+			this.cached = cached;
+			this.score = score;
+		}
+	}
+
+	private static final Comparator<Candidate> SCORE_ORDER =
+	  new Comparator<Candidate>()
+	{
+		public int compare(Candidate a, Candidate b)
+		{
+			return Float.compare(b.score, a.score);
+		}
+	};
+
+	public PrecacheQueue(Context context)
+	{
+		mContext = context;
+	}
+
+	/**
+	 * @return
+	 *   True if the device is charging and on Wi-Fi, so that we can
+	 *   download freely.
+	 */
+	public static boolean isAllowed(Context context)
+	{
+		Context app = context.getApplicationContext();
+
+		/* Sticky, so we needn't (and from a receiver, can't) listen. */
+		Intent battery = app.registerReceiver(null,
+		  new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0)
+			return false;
+
+		ConnectivityManager cm =
+		  (ConnectivityManager)app.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = cm.getActiveNetworkInfo();
+
+		return info != null && info.isConnected() == true &&
+		  info.getType() == ConnectivityManager.TYPE_WIFI;
+	}
+
+	/**
+	 * @return
+	 *   Percentage of the cache to fill with precached songs, or 0 if
+	 *   precaching is off.
+	 */
+	public static int getShare(Context context)
+	{
+		String defaultShare = context.getString(R.string.defaultPrecacheShare);
+		String share = PreferenceManager.getDefaultSharedPreferences(context)
+		  .getString(PlaylistService.KEY_PRECACHE_SHARE, defaultShare);
+
+		try {
+			return Integer.parseInt(share);
+		} catch (NumberFormatException e) {
+			return Integer.parseInt(defaultShare);
+		}
+	}
+
+	private static float getScore(int playCount, long lastPlayed,
+	  int playlists, long now)
+	{
+		float score = playCount * PLAY_WEIGHT;
+
+		if (lastPlayed > 0)
+		{
+			double age = (double)Math.max(now - lastPlayed, 0) / RECENCY_HALF_LIFE;
+			score += RECENCY_WEIGHT * (float)Math.pow(0.5, age);
+		}
+
+		score += PLAYLIST_WEIGHT * Math.min(playlists, MAX_PLAYLISTS);
+
+		return score;
+	}
+
+	private synchronized Handler getWorker()
+	{
+		if (mWorker == null)
+		{
+			HandlerThread thread = new HandlerThread("PrecacheQueue",
+			  Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+
+			mWorker = new Handler(thread.getLooper());
+		}
+
+		return mWorker;
+	}
+
+	/**
+	 * Chooses the songs to precache on the worker thread, within the share
+	 * of the cache set aside for them, then posts <code>onLoaded</code> to
+	 * <code>callback</code>. Does nothing if a load is already under way.
+	 */
+	public void loadAsync(final Handler callback, final Runnable onLoaded)
+	{
+		final int generation;
+
+		synchronized(this) {
+			if (mLoading == true)
+				return;
+
+			mLoading = true;
+			generation = mGeneration;
+		}
+
+		getWorker().post(new Runnable() {
+			public void run() {
+				boolean loaded = false;
+
+				try {
+					long budget = CacheManager.getInstance().getCapacity(mContext) *
+					  getShare(mContext) / 100;
+
+					loaded = load(budget, generation);
+				} finally {
+					synchronized(PrecacheQueue.this) {
+						mLoading = false;
+					}
+				}
+
+				if (loaded == true)
+					callback.post(onLoaded);
+			}
+		});
+	}
+
+	/**
+	 * Ranks every song which has been played or is on a playlist, then
+	 * queues those of the best which aren't cached yet, up to
+	 * <code>budget</code> bytes in all. Pinned songs are left to the
+	 * {@link PinQueue}.
+	 *
+	 * @return
+	 *   False if the queue was cleared in the meantime, and the result
+	 *   thrown away.
+	 */
+	private boolean load(long budget, int generation)
+	{
+		Cursor c = mContext.getContentResolver().query(Five.Music.Songs.CONTENT_URI,
+		  new String[] { Five.Music.Songs._ID, Five.Music.Songs.CACHED_PATH,
+		    Five.Music.Songs.CACHED_LENGTH, Five.Music.Songs.SIZE,
+		    Five.Music.Songs.PLAY_COUNT, Five.Music.LAST_PLAYED,
+		    "(SELECT COUNT(*) FROM " + Five.Music.PlaylistSongs.SQL.TABLE +
+		      " WHERE " + Five.Music.PlaylistSongs.SONG_ID + " = " +
+		      Five.Music.Songs.SQL.TABLE + "." + Five.Music.Songs._ID + ")" },
+		  Five.Music.Songs.PINNED + " = 0 AND (" +
+		    Five.Music.Songs.PLAY_COUNT + " > 0 OR " +
+		    Five.Music.Songs._ID + " IN (SELECT " +
+		    Five.Music.PlaylistSongs.SONG_ID + " FROM " +
+		    Five.Music.PlaylistSongs.SQL.TABLE + "))", null, null);
+
+		if (c == null)
+			return false;
+
+		ArrayList<Candidate> candidates;
+
+		try {
+			candidates = new ArrayList<Candidate>(c.getCount());
+			long now = System.currentTimeMillis();
+
+			while (c.moveToNext() == true)
+			{
+				long length = c.isNull(2) ? -1 : c.getLong(2);
+				boolean cached = CacheManager.isComplete(c.getString(1), length);
+
+				candidates.add(new Candidate(c.getLong(0), c.getLong(3), cached,
+				  getScore(c.getInt(4), c.isNull(5) ? 0 : c.getLong(5),
+				    c.getInt(6), now)));
+			}
+		} finally {
+			c.close();
+		}
+
+		Collections.sort(candidates, SCORE_ORDER);
+
+		synchronized(this) {
+			if (generation != mGeneration)
+				return false;
+
+			mPending.clear();
+			mLoaded = true;
+
+			/* What's cached already counts towards the share too. */
+			long used = 0;
+			for (Candidate candidate: candidates)
+			{
+				if (used + candidate.size > budget)
+					continue;
+
+				used += candidate.size;
+
+				if (candidate.cached == false)
+					mPending.add(candidate.songId);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return
+	 *   True if the songs to precache have been chosen since the queue
+	 *   was last cleared.
+	 */
+	public synchronized boolean isLoaded()
+	{
+		return mLoaded;
+	}
+
+	public synchronized boolean isLoading()
+	{
+		return mLoading;
+	}
+
+	/**
+	 * @return
+	 *   The next song to precache, or -1 if there are none.
+	 */
+	public synchronized long peek()
+	{
+		return mPending.isEmpty() ? -1 : mPending.getFirst();
+	}
+
+	/**
+	 * Takes a song off the queue, whether it's now complete in the cache or
+	 * couldn't be downloaded.
+	 */
+	public synchronized void remove(long songId)
+	{
+		mPending.remove(songId);
+	}
+
+	/**
+	 * Empties the queue, for the songs to be chosen afresh next time.
+	 */
+	public synchronized void clear()
+	{
+		mPending.clear();
+		mLoaded = false;
+		mGeneration++;
+	}
+
+	/**
+	 * Clears the queue and stops the worker thread.
+	 */
+	public synchronized void close()
+	{
+		clear();
+
+		if (mWorker != null)
+		{
+			mWorker.getLooper().quit();
+			mWorker = null;
+		}
+	}
+}
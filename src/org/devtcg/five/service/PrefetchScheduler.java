@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.devtcg.five.util.streaming.ThroughputEstimator;
+
+/**
+ * Decides which tracks in the play queue should be downloading, and in
+ * which order of priority: the playing track first, then the next, then
+ * later tracks up to a configurable lookahead depth. The download manager
+ * runs the most urgent of these concurrently and pauses the rest, so the
+ * playing track always preempts prefetches.
+ * <p>
+ * How far past the next track we go depends on the observed download
+ * throughput: on a fast link, having the next track ready is plenty, while
+ * on a slow or flaky one we keep enough music lined up to ride out the
+ * time it would take to fetch the track after it.
+ */
+class PrefetchScheduler
+{
+	/**
+	 * Seconds of music we always want lined up behind the playing track
+	 * before looking further than the next one.
+	 */
+	private static final int MIN_LEAD_TIME = 60;
+
+	/**
+	 * Multiple of a track's estimated download time we want covered by
+	 * music ahead of it before we're comfortable not having started it.
+	 */
+	private static final int LEAD_SAFETY_FACTOR = 3;
+
+	private final ThroughputEstimator mThroughput;
+
+	private int mMaxDepth = 1;
+
+	public static class Track
+	{
+		public final long songId;
+
+		/** Size in bytes. */
+		public final long size;
+
+		/** Running time in seconds. */
+		public final int length;
+
+		/** True if the complete track is already in cache. */
+		public final boolean cached;
+
+		public Track(long songId, long size, int length, boolean cached)
+		{
+			this.songId = songId;
+			this.size = size;
+			this.length = length;
+			this.cached = cached;
+		}
+	}
+
+	public PrefetchScheduler(ThroughputEstimator throughput)
+	{
+		mThroughput = throughput;
+	}
+
+	/**
+	 * @param depth
+	 *            Maximum number of tracks after the playing one which may be
+	 *            prefetched.
+	 */
+	public synchronized void setMaxDepth(int depth)
+	{
+		mMaxDepth = Math.max(depth, 1);
+	}
+
+	public synchronized int getMaxDepth()
+	{
+		return mMaxDepth;
+	}
+
+	/**
+	 * @param tracks
+	 *            The playing track followed by the tracks due to play after
+	 *            it, in order.
+	 * @return Indexes into <code>tracks</code> of the tracks which should be
+	 *         downloading, most urgent first.
+	 */
+	public synchronized List<Integer> pick(List<Track> tracks)
+	{
+		ArrayList<Integer> picked = new ArrayList<Integer>();
+
+		if (tracks.isEmpty() == true)
+			return picked;
+
+		if (tracks.get(0).cached == false)
+			picked.add(0);
+
+		/* Seconds of music queued up behind the playing track. */
+		int lead = 0;
+
+		int n = Math.min(tracks.size(), mMaxDepth + 1);
+		for (int i = 1; i < n; i++)
+		{
+			Track track = tracks.get(i);
+
+			if (track.cached == false)
+			{
+				/* The next track is always worth having. */
+				if (i > 1 && lead >= getTargetLead(track))
+					break;
+
+				picked.add(i);
+			}
+
+			lead += track.length;
+		}
+
+		return picked;
+	}
+
+	/**
+	 * @return Seconds of music which should be lined up ahead of
+	 *         <code>track</code> before it's safe to hold off on fetching it.
+	 */
+	private int getTargetLead(Track track)
+	{
+		float bytesPerSecond = mThroughput.getBytesPerSecond();
+
+		/* Until we've measured anything, be cautious and go full depth. */
+		if (bytesPerSecond <= 0)
+			return Integer.MAX_VALUE;
+
+		long fetchTime = (long)(track.size / bytesPerSecond);
+
+		return (int)Math.min(Integer.MAX_VALUE,
+		  Math.max(MIN_LEAD_TIME, fetchTime * LEAD_SAFETY_FACTOR));
+	}
+}
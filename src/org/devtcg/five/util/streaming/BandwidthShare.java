@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import java.util.HashMap;
+
+import android.os.SystemClock;
+
+/**
+ * Weighted sharing of the download link between concurrent transfers. We
+ * can't schedule the network itself, but a transfer that stops reading
+ * from its socket is soon throttled by TCP flow control, leaving the link
+ * to the others. Each transfer reports what it has read and is made to wait
+ * whenever it gets too far ahead of its weighted share, in the manner of
+ * weighted fair queueing: every transfer accumulates "virtual time" at the
+ * rate of bytes read divided by its weight, and none may run more than a
+ * small window ahead of the slowest transfer still actively reading.
+ * <p>
+ * Transfers which have not read anything for a while (stalled on the
+ * network, or paused) are not waited for, so they cannot hold the others
+ * back.
+ */
+public class BandwidthShare
+{
+	/** How far (in weighted bytes) a transfer may run ahead of the others. */
+	private static final long WINDOW = 32 * 1024;
+
+	/** Transfers idle for this long no longer count as competing. */
+	private static final long IDLE_TIME = 500;
+
+	/** Upper bound on a single wait, in case the others stall silently. */
+	private static final long MAX_WAIT = IDLE_TIME;
+
+	private final HashMap<Object, Share> mShares = new HashMap<Object, Share>();
+
+	private static class Share
+	{
+		public int weight;
+		public double virtualTime;
+		public long lastActive;
+	}
+
+	/**
+	 * Starts sharing bandwidth with <code>transfer</code>, or changes the
+	 * weight of a transfer already registered.
+	 */
+	public synchronized void register(Object transfer, int weight)
+	{
+		if (weight <= 0)
+			throw new IllegalArgumentException("Weight must be positive");
+
+		Share share = mShares.get(transfer);
+		if (share == null)
+		{
+			share = new Share();
+			share.lastActive = SystemClock.elapsedRealtime();
+
+			/* Start level with the others rather than owed a backlog. */
+			share.virtualTime = getMinVirtualTime(null, share.lastActive, 0);
+
+			mShares.put(transfer, share);
+		}
+
+		share.weight = weight;
+		notifyAll();
+	}
+
+	public synchronized void unregister(Object transfer)
+	{
+		if (mShares.remove(transfer) != null)
+			notifyAll();
+	}
+
+	/**
+	 * Accounts for <code>bytes</code> read by <code>transfer</code> and
+	 * blocks for as long as it is ahead of its share.
+	 */
+	public synchronized void consume(Object transfer, int bytes)
+	  throws InterruptedException
+	{
+		Share share = mShares.get(transfer);
+		if (share == null)
+			return;
+
+		long now = SystemClock.elapsedRealtime();
+
+		/* Coming back from a stall doesn't earn any credit. */
+		if (now - share.lastActive > IDLE_TIME)
+			share.virtualTime = Math.max(share.virtualTime,
+			  getMinVirtualTime(share, now, share.virtualTime));
+
+		share.virtualTime += (double)bytes / share.weight;
+		share.lastActive = now;
+
+		notifyAll();
+
+		while (mShares.get(transfer) == share)
+		{
+			now = SystemClock.elapsedRealtime();
+
+			double min = getMinVirtualTime(share, now, share.virtualTime);
+			if (share.virtualTime - min <= (double)WINDOW / share.weight)
+				break;
+
+			wait(MAX_WAIT);
+
+			/* Waiting on the others isn't idleness. */
+			share.lastActive = SystemClock.elapsedRealtime();
+		}
+	}
+
+	/**
+	 * @return Lowest virtual time among active transfers other than
+	 *         <code>exclude</code>, or <code>fallback</code> if there are
+	 *         none.
+	 */
+	private double getMinVirtualTime(Share exclude, long now, double fallback)
+	{
+		double min = Double.MAX_VALUE;
+
+		for (Share share: mShares.values())
+		{
+			if (share == exclude || now - share.lastActive > IDLE_TIME)
+				continue;
+
+			if (share.virtualTime < min)
+				min = share.virtualTime;
+		}
+
+		return min == Double.MAX_VALUE ? fallback : min;
+	}
+}
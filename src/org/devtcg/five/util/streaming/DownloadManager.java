@@ -15,18 +15,21 @@
 package org.devtcg.five.util.streaming;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
@@ -34,8 +37,10 @@ import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
 import org.devtcg.five.Constants;
 import org.devtcg.util.CancelableThread;
+import org.devtcg.util.IOUtilities;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
@@ -45,8 +50,15 @@ import android.util.Log;
 
 /**
  * Abstraction to generically manage multiple simultaneous HTTP downloads.
- * Downloads using this class must have an HTTP Content-Length specified by the
- * server.
+ * Content length is taken from the server's response and may be unknown
+ * (chunked transfer, such as when the server transcodes on the fly) until
+ * the download completes.
+ * <p>
+ * Each download has a priority (lower values are more urgent). The most
+ * urgent few run concurrently, sharing the link in proportion to their
+ * priority (see {@link BandwidthShare}); the rest are paused, keeping their
+ * partial content, and resumed as soon as they are among the most urgent
+ * again.
  */
 public abstract class DownloadManager
 {
@@ -57,10 +69,33 @@ public abstract class DownloadManager
 
 	protected final ConnectivityManager mConnMan;
 
-	protected FailfastHttpClient mClient =
+	protected final FailfastHttpClient mClient =
 	  FailfastHttpClient.newInstance(null);
 
-	private volatile boolean mDuringShutdown = false;
+	/** Whether large files may be fetched over several connections. */
+	private volatile boolean mSegmented = false;
+
+	private final BandwidthShare mShare = new BandwidthShare();
+
+	private final ThroughputEstimator mThroughput = new ThroughputEstimator();
+
+	/** Used to order downloads of equal priority, most recent first. */
+	private int mPrioritySequence = 0;
+
+	/** Number of downloads allowed to transfer at the same time. */
+	private static final int MAX_ACTIVE_DOWNLOADS = 2;
+
+	/**
+	 * Number of downloads (running or paused) we keep around; beyond that,
+	 * the least urgent are stopped, leaving their partial content on disk.
+	 */
+	private static final int MAX_DOWNLOADS = 6;
+
+	/** Most urgent priority, given to content needed right now. */
+	public static final int PRIORITY_HIGHEST = 0;
+
+	/** Priority of downloads which should stay paused until reprioritized. */
+	public static final int PRIORITY_IDLE = Integer.MAX_VALUE;
 
 	/**
 	 * Number of times we will retry after unhandled errors.  Note that we
@@ -106,6 +141,10 @@ public abstract class DownloadManager
 	/** Download has permanently failed after too many unsuccessful retries. */
 	public static final int STATE_TOO_MANY_RETRIES = 6;
 
+	/** Download is paused in favour of more urgent downloads; to be resumed
+	 * when its priority allows. */
+	public static final int STATE_PAUSED_PREEMPTED = 9;
+
 	public DownloadManager(Context ctx)
 	{
 		mConnMan = (ConnectivityManager)ctx.getSystemService
@@ -113,26 +152,47 @@ public abstract class DownloadManager
 	}
 
 	/**
-	 * This method is provided to work around an apparent bug in HttpClient
-	 * where aborted connections stay in the connection pool. Therefore,
-	 * aborting downloads up to the connection pool limit will cause the
-	 * HttpClient to refuse to execute new methods.
+	 * Works around an apparent bug in HttpClient where aborted connections
+	 * stay leased from the connection pool, eventually causing it to refuse
+	 * to execute new methods. Called by download threads once they are done
+	 * with a request; any connection the calling thread still holds is
+	 * evicted, while idle keep-alive connections stay pooled for reuse.
 	 */
-	/* package */ synchronized void refreshHttpClient()
+	/* package */ void releaseConnections()
 	{
-		if (mDuringShutdown == false && mClient != null)
+		ClientConnectionManager ccm = mClient.getConnectionManager();
+		if (ccm instanceof HackThreadSafeClientConnManager)
 		{
-			mClient.close();
-			mClient = FailfastHttpClient.newInstance(null);
+			((HackThreadSafeClientConnManager)ccm)
+			  .releaseLeases(Thread.currentThread());
 		}
 	}
 
 	public void shutdown()
 	{
-		mDuringShutdown = true;
 		stopAllDownloads();
 	}
 
+	/**
+	 * Enables segmented mode, in which downloads of large files are split
+	 * into chunks fetched over several connections in parallel. This helps
+	 * to fill high latency links, at the cost of extra requests. Applies to
+	 * download attempts started from now on.
+	 */
+	public void setSegmented(boolean segmented)
+	{
+		mSegmented = segmented;
+	}
+
+	/**
+	 * @return Estimate of the download link's throughput, measured across
+	 *         all downloads.
+	 */
+	public ThroughputEstimator getThroughputEstimator()
+	{
+		return mThroughput;
+	}
+
 	public Download lookupDownload(String url)
 	{
 		return mDownloads.get(url);
@@ -140,13 +200,120 @@ public abstract class DownloadManager
 
 	public Download startDownload(String url, String path, long expectedContentLength,
 			long resumeFrom) throws IOException
+	{
+		return startDownload(url, path, expectedContentLength, resumeFrom,
+				PRIORITY_HIGHEST);
+	}
+
+	public Download startDownload(String url, String path, long expectedContentLength,
+			long resumeFrom, int priority) throws IOException
 	{
 		Download d = newDownload(url, path, expectedContentLength, resumeFrom);
+
+		synchronized(this) {
+			d.mPriority = priority;
+			d.mPrioritySequence = ++mPrioritySequence;
+		}
+
 		mDownloads.put(url, d);
-		d.start();
+
+		/* Started by rebalance(), once it knows whether to run and at what share. */
+		rebalance();
+
 		return d;
 	}
 
+	/**
+	 * Changes the priority of a download, pausing or resuming it and any
+	 * others as necessary.
+	 */
+	public void setPriority(Download d, int priority)
+	{
+		synchronized(this) {
+			if (d.mPriority == priority)
+				return;
+
+			d.mPriority = priority;
+			d.mPrioritySequence = ++mPrioritySequence;
+		}
+
+		rebalance();
+	}
+
+	/**
+	 * Lets the most urgent downloads run, weighted by priority, and pauses
+	 * the others. New downloads are started here, once they have been
+	 * given their share or preempted.
+	 */
+	private void rebalance()
+	{
+		ArrayList<Download> excess = null;
+
+		/*
+		 * Ordering and applying it are done under the one lock, so that a
+		 * caller working from an older ordering can't finish last and undo
+		 * a newer one.
+		 */
+		synchronized(this) {
+			List<Download> downloads = getDownloadsCopy();
+			Collections.sort(downloads, PRIORITY_ORDER);
+
+			for (int i = 0; i < downloads.size(); i++)
+			{
+				Download d = downloads.get(i);
+				int priority = d.mPriority;
+
+				if (i < MAX_ACTIVE_DOWNLOADS && priority != PRIORITY_IDLE)
+				{
+					mShare.register(d, getWeight(priority));
+					d.resumePreempted();
+				}
+				else
+				{
+					mShare.unregister(d);
+					d.preempt();
+
+					if (i >= MAX_DOWNLOADS)
+					{
+						if (excess == null)
+							excess = new ArrayList<Download>();
+						excess.add(d);
+					}
+				}
+
+				if (d.getState() == Thread.State.NEW)
+					d.start();
+			}
+		}
+
+		/* Stopping joins the download threads, so not while holding the lock. */
+		if (excess != null)
+		{
+			for (Download d: excess)
+				stopDownload(d);
+		}
+	}
+
+	/**
+	 * @return Share of bandwidth given to a running download, relative to
+	 *         the others.
+	 */
+	private static int getWeight(int priority)
+	{
+		return priority < 3 ? 8 >> priority : 1;
+	}
+
+	private static final Comparator<Download> PRIORITY_ORDER = new Comparator<Download>()
+	{
+		public int compare(Download a, Download b)
+		{
+			if (a.mPriority != b.mPriority)
+				return a.mPriority < b.mPriority ? -1 : 1;
+
+			return b.mPrioritySequence - a.mPrioritySequence;
+		}
+	};
+
 	public void stopDownload(String url)
 	{
 		stopDownload(mDownloads.get(url));
@@ -156,10 +323,10 @@ public abstract class DownloadManager
 	{
 		if (d != null)
 		{
-			/* It's important that we synchronously join this thread as an
-			 * abort causes the HttpClient instance we use to shutdown
-			 * and recreate.  It's important that we don't then schedule
-			 * some new download on the soon-to-be-closed instance. */
+			/* Join the thread so that by the time we return it has stopped
+			 * writing to the destination file and released its connections.
+			 * Callers may go on to restart the download over the same file,
+			 * or to delete it. */
 			d.requestCancelAndWait();
 		}
 	}
@@ -196,7 +363,11 @@ public abstract class DownloadManager
 
 	protected void removeDownload(String url)
 	{
-		mDownloads.remove(url);
+		Download d = mDownloads.remove(url);
+		if (d != null)
+			mShare.unregister(d);
+
+		rebalance();
 	}
 
 	public List<Download> getDownloadsCopy()
@@ -241,16 +412,38 @@ public abstract class DownloadManager
 	public abstract void onFinished(String url);
 
 	public static class Download extends CancelableThread
+	  implements DownloadProgress.FillRequester
 	{
 		private static final int BUFFER_SIZE = 2048;
 
+		/**
+		 * Readers this close ahead of the sequential download (or of an
+		 * active range fetch) simply wait for it to arrive.
+		 */
+		private static final int FILL_DISTANCE = 256 * 1024;
+
+		/** Persist the written ranges after about this many bytes. */
+		private static final int SAVE_INTERVAL = 256 * 1024;
+
+		/** Smallest file worth fetching in segments. */
+		private static final long SEGMENT_THRESHOLD = 16 * 1024 * 1024;
+
+		/** Size of each ranged request in segmented mode. */
+		private static final int SEGMENT_CHUNK_SIZE = 512 * 1024;
+
+		/** Number of connections a segmented download uses at once. */
+		private static final int SEGMENT_CONNECTIONS = 3;
+
+		private static final Pattern CONTENT_RANGE_PATTERN =
+		  Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
 		private static final AtomicInteger mCount = new AtomicInteger(1);
 
 		private final DownloadManager mManager;
 		private final String mUrl;
 		private final File mDest;
 
-		private final FileOutputStream mOut;
+		private final RandomAccessFile mOut;
 		private HttpGet mMethod;
 
 		private final Object mPauseLock = new Object();
@@ -264,26 +457,48 @@ public abstract class DownloadManager
 
 		private final Object mResponseLock = new Object();
 		private volatile boolean mPostResponse;
-		private long mBytes = 0;
-		private long mLength = -1;
+		private volatile long mBytes = 0;
+		private volatile long mLength = -1;
 		private final long mExpectedLength;
 
 		private int mLastProgress = 0;
 
+		/** Set once all content has been received. */
+		private boolean mComplete;
+
+		private final DownloadProgress mProgress;
+
+		private long mUnsavedBytes;
+
+		private final Object mFetchLock = new Object();
+		private RangeFetch mFetch;
+
+		/* Segmented mode state. */
+		private volatile boolean mSegmentsUnsupported;
+		private volatile long mPlayhead;
+		private final HashSet<Long> mClaimedChunks = new HashSet<Long>();
+		private final HashSet<HttpGet> mSegmentMethods = new HashSet<HttpGet>();
+		private IOException mSegmentError;
+
+		/* Guarded by the manager. */
+		private int mPriority = PRIORITY_HIGHEST;
+		private int mPrioritySequence;
+
+		/**
+		 * Set while paused in favour of more urgent downloads. Changed only
+		 * by the manager's rebalance(), under mPauseLock.
+		 */
+		private volatile boolean mPreempted;
+
+		/** Validator of the content as last served to us, or null. */
+		private volatile String mValidator;
+
 		/**
 		 * @param expectedContentLength
-		 *            The presence of this field is a mistake. We assume that
-		 *            the server will respond with this content length (as this
-		 *            was the file size reported during the last sync), but this
-		 *            assumption is used in the tail reading stream to mean the
-		 *            actual amount of data to wait on! This means if the file
-		 *            has changed at all, even if slightly (say, meta data
-		 *            modified), the playback attempt may lock up towards the
-		 *            end. Also, this will prevent us from ever doing
-		 *            transcoding, so really we should nuke this field and find
-		 *            a better way to defer the necessity of this value until it
-		 *            has been provided by the server in response to this
-		 *            download.
+		 *            Content length we expect the server to respond with (the
+		 *            file size reported during the last sync), or -1 if
+		 *            unknown. This is only advisory; readers learn the actual
+		 *            length from {@link #getDownloadProgress()}.
 		 */
 		private Download(DownloadManager mgr, String url, String path,
 				long expectedContentLength, long resumeFrom) throws IOException
@@ -295,9 +510,36 @@ public abstract class DownloadManager
 			mDest = new File(path);
 
 			mExpectedLength = expectedContentLength;
-			mResumeFrom = resumeFrom;
-			mBytes = resumeFrom;
-			mOut = new FileOutputStream(path, (resumeFrom > 0));
+
+			/*
+			 * The destination may have been filled out of order by range
+			 * fetches during a previous attempt, in which case we resume
+			 * from the first hole rather than from its length.
+			 */
+			RangeMap filled;
+			if (resumeFrom > 0)
+			{
+				filled = RangeMap.load(mDest);
+
+				/* Only the rest of the same content will do. */
+				mValidator = filled.getValidator();
+			}
+			else
+			{
+				filled = new RangeMap();
+				RangeMap.getSidecar(mDest).delete();
+			}
+
+			mProgress = new DownloadProgress(filled);
+			mProgress.setFillRequester(this);
+
+			mResumeFrom = mProgress.getBytes();
+			mBytes = mResumeFrom;
+			mPlayhead = mResumeFrom;
+
+			mOut = new RandomAccessFile(mDest, "rw");
+			if (resumeFrom == 0)
+				mOut.setLength(0);
 		}
 
 		public String getUrl()
@@ -320,6 +562,65 @@ public abstract class DownloadManager
 			return mStateMsg;
 		}
 
+		public int getDownloadPriority()
+		{
+			synchronized(mManager) {
+				return mPriority;
+			}
+		}
+
+		/**
+		 * Pauses the transfer, dropping the connection, until
+		 * {@link #resumePreempted()} is called.
+		 */
+		private void preempt()
+		{
+			synchronized(mPauseLock) {
+				if (mPreempted == true)
+					return;
+
+				mPreempted = true;
+			}
+
+			synchronized(this) {
+				if (mMethod != null)
+					mMethod.abort();
+			}
+
+			cancelRangeFetch(false);
+			abortSegments();
+		}
+
+		private void resumePreempted()
+		{
+			synchronized(mPauseLock) {
+				if (mPreempted == false)
+					return;
+
+				mPreempted = false;
+				mPauseLock.notify();
+			}
+		}
+
+		private void waitWhilePreempted() throws AbortedException
+		{
+			if (mPreempted == false)
+				return;
+
+			Log.i(DownloadManager.TAG, "Pausing in favour of other downloads: " + mUrl);
+
+			setState(STATE_PAUSED_PREEMPTED);
+
+			synchronized(mPauseLock) {
+				while (mPreempted == true && hasCanceled() == false)
+				{
+					try {
+						mPauseLock.wait();
+					} catch (InterruptedException e) {}
+				}
+			}
+		}
+
 		@Override
 		protected void onRequestCancel()
 		{
@@ -330,13 +631,8 @@ public abstract class DownloadManager
 				if (mMethod != null)
 					mMethod.abort();
 
-				/*
-				 * HttpClient4 that ships with Android apparently has issues
-				 * releasing connections properly when their method is
-				 * prematurely aborted. To work around this issue, we recreate
-				 * the HttpClient object on abort only.
-				 */
-				mManager.refreshHttpClient();
+				cancelRangeFetch(false);
+				abortSegments();
 
 				/* We've changed the state away from paused so this should
 				 * work just fine to break out of that loop. */
@@ -380,9 +676,14 @@ public abstract class DownloadManager
 			return mExpectedLength;
 		}
 
+		/**
+		 * @return The content length the server responded with, or -1 if not
+		 *         yet known (either no response yet, or a chunked response
+		 *         which has not completed).
+		 */
 		public long getContentLength()
 		{
-			return mLength;
+			return mProgress.getLength();
 		}
 
 		/**
@@ -410,6 +711,49 @@ public abstract class DownloadManager
 			return mLastProgress;
 		}
 
+		/**
+		 * @return The entity tag of the content, or failing that its last
+		 *         modification date, as given by the server in its most
+		 *         recent response (suitable for an If-Range header); null if
+		 *         neither was given or there hasn't been a response yet.
+		 */
+		public String getValidator()
+		{
+			return mValidator;
+		}
+
+		/**
+		 * @return True once all content has been received.
+		 */
+		public boolean isComplete()
+		{
+			return mComplete;
+		}
+
+		/**
+		 * Asks for a range of the content, as long as it is still the content
+		 * we've been writing. Should it have changed on the server, the
+		 * whole of the new content is sent instead.
+		 */
+		private void addRangeHeaders(HttpGet method, String range)
+		{
+			method.addHeader("Range", "bytes=" + range);
+
+			String validator = mValidator;
+			if (validator != null)
+				method.addHeader("If-Range", validator);
+		}
+
+		/**
+		 * Access the number of bytes written to the destination so far.
+		 * Readers tailing the destination may block on this object until
+		 * more data arrives.
+		 */
+		public DownloadProgress getDownloadProgress()
+		{
+			return mProgress;
+		}
+
 		public synchronized void setState(int state)
 		  throws AbortedException
 		{
@@ -427,13 +771,28 @@ public abstract class DownloadManager
 			mManager.onStateChange(mUrl, state, message);
 		}
 
+		private boolean shouldSegment()
+		{
+			if (mManager.mSegmented == false || mSegmentsUnsupported == true)
+				return false;
+
+			long length = mLength >= 0 ? mLength : mExpectedLength;
+			return length >= SEGMENT_THRESHOLD;
+		}
+
 		private void tryDownload()
 		  throws Exception
 		{
+			if (shouldSegment() == true)
+			{
+				tryDownloadSegmented();
+				return;
+			}
+
 			HttpGet method = new HttpGet(mUrl);
 
 			if (mResumeFrom > 0)
-				method.addHeader("Range", "bytes=" + mResumeFrom + "-");
+				addRangeHeaders(method, mResumeFrom + "-");
 
 			setState(STATE_CONNECTING);
 
@@ -451,13 +810,7 @@ public abstract class DownloadManager
 				HttpEntity ent = null;
 
 				try {
-					/* Synchronization is necessary as we need to
-					 * reset the mClient instance to work around a
-					 * connection release bug in HttpClient 4.x. */
-					HttpClient client;
-					synchronized(mManager) {
-						client = mManager.mClient;
-					}
+					HttpClient client = mManager.mClient;
 
 					HttpResponse resp = client.execute(mMethod);
 
@@ -466,6 +819,14 @@ public abstract class DownloadManager
 					StatusLine status = resp.getStatusLine();
 					int statusCode = status.getStatusCode();
 
+					if (mResumeFrom > 0 && statusCode == HttpStatus.SC_OK &&
+					  method.containsHeader("If-Range") == true)
+					{
+						Log.i(DownloadManager.TAG, "Content changed since " +
+						  mResumeFrom + " bytes were written, starting over: " + mUrl);
+						restart();
+					}
+
 					if (mResumeFrom == 0)
 					{
 						if (statusCode != HttpStatus.SC_OK)
@@ -480,38 +841,29 @@ public abstract class DownloadManager
 					if ((ent = resp.getEntity()) == null)
 						throw new IOException("No entity?");
 
+					mValidator = parseValidator(resp);
+
 					if (mResumeFrom == 0)
+					{
+						/* -1 for chunked responses, resolved on completion. */
 						mLength = ent.getContentLength();
+					}
 					else
 					{
-						String rangeHdr =
-							resp.getLastHeader("Content-Range").getValue();
-
-						Matcher matcher =
-						  Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)")
-							.matcher(rangeHdr);
-
-						if (matcher.matches() == false)
-							throw new IOException("Can't parse Content-Range");
-
-						long firstBytePos = Long.parseLong(matcher.group(1));
-						long lastBytePos = Long.parseLong(matcher.group(2));
-						long length = Long.parseLong(matcher.group(3));
+						Header rangeHdr = resp.getLastHeader("Content-Range");
+						if (rangeHdr == null)
+							throw new IOException("Range request answered without Content-Range");
 
-						if (lastBytePos + 1 != length)
-							throw new IOException("Range request inconsistently answered");
-
-						if (firstBytePos != mResumeFrom)
-							throw new IOException("Range request inconsistently answered");
-
-						mLength = length;
+						mLength = parseContentRange(rangeHdr.getValue(), mResumeFrom);
 					}
 
-					if (mLength != mExpectedLength)
+					if (mLength >= 0 && mExpectedLength >= 0 && mLength != mExpectedLength)
 					{
 						Log.w(Constants.TAG, "Content-Length response (" + mLength +
 								") did not match our expectation (" + mExpectedLength + ")");
 					}
+
+					mProgress.setResponse(mLength);
 				} finally {
 					synchronized(mResponseLock) {
 						mPostResponse = true;
@@ -524,6 +876,12 @@ public abstract class DownloadManager
 
 				in = ent.getContent();
 
+				try {
+					mOut.seek(mResumeFrom);
+				} catch (IOException e) {
+					throw new LocalIOException(e);
+				}
+
 				byte[] b = new byte[BUFFER_SIZE];
 				int n;
 
@@ -532,16 +890,52 @@ public abstract class DownloadManager
 					if (hasCanceled())
 						break;
 
+					if (mPreempted == true)
+						throw new PreemptedException();
+
 					try {
 						mOut.write(b, 0, n);
 					} catch (IOException e) {
 						throw new LocalIOException(e);
 					}
 
+					long start = mBytes;
 					mBytes += n;
+					mProgress.filled(start, mBytes);
+
+					mUnsavedBytes += n;
+					if (mUnsavedBytes >= SAVE_INTERVAL)
+						saveRanges();
+
+					mManager.mThroughput.addBytes(n);
+
+					/* Give way to more urgent downloads if we're ahead. */
+					try {
+						mManager.mShare.consume(this, n);
+					} catch (InterruptedException e) {}
+
+					/*
+					 * Ran into data already fetched out of order; jump past
+					 * it with a new request rather than download it twice.
+					 */
+					long skipTo = mProgress.getAvailable(mBytes);
+					if (skipTo > mBytes)
+					{
+						mBytes = skipTo;
+
+						if (mLength < 0 || mBytes < mLength)
+						{
+							method.abort();
+							throw new SkipAheadException();
+						}
+					}
+
+					/* Percentage can't be known for chunked responses. */
+					if (mLength <= 0)
+						continue;
 
 					int progress = (int)
-					  (((float)mBytes / (float)mLength) * 100f);
+					  (((float)mProgress.getFilledBytes() / (float)mLength) * 100f);
 
 					if (progress > mLastProgress)
 					{
@@ -550,8 +944,28 @@ public abstract class DownloadManager
 					}
 				}
 
-				if (mBytes < mLength)
+				if (hasCanceled())
+					throw new AbortedException();
+
+				if (mLength >= 0 && mBytes < mLength)
 					throw new HttpException("Server didn't send as much as it said it would.");
+
+				/*
+				 * A range fetch may still be writing a region we skipped
+				 * over; it must finish before the content is complete.
+				 */
+				cancelRangeFetch(true);
+
+				if (mLength >= 0 && mProgress.getBytes() < mLength)
+				{
+					mResumeFrom = mBytes = mProgress.getBytes();
+					throw new SkipAheadException();
+				}
+
+				if (mLength < 0)
+					mLength = mBytes;
+
+				mComplete = true;
 			} catch (HttpException e) {
 				setState(STATE_HTTP_ERROR, e.toString());
 				throw e;
@@ -559,6 +973,10 @@ public abstract class DownloadManager
 				setState(STATE_FILE_ERROR, e.toString());
 				throw e;
 			} catch (IOException e) {
+				/* The connection was dropped on purpose. */
+				if (mPreempted == true)
+					throw new PreemptedException();
+
 				if (mManager.isNetworkAvailable() == false)
 					setState(STATE_PAUSED_LOCAL_FAILURE, e.toString());
 				else
@@ -571,6 +989,8 @@ public abstract class DownloadManager
 
 				if (in != null)
 					try { in.close(); } catch (IOException e) {}
+
+				mManager.releaseConnections();
 			}
 		}
 
@@ -583,10 +1003,28 @@ DOWNLOAD_RETRY_LOOP:
 			{
 				boolean pauseIndefinitely = false;
 
+				long filledBefore = mProgress.getFilledBytes();
+
 				try {
+					waitWhilePreempted();
 					tryDownload();
+
+					if (mComplete == true)
+						commitContent();
+
 					mManager.onFinished(mUrl);
 					break;
+				} catch (SkipAheadException e) {
+					if (Constants.DEBUG)
+						Log.d(DownloadManager.TAG, "Skipping ahead to " + mBytes + ": " + mUrl);
+
+					mResumeFrom = mBytes;
+					continue;
+				} catch (PreemptedException e) {
+					/* Resume from where we left off once allowed. */
+					mResumeFrom = mBytes;
+					saveRanges();
+					continue;
 				} catch (Exception e) {
 					Log.d(DownloadManager.TAG,
 						"Download of " + mUrl + " failed: " + e.toString());
@@ -597,7 +1035,7 @@ DOWNLOAD_RETRY_LOOP:
 					case STATE_HTTP_ERROR:
 						/* Don't count as a retry failure unless no data was
 						 * downloaded during this attempt. */
-						if (mBytes > mResumeFrom)
+						if (mProgress.getFilledBytes() > filledBefore)
 							mAttempts = 0;
 						else
 						{
@@ -654,20 +1092,676 @@ DOWNLOAD_RETRY_LOOP:
 				Log.i(DownloadManager.TAG, "Retrying download: " + mUrl);
 			}
 
+			cancelRangeFetch(true);
+
+			if (mComplete == false && mDest.exists() == true)
+				saveRanges();
+
 			try {
 				mOut.close();
 			} catch (IOException e) {
 				Log.e(DownloadManager.TAG, "TODO: HANDLE ME", e);
 			}
 
+			mProgress.finish(mComplete);
+
 			mManager.removeDownload(mUrl);
 		}
 
-		private static class AbortedException extends Exception {}
-		private static class LocalIOException extends Exception
+		/**
+		 * @return A strong entity tag if the response has one, else its
+		 *         Last-Modified date, else null.
+		 */
+		private static String parseValidator(HttpResponse resp)
 		{
-			public LocalIOException(IOException e) {
-				super(e);
+			Header etag = resp.getLastHeader("ETag");
+
+			/* Weak tags can't be used for range requests. */
+			if (etag != null && etag.getValue().startsWith("W/") == false)
+				return etag.getValue();
+
+			Header lastModified = resp.getLastHeader("Last-Modified");
+			if (lastModified != null)
+				return lastModified.getValue();
+
+			return null;
+		}
+
+		/**
+		 * @return The complete length given by a Content-Range header, or -1
+		 *         if the server does not know it.
+		 */
+		private static long parseContentRange(String value, long expectedStart)
+		  throws IOException
+		{
+			return parseContentRange(value, expectedStart, -1);
+		}
+
+		/**
+		 * @param expectedLast
+		 *            Last byte position requested, or -1 if the request ran to
+		 *            the end of the content.
+		 */
+		private static long parseContentRange(String value, long expectedStart,
+		  long expectedLast) throws IOException
+		{
+			/*
+			 * The complete length may be given as "*" when the server is
+			 * producing the content on the fly.
+			 */
+			Matcher matcher = CONTENT_RANGE_PATTERN.matcher(value);
+
+			if (matcher.matches() == false)
+				throw new IOException("Can't parse Content-Range");
+
+			long firstBytePos = Long.parseLong(matcher.group(1));
+			long lastBytePos = Long.parseLong(matcher.group(2));
+			long length = matcher.group(3).equals("*") ? -1 :
+			  Long.parseLong(matcher.group(3));
+
+			if (expectedLast >= 0)
+			{
+				if (lastBytePos != expectedLast)
+					throw new IOException("Range request inconsistently answered");
+			}
+			else if (length >= 0 && lastBytePos + 1 != length)
+				throw new IOException("Range request inconsistently answered");
+
+			if (firstBytePos != expectedStart)
+				throw new IOException("Range request inconsistently answered");
+
+			return length;
+		}
+
+		/**
+		 * Fetches the missing content in {@link #SEGMENT_CHUNK_SIZE} ranges
+		 * over {@link #SEGMENT_CONNECTIONS} connections, always claiming the
+		 * missing chunk nearest the playhead next. Returns once the content
+		 * is complete; if the server turns out not to support ranges, falls
+		 * back to a regular download.
+		 */
+		private void tryDownloadSegmented()
+		  throws Exception
+		{
+			setState(STATE_CONNECTING);
+
+			if (mLength < 0)
+				mLength = mExpectedLength;
+
+			synchronized(mFetchLock) {
+				mSegmentError = null;
+				mClaimedChunks.clear();
+			}
+
+			SegmentWorker[] workers = new SegmentWorker[SEGMENT_CONNECTIONS - 1];
+
+			try {
+				for (int i = 0; i < workers.length; i++)
+				{
+					workers[i] = new SegmentWorker(i + 1);
+					workers[i].start();
+				}
+
+				/* This thread is a worker too. */
+				fetchSegments();
+			} catch (IOException e) {
+				setSegmentError(e);
+			} finally {
+				for (SegmentWorker worker: workers)
+				{
+					if (worker != null)
+						worker.joinUninterruptibly();
+				}
+
+				synchronized(mResponseLock) {
+					mPostResponse = true;
+					mResponseLock.notify();
+				}
+
+				/* In case we have to carry on with a regular download. */
+				mResumeFrom = mBytes = mProgress.getBytes();
+			}
+
+			if (hasCanceled())
+				throw new AbortedException();
+
+			if (mPreempted == true)
+				throw new PreemptedException();
+
+			IOException error;
+			synchronized(mFetchLock) {
+				error = mSegmentError;
+			}
+
+			try {
+				if (error instanceof RangeNotSupportedException)
+				{
+					Log.i(DownloadManager.TAG, "Server won't serve ranges, not segmenting: " + mUrl);
+					mSegmentsUnsupported = true;
+					throw new SkipAheadException();
+				}
+				else if (error instanceof LocalIOException.Wrapper)
+					throw new LocalIOException((IOException)error.getCause());
+				else if (error != null)
+					throw error;
+
+				if (mProgress.getBytes() < mLength)
+					throw new IOException("Segmented download incomplete");
+			} catch (LocalIOException e) {
+				setState(STATE_FILE_ERROR, e.toString());
+				throw e;
+			} catch (IOException e) {
+				if (mManager.isNetworkAvailable() == false)
+					setState(STATE_PAUSED_LOCAL_FAILURE, e.toString());
+				else
+					setState(STATE_PAUSED_REMOTE_FAILURE, e.toString());
+				throw e;
+			}
+
+			mComplete = true;
+		}
+
+		private void setSegmentError(IOException e)
+		{
+			synchronized(mFetchLock) {
+				if (mSegmentError == null)
+					mSegmentError = e;
+			}
+
+			/* No point in the others carrying on. */
+			abortSegments();
+		}
+
+		private void abortSegments()
+		{
+			synchronized(mSegmentMethods) {
+				for (HttpGet method: mSegmentMethods)
+					method.abort();
+			}
+		}
+
+		/**
+		 * @return The index of the chunk to fetch next, or -1 if there are
+		 *         none left unclaimed.
+		 */
+		private long claimChunk()
+		{
+			synchronized(mFetchLock) {
+				if (mSegmentError != null)
+					return -1;
+
+				long length = mLength;
+				long count = (length + SEGMENT_CHUNK_SIZE - 1) / SEGMENT_CHUNK_SIZE;
+				long first = Math.min(mPlayhead / SEGMENT_CHUNK_SIZE, count - 1);
+
+				/* Work forward from the playhead, then wrap around. */
+				for (long i = 0; i < count; i++)
+				{
+					long chunk = (first + i) % count;
+
+					if (mClaimedChunks.contains(chunk) == true)
+						continue;
+
+					long end = Math.min((chunk + 1) * SEGMENT_CHUNK_SIZE, length);
+					if (mProgress.getAvailable(chunk * SEGMENT_CHUNK_SIZE) >= end)
+						continue;
+
+					mClaimedChunks.add(chunk);
+					return chunk;
+				}
+
+				return -1;
+			}
+		}
+
+		/**
+		 * Claims and fetches chunks until there are none left.
+		 */
+		private void fetchSegments() throws IOException
+		{
+			RandomAccessFile out;
+			try {
+				out = new RandomAccessFile(mDest, "rw");
+			} catch (IOException e) {
+				throw new LocalIOException.Wrapper(e);
+			}
+
+			try {
+				long chunk;
+				while (hasCanceled() == false && mPreempted == false &&
+				  (chunk = claimChunk()) >= 0)
+				{
+					try {
+						fetchChunk(chunk, out);
+					} finally {
+						synchronized(mFetchLock) {
+							mClaimedChunks.remove(chunk);
+						}
+					}
+				}
+			} finally {
+				IOUtilities.close(out);
+			}
+		}
+
+		private void fetchChunk(long chunk, RandomAccessFile out) throws IOException
+		{
+			long start = mProgress.getAvailable(chunk * SEGMENT_CHUNK_SIZE);
+			long end = Math.min((chunk + 1) * SEGMENT_CHUNK_SIZE, mLength);
+
+			HttpGet method = new HttpGet(mUrl);
+			addRangeHeaders(method, start + "-" + (end - 1));
+
+			synchronized(mSegmentMethods) {
+				mSegmentMethods.add(method);
+			}
+
+			InputStream in = null;
+
+			try {
+				/* Picked up by abortSegments() if we raced with it. */
+				if (hasCanceled() == true || mPreempted == true)
+					return;
+
+				HttpClient client = mManager.mClient;
+
+				HttpResponse resp = client.execute(method);
+
+				StatusLine status = resp.getStatusLine();
+				if (status.getStatusCode() == HttpStatus.SC_OK)
+					throw new RangeNotSupportedException();
+				else if (status.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT)
+					throw new IOException("HTTP GET failed: " + status);
+
+				Header rangeHdr = resp.getLastHeader("Content-Range");
+				HttpEntity ent = resp.getEntity();
+				if (rangeHdr == null || ent == null)
+					throw new IOException("Range request answered without content");
+
+				long length = parseContentRange(rangeHdr.getValue(), start, end - 1);
+				mValidator = parseValidator(resp);
+				onSegmentResponse(length);
+
+				/* Our chunk map assumed the synced size; redo it if wrong. */
+				if (length != mLength)
+					throw new IOException("Unexpected content length " + length);
+
+				in = ent.getContent();
+
+				byte[] b = new byte[BUFFER_SIZE];
+				long position = start;
+				int n;
+
+				while (position < end && (n = in.read(b)) >= 0)
+				{
+					if (hasCanceled() == true || mPreempted == true)
+						return;
+
+					n = (int)Math.min(n, end - position);
+
+					try {
+						out.seek(position);
+						out.write(b, 0, n);
+					} catch (IOException e) {
+						throw new LocalIOException.Wrapper(e);
+					}
+
+					mProgress.filled(position, position + n);
+					position += n;
+
+					onSegmentProgress(n);
+					mManager.mThroughput.addBytes(n);
+
+					try {
+						mManager.mShare.consume(this, n);
+					} catch (InterruptedException e) {}
+				}
+
+				if (position < end)
+					throw new IOException("Server sent less than requested");
+
+				/* Hand the connection back for the next chunk. */
+				in.close();
+				in = null;
+			} finally {
+				synchronized(mSegmentMethods) {
+					mSegmentMethods.remove(method);
+				}
+
+				/* Don't let HttpClient drain anything left over. */
+				if (in != null)
+					method.abort();
+
+				mManager.releaseConnections();
+			}
+		}
+
+		/**
+		 * Called by each segment worker as its response arrives; the first
+		 * tells us (and any readers) the content length.
+		 */
+		private void onSegmentResponse(long length) throws IOException
+		{
+			synchronized(mResponseLock) {
+				if (mPostResponse == true)
+					return;
+
+				/* Can't plan chunks without it. */
+				if (length < 0)
+					throw new RangeNotSupportedException();
+
+				if (length != mLength)
+				{
+					Log.w(Constants.TAG, "Content-Range length (" + length +
+							") did not match our expectation (" + mLength + ")");
+				}
+
+				try {
+					setState(STATE_CONNECTED);
+				} catch (AbortedException e) {
+					throw new IOException("Aborted");
+				}
+
+				mLength = length;
+				mProgress.setResponse(length);
+
+				mPostResponse = true;
+				mResponseLock.notify();
+			}
+		}
+
+		private void onSegmentProgress(int bytes)
+		{
+			int progress = (int)
+			  (((float)mProgress.getFilledBytes() / (float)mLength) * 100f);
+
+			boolean save = false;
+			boolean update = false;
+
+			synchronized(mFetchLock) {
+				mUnsavedBytes += bytes;
+				if (mUnsavedBytes >= SAVE_INTERVAL)
+				{
+					mUnsavedBytes = 0;
+					save = true;
+				}
+
+				if (progress > mLastProgress)
+				{
+					mLastProgress = progress;
+					update = true;
+				}
+			}
+
+			if (save == true)
+				saveRanges();
+
+			if (update == true)
+				mManager.onProgressUpdate(mUrl, progress);
+		}
+
+		/**
+		 * Additional connection fetching chunks for a segmented download.
+		 */
+		private class SegmentWorker extends CancelableThread
+		{
+			public SegmentWorker(int number)
+			{
+				super("Segment #" + number + ": " + mUrl);
+			}
+
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+				try {
+					fetchSegments();
+				} catch (IOException e) {
+					if (Download.this.hasCanceled() == false && mPreempted == false)
+						setSegmentError(e);
+				}
+			}
+		}
+
+		/**
+		 * Throws away what has been written so far, for the content to be
+		 * written again from the start. Readers tailing the destination
+		 * will have seen some of the old content; there's nothing we can
+		 * do about that.
+		 */
+		private void restart() throws LocalIOException
+		{
+			cancelRangeFetch(true);
+
+			try {
+				mOut.setLength(0);
+			} catch (IOException e) {
+				throw new LocalIOException(e);
+			}
+
+			RangeMap.getSidecar(mDest).delete();
+			mProgress.reset();
+
+			mResumeFrom = mBytes = mPlayhead = 0;
+			mUnsavedBytes = 0;
+		}
+
+		/**
+		 * Makes sure all content has reached the disk before dropping the
+		 * range map, our record of how much of it had.
+		 */
+		private void commitContent() throws AbortedException, LocalIOException
+		{
+			try {
+				mOut.getFD().sync();
+			} catch (IOException e) {
+				setState(STATE_FILE_ERROR, e.toString());
+				throw new LocalIOException(e);
+			}
+
+			RangeMap.getSidecar(mDest).delete();
+		}
+
+		private void saveRanges()
+		{
+			mUnsavedBytes = 0;
+
+			try {
+				/* Never record more than has actually reached the disk. */
+				mOut.getFD().sync();
+				mProgress.saveRanges(mDest, mValidator);
+			} catch (IOException e) {
+				/* Worst case we'll download some of it again. */
+				Log.w(DownloadManager.TAG, "Unable to save ranges for " + mDest + ": " + e);
+			}
+		}
+
+		/**
+		 * Fetches the region at <code>position</code> out of order, unless
+		 * the sequential download or an active range fetch is about to get
+		 * there anyway. Only one range fetch runs at a time; a request
+		 * elsewhere replaces it.
+		 */
+		public void requestFill(long position)
+		{
+			/* Segmented downloads always work outward from the playhead. */
+			mPlayhead = position;
+
+			if (shouldSegment() == true)
+				return;
+
+			long length = mLength;
+
+			/* Can't ask for ranges of content whose length we don't know. */
+			if (length < 0 || position >= length)
+				return;
+
+			if (position >= mBytes && position < mBytes + FILL_DISTANCE)
+				return;
+
+			synchronized(mFetchLock) {
+				if (hasCanceled() == true || mComplete == true || isAlive() == false)
+					return;
+
+				if (mFetch != null)
+				{
+					if (mFetch.isAlive() == true && mFetch.covers(position) == true)
+						return;
+
+					mFetch.requestCancel();
+				}
+
+				if (Constants.DEBUG)
+					Log.d(DownloadManager.TAG, "Fetching range from " + position + ": " + mUrl);
+
+				mFetch = new RangeFetch(position);
+				mFetch.start();
+			}
+		}
+
+		private void cancelRangeFetch(boolean wait)
+		{
+			RangeFetch fetch;
+
+			synchronized(mFetchLock) {
+				fetch = mFetch;
+				mFetch = null;
+			}
+
+			if (fetch != null)
+			{
+				if (wait == true)
+					fetch.requestCancelAndWait();
+				else
+					fetch.requestCancel();
+			}
+		}
+
+		/**
+		 * Ranged request filling the destination from a given offset until
+		 * it reaches data already present, leaving the sequential download
+		 * undisturbed.
+		 */
+		private class RangeFetch extends CancelableThread
+		{
+			private final long mStart;
+			private volatile long mPosition;
+
+			private HttpGet mRangeMethod;
+
+			public RangeFetch(long start)
+			{
+				super("RangeFetch from " + start + ": " + mUrl);
+				mStart = start;
+				mPosition = start;
+			}
+
+			public boolean covers(long position)
+			{
+				return position >= mStart && position < mPosition + FILL_DISTANCE;
+			}
+
+			@Override
+			protected synchronized void onRequestCancel()
+			{
+				if (mRangeMethod != null)
+					mRangeMethod.abort();
+			}
+
+			public void run()
+			{
+				HttpGet method = new HttpGet(mUrl);
+				addRangeHeaders(method, mStart + "-");
+
+				synchronized(this) {
+					if (hasCanceled() == true)
+						return;
+					mRangeMethod = method;
+				}
+
+				RandomAccessFile out = null;
+				long unsaved = 0;
+
+				try {
+					HttpClient client = mManager.mClient;
+
+					HttpResponse resp = client.execute(method);
+
+					StatusLine status = resp.getStatusLine();
+					if (status.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT)
+						throw new IOException("Range request failed: " + status);
+
+					Header rangeHdr = resp.getLastHeader("Content-Range");
+					HttpEntity ent = resp.getEntity();
+					if (rangeHdr == null || ent == null)
+						throw new IOException("Range request answered without content");
+
+					parseContentRange(rangeHdr.getValue(), mStart);
+
+					InputStream in = ent.getContent();
+
+					out = new RandomAccessFile(mDest, "rw");
+					out.seek(mStart);
+
+					byte[] b = new byte[BUFFER_SIZE];
+					int n;
+
+					while ((n = in.read(b)) >= 0 && hasCanceled() == false)
+					{
+						out.write(b, 0, n);
+
+						mManager.mThroughput.addBytes(n);
+
+						long start = mPosition;
+						mPosition += n;
+						mProgress.filled(start, mPosition);
+
+						unsaved += n;
+						if (unsaved >= SAVE_INTERVAL)
+						{
+							unsaved = 0;
+							out.getFD().sync();
+							mProgress.saveRanges(mDest, mValidator);
+						}
+
+						/* Caught up with data we already have. */
+						if (mProgress.getAvailable(mPosition) > mPosition)
+							break;
+					}
+				} catch (IOException e) {
+					if (hasCanceled() == false)
+						Log.w(DownloadManager.TAG, "Range fetch of " + mUrl + " failed: " + e);
+				} finally {
+					/* Don't let HttpClient drain the rest of the response. */
+					synchronized(this) {
+						mRangeMethod = null;
+					}
+					method.abort();
+
+					if (out != null)
+						try { out.close(); } catch (IOException e) {}
+
+					mManager.releaseConnections();
+				}
+			}
+		}
+
+		private static class AbortedException extends Exception {}
+		private static class SkipAheadException extends Exception {}
+		private static class PreemptedException extends Exception {}
+		private static class RangeNotSupportedException extends IOException {}
+		private static class LocalIOException extends Exception
+		{
+			public LocalIOException(IOException e) {
+				super(e);
+			}
+
+			/* Carries a local failure through code which throws IOException. */
+			private static class Wrapper extends IOException
+			{
+				public Wrapper(IOException e) {
+					initCause(e);
+				}
 			}
 		}
 	}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Byte ranges a download has written to its destination file, shared
+ * between the download threads and any readers tailing that file. Readers
+ * which reach a region not yet written block here and are woken as soon as
+ * the next buffer covering it has been written, rather than polling the
+ * file size. A reader far ahead of the sequential download may ask for the
+ * region to be fetched out of order with {@link #requestFill(long)}.
+ * <p>
+ * The total length is not necessarily known up front: it becomes available
+ * when the server responds with a Content-Length, or only once the download
+ * completes for chunked (for instance, transcoded) responses.
+ */
+public class DownloadProgress
+{
+	/** Ranges known to be on disk. */
+	private final RangeMap mFilled;
+
+	private FillRequester mRequester;
+
+	/** Total length of the content, or -1 if not (yet) known. */
+	private long mLength = -1;
+
+	/** Set once response headers have been received from the server. */
+	private boolean mResponded;
+
+	/** Set once the download will write no more, successfully or not. */
+	private boolean mFinished;
+
+	/** Bumped to release waiters without any progress having been made. */
+	private int mWakeups;
+
+	/**
+	 * Asked to fetch a region of the file ahead of the sequential download.
+	 */
+	public interface FillRequester
+	{
+		public void requestFill(long position);
+	}
+
+	public DownloadProgress(RangeMap filled)
+	{
+		mFilled = filled;
+	}
+
+	public DownloadProgress(long bytes)
+	{
+		this(new RangeMap());
+		mFilled.add(0, bytes);
+	}
+
+	/**
+	 * @return Number of bytes available contiguously from the start.
+	 */
+	public synchronized long getBytes()
+	{
+		return mFilled.getFilledEnd(0);
+	}
+
+	/**
+	 * @return The end of the available region containing
+	 *         <code>position</code>, or <code>position</code> itself if it
+	 *         has not been written yet.
+	 */
+	public synchronized long getAvailable(long position)
+	{
+		return mFilled.getFilledEnd(position);
+	}
+
+	/**
+	 * @return Total number of bytes written, in any order.
+	 */
+	public synchronized long getFilledBytes()
+	{
+		return mFilled.getFilledBytes();
+	}
+
+	/**
+	 * Persists the written ranges alongside <code>file</code>.
+	 *
+	 * @param validator
+	 *            Validator of the content the ranges were written from, or
+	 *            null if unknown.
+	 */
+	public synchronized void saveRanges(File file, String validator)
+	  throws IOException
+	{
+		mFilled.setValidator(validator);
+		mFilled.save(file);
+	}
+
+	public synchronized void setFillRequester(FillRequester requester)
+	{
+		mRequester = requester;
+	}
+
+	/**
+	 * Asks the download to fetch the region starting at
+	 * <code>position</code> right away, if it is able to.
+	 */
+	public void requestFill(long position)
+	{
+		FillRequester requester;
+
+		synchronized(this) {
+			requester = mRequester;
+		}
+
+		if (requester != null)
+			requester.requestFill(position);
+	}
+
+	public synchronized boolean isFinished()
+	{
+		return mFinished;
+	}
+
+	/**
+	 * @return The total content length, or -1 if the server has not told us
+	 *         and the download has not yet completed.
+	 */
+	public synchronized long getLength()
+	{
+		return mLength;
+	}
+
+	/**
+	 * Called by the download thread when the response headers arrive.
+	 *
+	 * @param length
+	 *            Total content length, or -1 if the response did not specify
+	 *            one.
+	 */
+	public synchronized void setResponse(long length)
+	{
+		mLength = length;
+		mResponded = true;
+		notifyAll();
+	}
+
+	/**
+	 * Called by a download thread after [start, end) has been written.
+	 */
+	public synchronized void filled(long start, long end)
+	{
+		mFilled.add(start, end);
+		notifyAll();
+	}
+
+	/**
+	 * Called by the download thread when the content has changed on the
+	 * server since it was partly written, and is to be written again from
+	 * the start.
+	 */
+	public synchronized void reset()
+	{
+		mFilled.clear();
+		mLength = -1;
+	}
+
+	/**
+	 * Called by the download thread when it exits, for whatever reason.
+	 *
+	 * @param complete
+	 *            True if all content was received, in which case the length
+	 *            is resolved if it was not already known.
+	 */
+	public synchronized void finish(boolean complete)
+	{
+		if (complete == true && mLength < 0)
+			mLength = mFilled.getFilledEnd(0);
+
+		mFinished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until the response headers have been received, the download
+	 * finishes, or {@link #wakeAll()} is called.
+	 *
+	 * @return The content length as in {@link #getLength()}.
+	 */
+	public synchronized long waitForResponse()
+	  throws InterruptedException
+	{
+		int wakeups = mWakeups;
+
+		while (mResponded == false && mFinished == false && mWakeups == wakeups)
+			wait();
+
+		return mLength;
+	}
+
+	/**
+	 * Blocks until the byte at <code>position</code> is available, the
+	 * download finishes, or {@link #wakeAll()} is called.
+	 *
+	 * @return As in {@link #getAvailable(long)}, which may still be equal to
+	 *         <code>position</code> if the wait ended for another reason.
+	 */
+	public synchronized long waitForBytes(long position)
+	  throws InterruptedException
+	{
+		int wakeups = mWakeups;
+
+		long available;
+		while ((available = mFilled.getFilledEnd(position)) <= position &&
+		  mFinished == false && mWakeups == wakeups)
+		{
+			wait();
+		}
+
+		return available;
+	}
+
+	/**
+	 * Releases all threads blocked in {@link #waitForBytes(long)} so that
+	 * they may check whether they have been aborted.
+	 */
+	public synchronized void wakeAll()
+	{
+		mWakeups++;
+		notifyAll();
+	}
+}
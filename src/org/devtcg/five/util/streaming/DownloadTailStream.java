@@ -21,8 +21,8 @@ import org.devtcg.five.util.streaming.StreamMediaPlayer.RandomAccessStream;
 import android.util.Log;
 
 /**
- * TailStream which blocks during open until the specified download reaches
- * a stage where the content length is known.
+ * TailStream over the destination of the specified download. The content
+ * length is learned from the download once the server responds.
  */
 public class DownloadTailStream extends TailStream
 {
@@ -36,19 +36,17 @@ public class DownloadTailStream extends TailStream
 		 * XXX: Hardcoded audio/mpeg as mime type here. This is only used by
 		 * StreamMediaPlayerTest, which will be removed shortly.
 		 */
-		super(dl.getDestination().getAbsolutePath(), "audio/mpeg");
+		super(dl.getDestination().getAbsolutePath(), "audio/mpeg",
+		  dl.getDownloadProgress());
 		mDownload = dl;
 	}
 
 	@Override
 	public void open() throws IOException
 	{
+		Log.i(TAG, "Waiting for connection...");
 		super.open();
-
-		Log.i(TAG, "Waiting for connection...");			
-		mDownload.waitForResponse();
-		Log.i(TAG, "Got it, length=" + mDownload.getContentLength());
-		setLength(mDownload.getContentLength());
+		Log.i(TAG, "Got it, length=" + size());
 	}
 
 	public RandomAccessStream newInstance()
@@ -56,4 +54,3 @@ public class DownloadTailStream extends TailStream
 		return new DownloadTailStream(mDownload);
 	}
 }
-
@@ -39,6 +39,8 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -77,6 +79,13 @@ public final class FailfastHttpClient implements HttpClient {
     private static final int CONNECT_TIMEOUT = 20 * 1000;
     private static final int READ_TIMEOUT = 15 * 1000;
 
+    /**
+     * Concurrent downloads from the same server, each possibly with a range
+     * fetch running alongside it or fetching over several connections in
+     * segmented mode.
+     */
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+
     /** Set if HTTP requests are blocked from being executed on this thread */
     private static final ThreadLocal<Boolean> sThreadBlocked =
             new ThreadLocal<Boolean>();
@@ -108,6 +117,11 @@ public final class FailfastHttpClient implements HttpClient {
         HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
         HttpConnectionParams.setSocketBufferSize(params, 8192);
 
+        // The default of 2 would have concurrent downloads waiting on each
+        // other for a connection.
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
         // Don't handle redirects -- return them to the caller.  Our code
         // often wants to re-POST after a redirect, which we must do ourselves.
         HttpClientParams.setRedirecting(params, false);
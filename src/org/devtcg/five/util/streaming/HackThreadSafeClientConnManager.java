@@ -16,26 +16,134 @@ package org.devtcg.five.util.streaming;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
 import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.conn.DefaultClientConnection;
 import org.apache.http.impl.conn.DefaultClientConnectionOperator;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.HttpParams;
 
+import android.util.Log;
+
 /**
  * Hack to control the ClientConnection created for use with HttpClient,
  * ultimately to work around a bug in Harmony: HARMONY-6326.
+ * <p>
+ * Also keeps track of which thread holds each connection leased from the
+ * pool. The HttpClient that ships with Android can fail to hand a
+ * connection back when its method is aborted mid-transfer, which would
+ * eventually exhaust the pool. Rather than throw away the whole client
+ * (and every idle keep-alive connection with it), callers invoke
+ * {@link #releaseLeases(Thread)} once a request is done with, evicting
+ * only the connections that thread failed to return.
  */
 public class HackThreadSafeClientConnManager extends ThreadSafeClientConnManager
 {
+	private static final String TAG = "HackThreadSafeClientConnManager";
+
+	/**
+	 * Idle connections older than this are closed rather than reused. Stale
+	 * checking is disabled, so this is what keeps us from picking up a
+	 * connection the server has long since given up on.
+	 */
+	private static final long IDLE_TIMEOUT = 30 * 1000;
+
+	private final Map<ManagedClientConnection, Thread> mLeases =
+	  new HashMap<ManagedClientConnection, Thread>();
+
 	public HackThreadSafeClientConnManager(HttpParams params, SchemeRegistry schreg)
 	{
 		super(params, schreg);
 	}
 
+	@Override
+	public ClientConnectionRequest requestConnection(HttpRoute route,
+	  Object state)
+	{
+		closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+		final ClientConnectionRequest request =
+		  super.requestConnection(route, state);
+
+		return new ClientConnectionRequest() {
+			public ManagedClientConnection getConnection(long timeout,
+			  TimeUnit tunit)
+			  throws InterruptedException, ConnectionPoolTimeoutException
+			{
+				ManagedClientConnection conn = request.getConnection(timeout, tunit);
+
+				synchronized(mLeases) {
+					mLeases.put(conn, Thread.currentThread());
+				}
+
+				return conn;
+			}
+
+			public void abortRequest()
+			{
+				request.abortRequest();
+			}
+		};
+	}
+
+	@Override
+	public void releaseConnection(ManagedClientConnection conn,
+	  long validDuration, TimeUnit timeUnit)
+	{
+		synchronized(mLeases) {
+			mLeases.remove(conn);
+		}
+
+		super.releaseConnection(conn, validDuration, timeUnit);
+	}
+
+	/**
+	 * Evicts any connections still leased to <code>owner</code>. Each is
+	 * shut down and its slot returned to the pool; connections held by
+	 * other threads, and idle ones in the pool, are left alone.
+	 */
+	public void releaseLeases(Thread owner)
+	{
+		ArrayList<ManagedClientConnection> leaked =
+		  new ArrayList<ManagedClientConnection>();
+
+		synchronized(mLeases) {
+			for (Map.Entry<ManagedClientConnection, Thread> entry: mLeases.entrySet())
+			{
+				if (entry.getValue() == owner)
+					leaked.add(entry.getKey());
+			}
+		}
+
+		for (ManagedClientConnection conn: leaked)
+		{
+			Log.w(TAG, "Evicting connection not returned to the pool: " + conn);
+
+			try {
+				conn.abortConnection();
+			} catch (IOException e) {}
+
+			/* In case aborting didn't release it either. */
+			boolean stillLeased;
+			synchronized(mLeases) {
+				stillLeased = mLeases.containsKey(conn);
+			}
+
+			if (stillLeased == true)
+				releaseConnection(conn, 0, TimeUnit.MILLISECONDS);
+		}
+	}
+
 	@Override
 	protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg)
 	{
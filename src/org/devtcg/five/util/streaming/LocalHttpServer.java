@@ -14,54 +14,111 @@
 
 package org.devtcg.five.util.streaming;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
-
-import org.apache.http.HttpServerConnection;
-import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.ProtocolVersion;
 import org.apache.http.impl.DefaultHttpResponseFactory;
-import org.apache.http.impl.DefaultHttpServerConnection;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.HttpParams;
+import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
-import org.apache.http.protocol.HttpRequestHandlerRegistry;
-import org.apache.http.protocol.HttpService;
 import org.apache.http.protocol.ResponseConnControl;
 import org.apache.http.protocol.ResponseContent;
 
 import android.os.Process;
 import android.util.Log;
 
+/**
+ * Minimal HTTP/1.1 server for local clients (namely, the MediaPlayer). A
+ * single selector thread accepts connections and reads request heads
+ * without blocking; complete requests are handed to a small fixed pool of
+ * handler threads which produce and write the response, after which the
+ * connection goes back to the selector to wait for its next (keep-alive)
+ * request. Idle connections therefore cost no thread at all, and the
+ * number of threads no longer grows with each seek the client makes.
+ */
 public abstract class LocalHttpServer extends Thread
 {
 	public static final String TAG = "LocalHttpServer";
 
-	protected final HashSet<WorkerThread> mWorkers =
-	  new HashSet<WorkerThread>();
+	/** Number of requests which may be served concurrently. */
+	private static final int HANDLER_POOL_SIZE = 3;
+
+	/** Largest request head we are willing to buffer. */
+	private static final int MAX_REQUEST_HEAD = 8 * 1024;
+
+	private static final int RESPONSE_BUFFER_SIZE = 8 * 1024;
 
-	protected ServerSocket mSocket;
-	protected HttpParams mParams;
+	/** Idle keep-alive connections are closed after this long. */
+	private static final long IDLE_TIMEOUT = 5000;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	protected ServerSocketChannel mServerChannel;
+	private Selector mSelector;
 	private HttpRequestHandler mReqHandler;
 
+	private final ExecutorService mHandlers =
+	  Executors.newFixedThreadPool(HANDLER_POOL_SIZE, new HandlerThreadFactory());
+
+	private final DefaultHttpResponseFactory mResponseFactory =
+	  new DefaultHttpResponseFactory();
+
+	private final BasicHttpProcessor mProcessor = new BasicHttpProcessor();
+
+	/** All open connections, idle or busy. */
+	private final HashSet<Connection> mConnections = new HashSet<Connection>();
+
+	/** Connections handed back by the handlers, to be read from again. */
+	private final LinkedList<Connection> mReturned = new LinkedList<Connection>();
+
+	/** Number of requests currently being handled. */
+	private int mBusy;
+
+	/** Set by shutdown() to end the selector loop. */
+	private volatile boolean mStopped;
+
 	public LocalHttpServer()
 	{
 		super("LocalHttpServer");
 
-		mParams = new BasicHttpParams();
-		mParams
-		  .setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 5000)
-		  .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
-		  .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK,
-		    false)
-		  .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+		mProcessor.addInterceptor(new ResponseContent());
+		mProcessor.addInterceptor(new ResponseConnControl());
 
 		setDaemon(true);
 	}
@@ -82,9 +139,14 @@ public abstract class LocalHttpServer extends Thread
 	public void bind(InetSocketAddress addr)
 	  throws IOException
 	{
-		mSocket = new ServerSocket();
-		mSocket.bind(addr);
-		Log.i(TAG, "Bound to port " + mSocket.getLocalPort());
+		mSelector = Selector.open();
+
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.socket().bind(addr);
+		mServerChannel.configureBlocking(false);
+		mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+		Log.i(TAG, "Bound to port " + getPort());
 	}
 
 	public void setRequestHandler(HttpRequestHandler handler)
@@ -94,39 +156,64 @@ public abstract class LocalHttpServer extends Thread
 
 	public int getPort()
 	{
-		if (mSocket == null)
+		if (mServerChannel == null)
 			throw new IllegalStateException("Not bound.");
 
-		return mSocket.getLocalPort();
+		return mServerChannel.socket().getLocalPort();
 	}
 
+	/**
+	 * Closes every open connection, interrupting any request in progress,
+	 * and waits for the handlers to finish with them.
+	 */
 	public void reset()
 	{
-		WorkerThread[] workersCopy;
+		ArrayList<Connection> connections;
 
-		synchronized(mWorkers) {
-			/* Copied because shutdown() will try to access mWorkers. */
-			workersCopy =
-			  mWorkers.toArray(new WorkerThread[mWorkers.size()]);
+		synchronized(mConnections) {
+			connections = new ArrayList<Connection>(mConnections);
 		}
 
-		for (WorkerThread t: workersCopy)
-		{
-			t.shutdown();
-			t.joinUninterruptibly();
-		}
+		for (Connection conn: connections)
+			conn.close();
 
-		assert mWorkers.isEmpty() == true;
+		synchronized(mConnections) {
+			while (mBusy > 0)
+			{
+				try {
+					mConnections.wait();
+				} catch (InterruptedException e) {}
+			}
+		}
 	}
 
+	/**
+	 * Stops the selector thread and waits for it, then closes every
+	 * connection before the handler pool goes away, so that no request is
+	 * dispatched to a pool which has been shut down.
+	 */
 	public void shutdown()
 	{
-		reset();
+		mStopped = true;
 		interrupt();
+		mSelector.wakeup();
+
+		if (Thread.currentThread() != this)
+		{
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 
 		try {
-			mSocket.close();
+			mServerChannel.close();
 		} catch (IOException e) {}
+
+		reset();
+
+		mHandlers.shutdownNow();
 	}
 
 	public void run()
@@ -134,106 +221,590 @@ public abstract class LocalHttpServer extends Thread
 		if (mReqHandler == null)
 			throw new IllegalStateException("Request handler not set.");
 
-		if (mSocket == null)
+		if (mServerChannel == null)
 			throw new IllegalStateException("Not bound.");
 
 		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-		while (Thread.interrupted() == false)
+		try {
+			while (mStopped == false && Thread.interrupted() == false)
+			{
+				mSelector.select(IDLE_TIMEOUT);
+
+				registerReturned();
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext() == true)
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					/*
+					 * reset() may close a connection from another thread at
+					 * any point, cancelling its key under us.
+					 */
+					try {
+						if (key.isValid() == false)
+							continue;
+
+						if (key.isAcceptable() == true)
+							accept();
+						else if (key.isReadable() == true)
+							readRequest((Connection)key.attachment());
+					} catch (CancelledKeyException e) {
+						if (key.attachment() != null)
+							((Connection)key.attachment()).close();
+					}
+				}
+
+				closeIdle();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "I/O error in server loop: " + e.getMessage());
+		} finally {
+			try {
+				mSelector.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel = mServerChannel.accept();
+		if (channel == null)
+			return;
+
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		Connection conn = new Connection(channel);
+		conn.key = channel.register(mSelector, SelectionKey.OP_READ, conn);
+
+		synchronized(mConnections) {
+			mConnections.add(conn);
+		}
+	}
+
+	/**
+	 * Puts connections whose response has been written back into the read
+	 * set. Done here rather than by the handler as changing the interest
+	 * set from another thread can block behind an in-progress select.
+	 */
+	private void registerReturned()
+	{
+		while (true)
 		{
+			Connection conn;
+
+			synchronized(mReturned) {
+				conn = mReturned.poll();
+			}
+
+			if (conn == null)
+				break;
+
 			try {
-				Socket sock = mSocket.accept();
-				DefaultHttpServerConnection conn =
-				  new DefaultHttpServerConnection();
+				if (conn.key.isValid() == false)
+					continue;
 
-				conn.bind(sock, mParams);
+				conn.lastActive = System.currentTimeMillis();
 
-				BasicHttpProcessor proc = new BasicHttpProcessor();
-				proc.addInterceptor(new ResponseContent());
-				proc.addInterceptor(new ResponseConnControl());
+				/* The client may have pipelined its next request. */
+				if (dispatchIfComplete(conn) == false)
+					conn.key.interestOps(SelectionKey.OP_READ);
+			} catch (CancelledKeyException e) {
+				conn.close();
+			}
+		}
+	}
+
+	private void closeIdle()
+	{
+		long now = System.currentTimeMillis();
+
+		ArrayList<Connection> idle = null;
+
+		synchronized(mConnections) {
+			for (Connection conn: mConnections)
+			{
+				if (conn.busy == false && now - conn.lastActive > IDLE_TIMEOUT)
+				{
+					if (idle == null)
+						idle = new ArrayList<Connection>();
+					idle.add(conn);
+				}
+			}
+		}
+
+		if (idle != null)
+		{
+			for (Connection conn: idle)
+				conn.close();
+		}
+	}
+
+	private void readRequest(Connection conn)
+	{
+		int n;
 
-				HttpRequestHandlerRegistry reg =
-				  new HttpRequestHandlerRegistry();
-				reg.register("*", mReqHandler);
+		try {
+			n = conn.channel.read(conn.in);
+		} catch (IOException e) {
+			n = -1;
+		}
 
-				HttpService svc = new HttpService(proc,
-				  new DefaultConnectionReuseStrategy(),
-				  new DefaultHttpResponseFactory());
+		if (n < 0)
+		{
+			conn.close();
+			return;
+		}
 
-				svc.setParams(mParams);
-				svc.setHandlerResolver(reg);
+		conn.lastActive = System.currentTimeMillis();
 
-				WorkerThread t;
+		if (dispatchIfComplete(conn) == false && conn.in.hasRemaining() == false)
+		{
+			Log.w(TAG, "Request head too large, dropping connection");
+			conn.close();
+		}
+	}
 
-				synchronized(mWorkers) {
-					t = new WorkerThread(svc, conn);
-					mWorkers.add(t);
+	/**
+	 * Hands the connection to a handler if a complete request head has been
+	 * buffered.
+	 *
+	 * @return True if a request was dispatched.
+	 */
+	private boolean dispatchIfComplete(Connection conn)
+	{
+		int end = findHeadEnd(conn.in);
+		if (end < 0)
+			return false;
+
+		String head;
+		try {
+			head = new String(conn.in.array(), 0, end, "ISO-8859-1");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		/* Keep anything after the head (a pipelined request) for later. */
+		conn.in.flip();
+		conn.in.position(end + 4);
+		conn.in.compact();
+
+		final HttpRequest request;
+		try {
+			request = parseRequestHead(head);
+		} catch (HttpException e) {
+			Log.w(TAG, "Malformed request: " + e.getMessage());
+			conn.close();
+			return true;
+		}
+
+		conn.key.interestOps(0);
+
+		if (mHandlers.isShutdown() == true)
+		{
+			conn.close();
+			return true;
+		}
+
+		conn.busy = true;
+
+		synchronized(mConnections) {
+			mBusy++;
+		}
+
+		final Connection c = conn;
+
+		try {
+			mHandlers.execute(new Runnable() {
+				public void run() {
+					handle(c, request);
 				}
+			});
+		} catch (RejectedExecutionException e) {
+			conn.close();
 
-				t.setDaemon(true);
-				t.start();
-			} catch (IOException e) {
-				Log.e(TAG, "I/O error initializing connection thread: " +
-				  e.getMessage());
-				break;
+			synchronized(mConnections) {
+				mBusy--;
+				mConnections.notifyAll();
 			}
 		}
+
+		return true;
 	}
 
-	private class WorkerThread extends Thread
+	private static int findHeadEnd(ByteBuffer buf)
 	{
-		private HttpService mService;
-		private HttpServerConnection mConn;
+		byte[] b = buf.array();
+		int limit = buf.position();
 
-		public WorkerThread(HttpService svc, HttpServerConnection conn)
+		for (int i = 0; i + 3 < limit; i++)
 		{
-			super();
-			mService = svc;
-			mConn = conn;
+			if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n')
+				return i;
 		}
 
-		public void run()
+		return -1;
+	}
+
+	private static HttpRequest parseRequestHead(String head)
+	  throws HttpException
+	{
+		String[] lines = head.split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+
+		if (requestLine.length != 3)
+			throw new HttpException("Invalid request line: " + lines[0]);
+
+		ProtocolVersion version;
+		if (requestLine[2].equals("HTTP/1.1"))
+			version = HttpVersion.HTTP_1_1;
+		else if (requestLine[2].equals("HTTP/1.0"))
+			version = HttpVersion.HTTP_1_0;
+		else
+			throw new HttpException("Unsupported protocol: " + requestLine[2]);
+
+		BasicHttpRequest request =
+		  new BasicHttpRequest(requestLine[0], requestLine[1], version);
+
+		for (int i = 1; i < lines.length; i++)
 		{
-			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0)
+				throw new HttpException("Invalid header: " + lines[i]);
+
+			request.addHeader(lines[i].substring(0, colon).trim(),
+			  lines[i].substring(colon + 1).trim());
+		}
 
-			HttpContext ctx = new BasicHttpContext(null);
+		return request;
+	}
 
-			try {
-				while (isInterrupted() == false && mConn.isOpen())
-					mService.handleRequest(mConn, ctx);
-			} catch (Exception e) {
+	/**
+	 * Runs on a handler thread: produces the response for one request and
+	 * writes it out, blocking as needed on the client.
+	 */
+	private void handle(Connection conn, HttpRequest request)
+	{
+		conn.handler = Thread.currentThread();
+
+		boolean keepAlive = false;
+
+		try {
+			if (conn.isOpen() == true)
+				keepAlive = respond(conn, request);
+		} catch (IOException e) {
+			if (conn.isOpen() == true)
 				Log.e(TAG, "HTTP server disrupted: " + e.toString());
-			} finally {
-				if (Thread.interrupted() == false) {
-					try {
-						mConn.shutdown();
-					} catch (IOException e) {}
+		} catch (HttpException e) {
+			Log.e(TAG, "HTTP server disrupted: " + e.toString());
+		} finally {
+			conn.handler = null;
 
-					synchronized(mWorkers) {
-						mWorkers.remove(this);
-					}
+			/* Don't let a reset() intended for this request leak into the next. */
+			Thread.interrupted();
+
+			if (keepAlive == true && conn.isOpen() == true)
+			{
+				/* Idle from now, not from when the request was read. */
+				conn.lastActive = System.currentTimeMillis();
+				conn.busy = false;
+
+				synchronized(mReturned) {
+					mReturned.add(conn);
 				}
+				mSelector.wakeup();
+			}
+			else
+			{
+				conn.close();
+			}
+
+			synchronized(mConnections) {
+				mBusy--;
+				mConnections.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return True if the connection may be kept open for another request.
+	 */
+	private boolean respond(Connection conn, HttpRequest request)
+	  throws IOException, HttpException
+	{
+		ProtocolVersion version = request.getRequestLine().getProtocolVersion();
+		if (version.greaterEquals(HttpVersion.HTTP_1_1) == true)
+			version = HttpVersion.HTTP_1_1;
+
+		HttpContext context = new BasicHttpContext(null);
+		context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+
+		HttpResponse response =
+		  mResponseFactory.newHttpResponse(version, HttpStatus.SC_OK, context);
+
+		try {
+			mReqHandler.handle(request, response, context);
+		} catch (MethodNotSupportedException e) {
+			response.setStatusCode(HttpStatus.SC_NOT_IMPLEMENTED);
+			response.setEntity(null);
+		}
+
+		context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+		mProcessor.process(response, context);
+
+		ResponseOutputStream out = new ResponseOutputStream(conn);
+
+		writeHead(out, response);
+
+		HttpEntity entity = response.getEntity();
+		boolean head = request.getRequestLine().getMethod().equalsIgnoreCase("HEAD");
+
+		if (entity != null && head == false)
+		{
+			Header te = response.getFirstHeader(HTTP.TRANSFER_ENCODING);
+			if (te != null && HTTP.CHUNK_CODING.equalsIgnoreCase(te.getValue()))
+			{
+				ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+				entity.writeTo(chunked);
+				chunked.finish();
 			}
+			else
+			{
+				entity.writeTo(out);
+			}
+		}
+
+		out.flush();
+
+		Header connHeader = response.getFirstHeader(HTTP.CONN_DIRECTIVE);
+		if (connHeader != null && HTTP.CONN_CLOSE.equalsIgnoreCase(connHeader.getValue()))
+			return false;
+
+		if (version.lessEquals(HttpVersion.HTTP_1_0) == true)
+			return connHeader != null && HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(connHeader.getValue());
+
+		return true;
+	}
+
+	private static void writeHead(OutputStream out, HttpResponse response)
+	  throws IOException
+	{
+		StringBuilder b = new StringBuilder(256);
+
+		b.append(response.getStatusLine().getProtocolVersion())
+		  .append(' ').append(response.getStatusLine().getStatusCode())
+		  .append(' ').append(response.getStatusLine().getReasonPhrase())
+		  .append("\r\n");
+
+		for (Header header: response.getAllHeaders())
+			b.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+
+		b.append("\r\n");
+
+		out.write(b.toString().getBytes("ISO-8859-1"));
+	}
+
+	private class Connection
+	{
+		public final SocketChannel channel;
+		public SelectionKey key;
+
+		public final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_HEAD);
+
+		public volatile long lastActive = System.currentTimeMillis();
+		public volatile boolean busy;
+		public volatile Thread handler;
+
+		/** Private selector used by the handler to wait for writability. */
+		private Selector mWriteSelector;
+
+		public Connection(SocketChannel channel)
+		{
+			this.channel = channel;
 		}
 
-		public void shutdown()
+		public boolean isOpen()
 		{
-			interrupt();
+			return channel.isOpen();
+		}
+
+		/**
+		 * Blocks until the channel can accept more data.
+		 */
+		public synchronized void awaitWritable() throws IOException
+		{
+			if (mWriteSelector == null)
+			{
+				mWriteSelector = Selector.open();
+				channel.register(mWriteSelector, SelectionKey.OP_WRITE);
+			}
+
+			mWriteSelector.select();
+			mWriteSelector.selectedKeys().clear();
+
+			if (Thread.interrupted() == true)
+				throw new InterruptedIOException("Response interrupted");
+
+			if (channel.isOpen() == false)
+				throw new ClosedChannelException();
+		}
+
+		public void close()
+		{
+			synchronized(mConnections) {
+				if (mConnections.remove(this) == false)
+					return;
+			}
+
+			/*
+			 * Interrupt a handler blocked on its response source (such as a
+			 * TailStream waiting for a download) as well as on the client.
+			 */
+			Thread t = handler;
+			if (t != null)
+				t.interrupt();
 
 			try {
-				mConn.shutdown();
+				channel.close();
 			} catch (IOException e) {}
+
+			synchronized(this) {
+				if (mWriteSelector != null)
+				{
+					try {
+						mWriteSelector.close();
+					} catch (IOException e) {}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stream handed to response entities. Besides buffered writes, it lets
+	 * an entity backed by a file send regions of it straight to the client
+	 * socket with {@link #transferFrom(FileChannel, long, long)}, avoiding
+	 * a copy through the Java heap.
+	 */
+	public static class ResponseOutputStream extends BufferedOutputStream
+	{
+		private final Connection mConn;
+
+		private ResponseOutputStream(Connection conn)
+		{
+			super(new ChannelOutputStream(conn), RESPONSE_BUFFER_SIZE);
+			mConn = conn;
 		}
 
-		public void joinUninterruptibly()
+		/**
+		 * Writes <code>count</code> bytes of <code>src</code> starting at
+		 * <code>position</code>, after anything already buffered. Blocks
+		 * until all bytes have been accepted by the client socket.
+		 */
+		public void transferFrom(FileChannel src, long position, long count)
+		  throws IOException
 		{
-			while (true)
+			flush();
+
+			while (count > 0)
 			{
-				try {
-					join();
-					break;
-				} catch (InterruptedException e) {}
+				long n = src.transferTo(position, count, mConn.channel);
+				if (n == 0)
+				{
+					if (position >= src.size())
+						throw new EOFException("Source ended at " + position);
+
+					mConn.awaitWritable();
+				}
+				else
+				{
+					position += n;
+					count -= n;
+				}
 			}
 		}
 	}
+
+	/**
+	 * Blocking stream over a non-blocking channel.
+	 */
+	private static class ChannelOutputStream extends OutputStream
+	{
+		private final Connection mConn;
+
+		public ChannelOutputStream(Connection conn)
+		{
+			mConn = conn;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+
+			while (buf.hasRemaining() == true)
+			{
+				if (mConn.channel.write(buf) == 0)
+					mConn.awaitWritable();
+			}
+		}
+	}
+
+	private static class ChunkedOutputStream extends FilterOutputStream
+	{
+		public ChunkedOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return;
+
+			out.write(Integer.toHexString(len).getBytes("ISO-8859-1"));
+			out.write(CRLF);
+			out.write(b, off, len);
+			out.write(CRLF);
+		}
+
+		public void finish() throws IOException
+		{
+			out.write('0');
+			out.write(CRLF);
+			out.write(CRLF);
+		}
+	}
+
+	private static class HandlerThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "LocalHttpServer handler #" + mCount.getAndIncrement()) {
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					super.run();
+				}
+			};
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
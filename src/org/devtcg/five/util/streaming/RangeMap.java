@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.devtcg.util.IOUtilities;
+
+import android.util.Log;
+
+/**
+ * Set of byte ranges present in a sparsely filled cache file. Ranges are
+ * kept sorted and coalesced, and are persisted in a small sidecar file next
+ * to the cache file (see {@link #getSidecar(File)}) for as long as the cache
+ * file is incomplete.
+ * <p>
+ * The sidecar is only written once the ranges it lists have reached the
+ * disk, so it is the record of how much of an interrupted download can be
+ * trusted; an incomplete cache file without one can't be trusted at all.
+ * It also notes the validator of the content the ranges were written from,
+ * so that a resumed download can ask for the rest of that same content.
+ * <p>
+ * This class is not thread safe; {@link DownloadProgress} guards access.
+ */
+public class RangeMap
+{
+	private static final String TAG = "RangeMap";
+
+	private static final int VERSION = 2;
+	private static final String SIDECAR_SUFFIX = ".ranges";
+
+	/** Sorted, disjoint pairs of start (inclusive) and end (exclusive). */
+	private final ArrayList<long[]> mRanges = new ArrayList<long[]>();
+
+	/** Entity tag or modification date of the content, or null. */
+	private String mValidator;
+
+	public RangeMap()
+	{
+	}
+
+	public static File getSidecar(File file)
+	{
+		return new File(file.getPath() + SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * @return True if <code>file</code> is the sidecar of some cache file.
+	 */
+	public static boolean isSidecar(File file)
+	{
+		return file.getName().endsWith(SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * Reads the persisted ranges for <code>file</code>. If no sidecar is
+	 * present, the existing length of the file is assumed to be one filled
+	 * range from the start.
+	 */
+	public static RangeMap load(File file)
+	{
+		RangeMap map = new RangeMap();
+		File sidecar = getSidecar(file);
+
+		if (sidecar.exists() == false)
+		{
+			long length = file.length();
+			if (length > 0)
+				map.add(0, length);
+			return map;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+			  new FileInputStream(sidecar), 1024));
+
+			int version = in.readInt();
+			if (version < 1 || version > VERSION)
+				throw new IOException("Unknown version");
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				long start = in.readLong();
+				long end = in.readLong();
+				map.add(start, end);
+			}
+
+			if (version >= 2 && in.readBoolean() == true)
+				map.mValidator = in.readUTF();
+		} catch (IOException e) {
+			/* Safe to discard, we'll simply download everything again. */
+			Log.w(TAG, "Discarding unreadable range map: " + e.toString());
+			map.clear();
+		} finally {
+			IOUtilities.close(in);
+		}
+
+		return map;
+	}
+
+	/**
+	 * Persists the ranges next to <code>file</code>.
+	 */
+	public void save(File file) throws IOException
+	{
+		File sidecar = getSidecar(file);
+		File tmp = new File(sidecar.getPath() + ".tmp");
+
+		FileOutputStream fout = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		  fout, 1024));
+
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(mRanges.size());
+			for (long[] range: mRanges)
+			{
+				out.writeLong(range[0]);
+				out.writeLong(range[1]);
+			}
+
+			out.writeBoolean(mValidator != null);
+			if (mValidator != null)
+				out.writeUTF(mValidator);
+
+			/* Must reach the disk before it replaces the old sidecar. */
+			out.flush();
+			fout.getFD().sync();
+		} finally {
+			IOUtilities.close(out);
+		}
+
+		if (tmp.renameTo(sidecar) == false)
+			throw new IOException("Unable to replace " + sidecar);
+	}
+
+	public String getValidator()
+	{
+		return mValidator;
+	}
+
+	public void setValidator(String validator)
+	{
+		mValidator = validator;
+	}
+
+	/**
+	 * Forgets all ranges, as when the content has to be written afresh.
+	 */
+	public void clear()
+	{
+		mRanges.clear();
+		mValidator = null;
+	}
+
+	/**
+	 * Marks [start, end) as filled.
+	 */
+	public void add(long start, long end)
+	{
+		if (end <= start)
+			return;
+
+		/* Find the first range which ends at or after start. */
+		int i = 0;
+		int n = mRanges.size();
+		while (i < n && mRanges.get(i)[1] < start)
+			i++;
+
+		/* Absorb every range overlapping or adjacent to the new one. */
+		while (i < n && mRanges.get(i)[0] <= end)
+		{
+			long[] range = mRanges.remove(i);
+			start = Math.min(start, range[0]);
+			end = Math.max(end, range[1]);
+			n--;
+		}
+
+		mRanges.add(i, new long[] { start, end });
+	}
+
+	/**
+	 * @return The end of the filled range containing <code>position</code>,
+	 *         or <code>position</code> itself if it is not filled.
+	 */
+	public long getFilledEnd(long position)
+	{
+		for (long[] range: mRanges)
+		{
+			if (range[0] > position)
+				break;
+
+			if (range[1] > position)
+				return range[1];
+		}
+
+		return position;
+	}
+
+	/**
+	 * @return True if all of [0, length) is filled.
+	 */
+	public boolean isComplete(long length)
+	{
+		return getFilledEnd(0) >= length;
+	}
+
+	/**
+	 * @return Total number of filled bytes.
+	 */
+	public long getFilledBytes()
+	{
+		long total = 0;
+		for (long[] range: mRanges)
+			total += range[1] - range[0];
+		return total;
+	}
+}
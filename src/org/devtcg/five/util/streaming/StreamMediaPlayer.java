@@ -327,6 +327,22 @@ public class StreamMediaPlayer extends MediaPlayer
 		 * information.
 		 */
 		public abstract String getContentType();
+
+		/**
+		 * Sends whatever can be read right now from the current position
+		 * directly to <code>out</code>, advancing the position. Streams
+		 * backed by a file should override this to avoid copying through
+		 * {@link #read(byte[])}.
+		 *
+		 * @return Number of bytes sent, 0 if nothing could be sent without
+		 *         blocking (the caller should fall back to reading), or -1
+		 *         at the end of the stream.
+		 */
+		public long transferTo(LocalHttpServer.ResponseOutputStream out)
+		  throws IOException
+		{
+			return 0;
+		}
 	}
 
 	/**
@@ -371,43 +387,53 @@ public class StreamMediaPlayer extends MediaPlayer
 
 		private final HttpRequestHandler mHttpHandler = new HttpRequestHandler()
 		{
-			private void interpretRangeThenSeek(HttpRequest req,
+			/**
+			 * @return The offset seeked to, or -1 if the request is not
+			 *         for a range we can serve.
+			 */
+			private long interpretRangeThenSeek(HttpRequest req,
 			  RandomAccessStream stream)
 			  throws IOException
 			{
 				Header hdr = req.getLastHeader("Range");
 
 				if (hdr == null)
-					return;
+					return -1;
 
 				String rangeStr = hdr.getValue();
-				Pattern pattern = Pattern.compile("bytes=(\\d+)-(\\d+)");
+				Pattern pattern = Pattern.compile("bytes=(\\d+)-(\\d*)");
 				Matcher matcher = pattern.matcher(rangeStr);
 
 				if (matcher.matches() == false)
 				{
 					Log.w(TAG, "Failed to parse range header: " + rangeStr);
-					return;
+					return -1;
 				}
 
 				long low;
-				long high;
 
 				try {
 					low = Long.parseLong(matcher.group(1));
-					high = Long.parseLong(matcher.group(2));
 				} catch (NumberFormatException e) {
 					Log.w(TAG, "Failed to parse range header: " + rangeStr);
-					return;
+					return -1;
 				}
 
-				/* We assume that high is actually just the end of the
-				 * stream as it was originally defined, so we aren't going
-				 * to honor it explicitly. */
-				assert stream.size() == high;
-
-				Log.i(TAG, "Serving range " + low + "-" + high);
+				/*
+				 * Without a known length we can't describe the range in a
+				 * Content-Range header, so send the whole stream instead.
+				 */
+				long size = stream.size();
+				if (size < 0 || low >= size)
+					return -1;
+
+				/* We assume that high, if given, is actually just the end
+				 * of the stream as it was originally defined, so we aren't
+				 * going to honor it explicitly. */
+				Log.i(TAG, "Serving range " + low + "-" + matcher.group(2));
 				stream.seek(low);
+
+				return low;
 			}
 
 			public void handle(HttpRequest request, HttpResponse response,
@@ -431,11 +457,24 @@ public class StreamMediaPlayer extends MediaPlayer
 				RandomAccessStreamEntity ent =
 				  new RandomAccessStreamEntity(stream);
 
-				interpretRangeThenSeek(request, stream);
+				long low = interpretRangeThenSeek(request, stream);
 
 				response.setHeader("Accept-Ranges", "bytes");
 				response.setEntity(ent);
-				response.setStatusCode(HttpStatus.SC_OK);
+
+				if (low >= 0)
+				{
+					long size = ent.getContentLength();
+					ent.setRangeStart(low);
+
+					response.setHeader("Content-Range", "bytes " + low + "-" +
+					  (size - 1) + "/" + size);
+					response.setStatusCode(HttpStatus.SC_PARTIAL_CONTENT);
+				}
+				else
+				{
+					response.setStatusCode(HttpStatus.SC_OK);
+				}
 			}
 		};
 
@@ -445,7 +484,7 @@ public class StreamMediaPlayer extends MediaPlayer
 			private final static int BUFFER_SIZE = 2048;
 
 			private final RandomAccessStream mStream;
-			private final long mLength;
+			private long mLength;
 			private boolean mConsumed = false;
 
 			public RandomAccessStreamEntity(RandomAccessStream stream)
@@ -470,7 +509,24 @@ public class StreamMediaPlayer extends MediaPlayer
 					throw e;
 				}
 
+				/*
+				 * The stream may not know its length yet (a transcoded
+				 * download, for instance), in which case the response is
+				 * sent chunked.
+				 */
 				mLength = stream.size();
+				if (mLength < 0)
+					setChunked(true);
+			}
+
+			/**
+			 * Adjusts the length for a stream that has been seeked to
+			 * <code>low</code>.
+			 */
+			public void setRangeStart(long low)
+			{
+				if (mLength >= 0)
+					mLength -= low;
 			}
 
 			public long getContentLength()
@@ -483,12 +539,35 @@ public class StreamMediaPlayer extends MediaPlayer
 			{
 				Log.i(TAG, "writeTo...");
 
+				LocalHttpServer.ResponseOutputStream direct = null;
+				if (outstream instanceof LocalHttpServer.ResponseOutputStream)
+					direct = (LocalHttpServer.ResponseOutputStream)outstream;
+
 				try {
 					byte[] b = new byte[BUFFER_SIZE];
 					int n;
 
-					while ((n = mStream.read(b)) >= 0)
+					while (true)
+					{
+						/*
+						 * Whatever is already on disk goes straight from the
+						 * file to the socket; we only copy when the stream
+						 * has to wait on the live tail of a download.
+						 */
+						if (direct != null)
+						{
+							long sent = mStream.transferTo(direct);
+							if (sent < 0)
+								break;
+							else if (sent > 0)
+								continue;
+						}
+
+						if ((n = mStream.read(b)) < 0)
+							break;
+
 						outstream.write(b, 0, n);
+					}
 
 					mConsumed = true;
 				} finally {
@@ -25,7 +25,12 @@ import org.devtcg.five.util.streaming.StreamMediaPlayer.RandomAccessStream;
 import android.util.Log;
 
 /**
- * Simple access stream to "tail" a changing file on disk.
+ * Simple access stream to "tail" a changing file on disk. When the file is
+ * being written by a {@link DownloadManager.Download}, reads are confined to
+ * the regions the download has actually written (the file may be filled out
+ * of order), and readers that reach a missing region block on the download's
+ * {@link DownloadProgress} until it is written. Reaching a region far ahead
+ * of the download asks for it to be fetched right away.
  */
 public class TailStream extends RandomAccessStream
 {
@@ -33,43 +38,87 @@ public class TailStream extends RandomAccessStream
 
 	protected final String mPath;
 	protected final String mMimeType;
+	protected final DownloadProgress mProgress;
 	protected long mLength = -1;
 	private FileChannel mChannel;
 
-	private long mRemaining = 0;
+	private long mPosition = 0;
 
-	protected TailStream(String path, String mimeType)
+	private volatile boolean mAborted;
+
+	/**
+	 * Interval at which to check the file size when tailing a file that no
+	 * {@link DownloadProgress} is available for.
+	 */
+	private static final int POLL_INTERVAL = 1000;
+
+	/**
+	 * Tail a file being written by a download whose length is not
+	 * necessarily known yet. The length is taken from <code>progress</code>
+	 * as soon as the server reports it, or once the download completes.
+	 */
+	public TailStream(String path, String mimeType, DownloadProgress progress)
 	{
 		mPath = path;
 		mMimeType = mimeType;
+		mProgress = progress;
 	}
 
-	public TailStream(String path, String mimeType, long length)
+	/**
+	 * @param length
+	 *            Total length of the file, or -1 if unknown, in which case
+	 *            <code>progress</code> is required.
+	 * @param progress
+	 *            Progress of the download writing <code>path</code>, or null
+	 *            to fall back to polling the file size.
+	 */
+	public TailStream(String path, String mimeType, long length,
+	  DownloadProgress progress)
 	{
-		this(path, mimeType);
+		this(path, mimeType, progress);
 
-		if (length <= 0)
+		if (length == 0 || (length < 0 && progress == null))
 			throw new IllegalArgumentException("Length must be positive");
 
 		setLength(length);
 	}
 
+	public TailStream(String path, String mimeType, long length)
+	{
+		this(path, mimeType, length, null);
+	}
+
 	public RandomAccessStream newInstance()
 	{
-		return new TailStream(mPath, mMimeType, mLength);
+		return new TailStream(mPath, mMimeType, mLength, mProgress);
 	}
 
 	protected void setLength(long length)
 	{
 		mLength = length;
-		mRemaining = length;
+	}
+
+	/**
+	 * Picks up the length from the download if it has been resolved since
+	 * we last looked.
+	 */
+	private long getLength()
+	{
+		if (mLength < 0 && mProgress != null)
+			mLength = mProgress.getLength();
+
+		return mLength;
 	}
 
 	@Override
 	public void abort()
 	{
-		/* XXX: We need to call abort as well, but there is no way for
-		 * us to get the Thread handle that we're running under. */
+		mAborted = true;
+
+		/* Wake the reader if it is blocked waiting for the download. */
+		if (mProgress != null)
+			mProgress.wakeAll();
+
 		try {
 			mChannel.close();
 		} catch (IOException e) {
@@ -83,10 +132,24 @@ public class TailStream extends RandomAccessStream
 		return mMimeType;
 	}
 
+	/**
+	 * Opens the file and, if the length is still unknown, waits for the
+	 * download to receive response headers so that {@link #size()} can
+	 * report the length whenever the server provides one.
+	 */
 	@Override
 	public void open() throws IOException
 	{
 		mChannel = (new RandomAccessFile(mPath, "r")).getChannel();
+
+		if (mLength < 0 && mProgress != null)
+		{
+			try {
+				setLength(mProgress.waitForResponse());
+			} catch (InterruptedException e) {
+				throw new EOFException("Aborted stream");
+			}
+		}
 	}
 
 	@Override
@@ -100,17 +163,17 @@ public class TailStream extends RandomAccessStream
 	public void seek(long pos) throws IOException
 	{
 		mChannel.position(pos);
-		mRemaining = mLength - pos;
+		mPosition = pos;
 	}
 
+	/**
+	 * @return The total length, or -1 if the download has not resolved it
+	 *         yet (a chunked response).
+	 */
 	@Override
 	public long size()
-	  throws IllegalStateException
 	{
-		if (mLength < 0)
-			throw new IllegalStateException("Length not set after open()");
-
-		return mLength;
+		return getLength();
 	}
 
 	@Override
@@ -119,58 +182,138 @@ public class TailStream extends RandomAccessStream
 		throw new RuntimeException("Don't invoke this method.");
 	}
 
-	private void waitForData() throws IOException
+	/**
+	 * @return False if the end of the stream has been reached.
+	 */
+	private boolean waitForData() throws IOException
 	{
-		long pos = mLength - mRemaining;
-
-//		Log.d(TAG, "Waiting for more data from " + mPath);
-		long now = System.currentTimeMillis();
+		long pos = mPosition;
 
 		Thread self = Thread.currentThread();
 
-		while (pos >= mChannel.size() && self.isInterrupted() == false)
-		{
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				throw new EOFException("Aborted stream");
+		try {
+			if (mProgress != null)
+			{
+				mProgress.requestFill(pos);
+
+				while (mAborted == false && self.isInterrupted() == false)
+				{
+					if (mProgress.waitForBytes(pos) > pos)
+						break;
+
+					if (mProgress.isFinished() == true)
+					{
+						long length = getLength();
+						if (length >= 0 && pos >= length)
+							return false;
+
+						throw new EOFException("Download ended before reaching " + pos);
+					}
+				}
+			}
+			else
+			{
+				while (pos >= mChannel.size() && mAborted == false &&
+				  self.isInterrupted() == false)
+				{
+					Thread.sleep(POLL_INTERVAL);
+				}
 			}
+		} catch (InterruptedException e) {
+			throw new EOFException("Aborted stream");
 		}
 
-		long elapsed = System.currentTimeMillis() - now;
-//		Log.d(TAG, "Waited " + elapsed + " milliseconds.");
-
-		if (self.isInterrupted() == true)
+		if (mAborted == true || self.isInterrupted() == true)
 			throw new EOFException("Aborted stream");
+
+		return true;
+	}
+
+	/**
+	 * @return Number of bytes which can be read from the current position
+	 *         without waiting, 0 if none, or -1 at the end of the stream.
+	 */
+	private long getReadable() throws IOException
+	{
+		long length = getLength();
+
+		if (length >= 0 && mPosition >= length)
+			return -1;
+
+		long end;
+		if (mProgress != null)
+		{
+			/* Holes in a sparse file read as zeros; don't hand those out. */
+			end = mProgress.getAvailable(mPosition);
+		}
+		else
+		{
+			end = mChannel.size();
+		}
+
+		if (length >= 0 && end > length)
+			end = length;
+
+		return Math.max(end - mPosition, 0);
+	}
+
+	@Override
+	public long transferTo(LocalHttpServer.ResponseOutputStream out)
+	  throws IOException
+	{
+		long readable = getReadable();
+		if (readable <= 0)
+			return readable;
+
+		out.transferFrom(mChannel, mPosition, readable);
+		seek(mPosition + readable);
+
+		return readable;
 	}
 
 	@Override
 	public int read(byte[] b, int offs, int len)
 	  throws IOException
 	{
-		if (mRemaining == 0)
-			return -1;
+		long length = getLength();
 
-		if (len > mRemaining)
-			len = (int)mRemaining;
+		if (length >= 0)
+		{
+			long remaining = length - mPosition;
+			if (remaining <= 0)
+				return -1;
+
+			if (len > remaining)
+				len = (int)remaining;
+		}
+
+		if (mProgress != null)
+		{
+			/* Holes in a sparse file read as zeros; don't hand those out. */
+			long available = mProgress.getAvailable(mPosition) - mPosition;
+			if (available <= 0)
+				return waitForData() ? 0 : -1;
+
+			if (len > available)
+				len = (int)available;
+		}
 
 		ByteBuffer buf = ByteBuffer.wrap(b, offs, len);
 
 		int n = mChannel.read(buf);
-		assert mRemaining >= n;
 
-		if (n >= 0)
+		if (n > 0)
 		{
-			mRemaining -= n;
+			mPosition += n;
 			return n;
 		}
 		else
 		{
-			waitForData();
+			if (waitForData() == false)
+				return -1;
 
 			/* Next read will find data... */
 			return 0;
 		}
 	}
 }
-
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates the sustained throughput of the download link. Every download
+ * reports the bytes it receives here, so concurrent transfers are measured
+ * together rather than each seeing only its share of the link. Bytes are
+ * counted over short windows and each window's rate is folded into a
+ * moving average, which smooths over bursts without taking too long to
+ * notice a lasting change.
+ * <p>
+ * Time when nothing at all is being received is not counted; an idle link
+ * is not a slow one.
+ */
+public class ThroughputEstimator
+{
+	/** Length of the windows over which each sample is taken. */
+	private static final long WINDOW = 2000;
+
+	/** A gap this long with nothing received ends the current window. */
+	private static final long IDLE_TIME = 1000;
+
+	/** Windows cut shorter than this say more about latency than bandwidth. */
+	private static final long MIN_SAMPLE_TIME = 500;
+
+	/** Weight given to each new sample. */
+	private static final float SMOOTHING = 0.3f;
+
+	/** Start of the current window, or -1 if none is open. */
+	private long mWindowStart = -1;
+	private long mWindowBytes;
+	private long mLastReceived;
+
+	/** Smoothed throughput, or -1 if not yet measured. */
+	private float mBytesPerSecond = -1;
+
+	/**
+	 * Accounts for <code>bytes</code> just received by any transfer.
+	 */
+	public void addBytes(int bytes)
+	{
+		addBytes(bytes, SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * As {@link #addBytes(int)}, received at <code>now</code> by the
+	 * elapsed realtime clock.
+	 */
+	synchronized void addBytes(int bytes, long now)
+	{
+		closeIdleWindow(now);
+
+		mLastReceived = now;
+
+		/*
+		 * The first read after being idle mostly measures the time it took
+		 * to get going, so it only marks the start of the window.
+		 */
+		if (mWindowStart < 0)
+		{
+			mWindowStart = now;
+			mWindowBytes = 0;
+			return;
+		}
+
+		mWindowBytes += bytes;
+
+		if (now - mWindowStart >= WINDOW)
+		{
+			closeWindow(now);
+			mWindowStart = now;
+			mWindowBytes = 0;
+		}
+	}
+
+	/**
+	 * Ends the current window where it left off if nothing has been
+	 * received for a while, so that the tail of a finished transfer still
+	 * counts.
+	 */
+	private void closeIdleWindow(long now)
+	{
+		if (mWindowStart >= 0 && now - mLastReceived > IDLE_TIME)
+		{
+			closeWindow(mLastReceived);
+			mWindowStart = -1;
+		}
+	}
+
+	private void closeWindow(long end)
+	{
+		long millis = end - mWindowStart;
+
+		if (mWindowBytes <= 0 || millis < MIN_SAMPLE_TIME)
+			return;
+
+		float rate = (mWindowBytes * 1000f) / millis;
+
+		if (mBytesPerSecond < 0)
+			mBytesPerSecond = rate;
+		else
+			mBytesPerSecond += SMOOTHING * (rate - mBytesPerSecond);
+	}
+
+	/**
+	 * @return Smoothed throughput in bytes per second, or -1 if unknown.
+	 */
+	public float getBytesPerSecond()
+	{
+		return getBytesPerSecond(SystemClock.elapsedRealtime());
+	}
+
+	synchronized float getBytesPerSecond(long now)
+	{
+		closeIdleWindow(now);
+
+		return mBytesPerSecond;
+	}
+}
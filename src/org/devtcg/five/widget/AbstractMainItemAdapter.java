@@ -3,8 +3,6 @@ package org.devtcg.five.widget;
 import java.util.HashSet;
 
 import org.devtcg.five.Constants;
-import org.devtcg.five.R;
-import org.devtcg.five.provider.Five;
 import org.devtcg.five.provider.util.AbstractDAOItem;
 import org.devtcg.five.util.AsyncBitmapHandler;
 import org.devtcg.five.util.LogUtils;
@@ -22,13 +20,14 @@ import android.util.Pair;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
-import android.widget.AlphabetIndexer;
 import android.widget.FilterQueryProvider;
 import android.widget.SectionIndexer;
 
 /**
  * Base list adapter used by the primary artist and album list screens. Provides
- * the animated emblem loading logic and an alphabet fast scroller.
+ * the animated emblem loading logic and an alphabet fast scroller, whose
+ * sections come from the cursor when it is a {@link SectionIndexer} (see
+ * {@link SectionedCursor}).
  * <p>
  * This could be factored into two separate classes, one more of a controller
  * model and the other an actual list adapter but since only two screens use
@@ -49,8 +48,6 @@ public abstract class AbstractMainItemAdapter
 
 	private final Context mContext;
 
-	private final AlphabetIndexer mIndexer;
-
 	private static final MemCache<Long, Bitmap> sBitmapCache =
 		new MemCache<Long, Bitmap>();
 
@@ -68,10 +65,6 @@ public abstract class AbstractMainItemAdapter
 		mContext = context;
 
 		setFilterQueryProvider(provider);
-
-		mIndexer = new AlphabetIndexer(getCursor(),
-				getCursor().getColumnIndexOrThrow(Five.Music.Artists.NAME),
-				context.getResources().getString(R.string.alphabet));
 	}
 
 	private void cleanupBackgroundOperations()
@@ -88,7 +81,6 @@ public abstract class AbstractMainItemAdapter
 	{
 		cleanupBackgroundOperations();
 		super.changeCursor(cursor);
-		mIndexer.setCursor(cursor);
 	}
 
 	public void dispatchScrollStateChanged(AbsListView view, int scrollState)
@@ -160,19 +152,31 @@ public abstract class AbstractMainItemAdapter
 
 	protected abstract Uri getCurrentRowBadgeUri();
 
+	private SectionIndexer getIndexer()
+	{
+		Cursor cursor = getCursor();
+		if (cursor instanceof SectionIndexer)
+			return (SectionIndexer)cursor;
+		else
+			return null;
+	}
+
 	public int getPositionForSection(int section)
 	{
-		return mIndexer.getPositionForSection(section);
+		SectionIndexer indexer = getIndexer();
+		return indexer != null ? indexer.getPositionForSection(section) : 0;
 	}
 
 	public int getSectionForPosition(int position)
 	{
-		return mIndexer.getSectionForPosition(position);
+		SectionIndexer indexer = getIndexer();
+		return indexer != null ? indexer.getSectionForPosition(position) : 0;
 	}
 
 	public Object[] getSections()
 	{
-		return mIndexer.getSections();
+		SectionIndexer indexer = getIndexer();
+		return indexer != null ? indexer.getSections() : new Object[0];
 	}
 
 	private AsyncBadgeLoader getOrCreateBitmapLoader()
@@ -90,18 +90,31 @@ public abstract class AbstractMainListActivity extends ListActivity implements O
 	protected class QueryProvider extends SimpleQueryProvider
 	{
 		private final Uri mBaseUri;
-
-		public QueryProvider(String columnName, Uri baseUri)
+		private final String mSortColumn;
+
+		/**
+		 * @param columnName
+		 *            Column to filter on.
+		 * @param sortColumn
+		 *            Precomputed sort key column to order by.
+		 */
+		public QueryProvider(String columnName, String sortColumn, Uri baseUri)
 		{
 			super(columnName);
+			mSortColumn = sortColumn;
 			mBaseUri = baseUri;
 		}
 
 		@Override
 		public Cursor getFilterCursor(String selection, String[] args)
 		{
-			return getContentResolver().query(mBaseUri, null,
-					selection, args, getColumnName() + " COLLATE UNICODE ASC");
+			Cursor cursor = getContentResolver().query(mBaseUri, null,
+					selection, args, mSortColumn + " ASC");
+			if (cursor == null)
+				return null;
+
+			return new SectionedCursor(cursor, getContentResolver(), mBaseUri,
+					selection, args);
 		}
 	};
 
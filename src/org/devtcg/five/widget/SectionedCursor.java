@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.widget;
+
+import org.devtcg.five.provider.Five;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.widget.SectionIndexer;
+
+/**
+ * Cursor over a sorted artist or album list which also knows where each
+ * alphabet section begins. The sections are read from the provider's
+ * precomputed section column in a single grouped query (see
+ * {@link Five#SECTIONS}) instead of being discovered by collating and
+ * binary searching the names in the list itself.
+ */
+public class SectionedCursor extends CursorWrapper implements SectionIndexer
+{
+	private final ContentResolver mResolver;
+	private final Uri mSectionsUri;
+	private final String mSelection;
+	private final String[] mSelectionArgs;
+
+	private String[] mSections;
+
+	/** Position of the first item in each section. */
+	private int[] mPositions;
+
+	public SectionedCursor(Cursor cursor, ContentResolver resolver, Uri listUri,
+	  String selection, String[] selectionArgs)
+	{
+		super(cursor);
+
+		mResolver = resolver;
+		mSectionsUri = Five.makeSectionsUri(listUri);
+		mSelection = selection;
+		mSelectionArgs = selectionArgs;
+
+		loadSections();
+	}
+
+	private void loadSections()
+	{
+		Cursor c = mResolver.query(mSectionsUri, null, mSelection, mSelectionArgs, null);
+
+		if (c == null)
+		{
+			mSections = new String[0];
+			mPositions = new int[0];
+			return;
+		}
+
+		try {
+			int count = c.getCount();
+
+			String[] sections = new String[count];
+			int[] positions = new int[count];
+
+			int sectionColumn = c.getColumnIndexOrThrow(Five.SECTION);
+			int countColumn = c.getColumnIndexOrThrow(Five.SECTION_COUNT);
+
+			int position = 0;
+			for (int i = 0; c.moveToNext() == true; i++)
+			{
+				sections[i] = c.getString(sectionColumn);
+				positions[i] = position;
+				position += c.getInt(countColumn);
+			}
+
+			mSections = sections;
+			mPositions = positions;
+		} finally {
+			c.close();
+		}
+	}
+
+	@Override
+	public boolean requery()
+	{
+		if (super.requery() == false)
+			return false;
+
+		loadSections();
+		return true;
+	}
+
+	public Object[] getSections()
+	{
+		return mSections;
+	}
+
+	public int getPositionForSection(int section)
+	{
+		if (mPositions.length == 0)
+			return 0;
+
+		if (section < 0)
+			section = 0;
+		else if (section >= mPositions.length)
+			section = mPositions.length - 1;
+
+		return mPositions[section];
+	}
+
+	public int getSectionForPosition(int position)
+	{
+		int low = 0;
+		int high = mPositions.length - 1;
+
+		if (high < 0)
+			return 0;
+
+		/* Find the last section starting at or before position. */
+		while (low < high)
+		{
+			int mid = (low + high + 1) >>> 1;
+			if (mPositions[mid] <= position)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+
+		return low;
+	}
+}
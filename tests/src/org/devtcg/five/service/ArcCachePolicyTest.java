@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.service.CachePolicy.Entry;
+
+public class ArcCachePolicyTest extends TestCase
+{
+	private static final long CAPACITY = 1000;
+
+	private ArcCachePolicy mPolicy;
+
+	@Override
+	protected void setUp()
+	  throws Exception
+	{
+		mPolicy = new ArcCachePolicy();
+	}
+
+	private static Entry recent(long songId, long size, long lastAccess)
+	{
+		return new Entry(songId, "/cache/" + songId, size, lastAccess, 1);
+	}
+
+	private static Entry frequent(long songId, long size, long lastAccess)
+	{
+		return new Entry(songId, "/cache/" + songId, size, lastAccess, 3);
+	}
+
+	/**
+	 * Orders <code>entries</code> and checks that they come out with the
+	 * song ids given, in that order.
+	 */
+	private void assertOrder(long[] expected, Entry... entries)
+	{
+		List<Entry> list = new ArrayList<Entry>();
+		for (Entry entry: entries)
+			list.add(entry);
+
+		mPolicy.order(list, CAPACITY);
+
+		assertEquals(expected.length, list.size());
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("Entry " + i, expected[i], list.get(i).songId);
+	}
+
+	/**
+	 * Evicts an entry and asks for it again, as though it had been played.
+	 */
+	private void evictAndMiss(Entry entry)
+	{
+		mPolicy.onEvicted(entry);
+		mPolicy.onMiss(entry.songId, entry.size);
+	}
+
+	public void testRecentOverTargetEvictedFirst()
+	{
+		/* The target starts at nothing, so recent content is always over. */
+		assertOrder(new long[] { 2, 1, 3 },
+		  recent(1, 100, 10), recent(2, 100, 5), frequent(3, 100, 1));
+	}
+
+	public void testRecentGhostRaisesTarget()
+	{
+		mPolicy.order(new ArrayList<Entry>(), CAPACITY);
+		evictAndMiss(recent(10, 100, 1));
+
+		/* With a target of 100, one recent entry is within its share... */
+		assertOrder(new long[] { 3, 1 },
+		  recent(1, 100, 5), frequent(3, 100, 1));
+
+		/* ...but two are over it, until the older one goes. */
+		assertOrder(new long[] { 1, 3, 2 },
+		  recent(1, 100, 5), recent(2, 100, 6), frequent(3, 100, 1));
+	}
+
+	public void testFrequentGhostLowersTarget()
+	{
+		mPolicy.order(new ArrayList<Entry>(), CAPACITY);
+		evictAndMiss(recent(10, 100, 1));
+
+		assertOrder(new long[] { 3, 1 },
+		  recent(1, 50, 5), frequent(3, 100, 1));
+
+		/* Down to a target of 40, which the recent entry is now over. */
+		evictAndMiss(frequent(11, 60, 1));
+
+		assertOrder(new long[] { 1, 3 },
+		  recent(1, 50, 5), frequent(3, 100, 1));
+	}
+
+	public void testGhostHitWeightedBySides()
+	{
+		mPolicy.order(new ArrayList<Entry>(), CAPACITY);
+
+		mPolicy.onEvicted(recent(10, 100, 1));
+		mPolicy.onEvicted(recent(11, 100, 2));
+		mPolicy.onEvicted(frequent(12, 400, 3));
+
+		/* 400 frequent ghost bytes against 100 recent: four times the size. */
+		mPolicy.onMiss(10, 100);
+
+		assertOrder(new long[] { 5, 1, 2, 3, 4 },
+		  recent(1, 100, 1), recent(2, 100, 2), recent(3, 100, 3),
+		  recent(4, 100, 4), frequent(5, 100, 0));
+
+		assertOrder(new long[] { 1, 6, 2, 3, 4, 5 },
+		  recent(1, 100, 1), recent(2, 100, 2), recent(3, 100, 3),
+		  recent(4, 100, 4), recent(5, 100, 5), frequent(6, 100, 0));
+	}
+
+	public void testUnknownMissKeepsTarget()
+	{
+		mPolicy.order(new ArrayList<Entry>(), CAPACITY);
+		mPolicy.onMiss(10, 100);
+
+		assertOrder(new long[] { 1, 3 },
+		  recent(1, 100, 5), frequent(3, 100, 1));
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import junit.framework.TestCase;
+
+import org.devtcg.five.util.streaming.ThroughputEstimator;
+
+public class BitrateSelectorTest extends TestCase
+{
+	/** Estimator reporting whatever throughput the test sets. */
+	private static class FixedThroughput extends ThroughputEstimator
+	{
+		public float bytesPerSecond = -1;
+
+		@Override
+		public float getBytesPerSecond()
+		{
+			return bytesPerSecond;
+		}
+	}
+
+	private FixedThroughput mThroughput;
+	private BitrateSelector mSelector;
+
+	@Override
+	protected void setUp()
+	  throws Exception
+	{
+		mThroughput = new FixedThroughput();
+		mSelector = new BitrateSelector(mThroughput);
+	}
+
+	/**
+	 * @return Bytes per second which sustain exactly <code>kbps</code> with
+	 *         1.5x headroom.
+	 */
+	private static float sustaining(int kbps)
+	{
+		return kbps * 1.5f * 1000 / 8;
+	}
+
+	public void testUnknown()
+	{
+		/* No measurement yet. */
+		assertEquals(0, mSelector.select(320));
+
+		/* Original bitrate unknown. */
+		mThroughput.bytesPerSecond = sustaining(64);
+		assertEquals(0, mSelector.select(0));
+	}
+
+	public void testOriginalAtHeadroom()
+	{
+		mThroughput.bytesPerSecond = sustaining(320);
+		assertEquals(0, mSelector.select(320));
+
+		mThroughput.bytesPerSecond = sustaining(320) - 1;
+		assertEquals(192, mSelector.select(320));
+	}
+
+	public void testVariantAtHeadroom()
+	{
+		mThroughput.bytesPerSecond = sustaining(192);
+		assertEquals(192, mSelector.select(320));
+
+		mThroughput.bytesPerSecond = sustaining(192) - 1;
+		assertEquals(128, mSelector.select(320));
+
+		mThroughput.bytesPerSecond = sustaining(96);
+		assertEquals(96, mSelector.select(320));
+
+		mThroughput.bytesPerSecond = sustaining(96) - 1;
+		assertEquals(64, mSelector.select(320));
+	}
+
+	public void testOriginalBetweenVariants()
+	{
+		mThroughput.bytesPerSecond = sustaining(160);
+		assertEquals(0, mSelector.select(160));
+
+		/* Just short of the original, so the next variant below it. */
+		mThroughput.bytesPerSecond = sustaining(160) - 1;
+		assertEquals(128, mSelector.select(160));
+	}
+
+	public void testTooSlowForAny()
+	{
+		mThroughput.bytesPerSecond = sustaining(32);
+		assertEquals(64, mSelector.select(320));
+
+		/* Nothing lower to offer than the original itself. */
+		assertEquals(0, mSelector.select(64));
+		assertEquals(0, mSelector.select(48));
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import junit.framework.TestCase;
+
+/**
+ * Simulates transfers over a link of unlimited speed, so that the share
+ * each gets is decided by {@link BandwidthShare} alone.
+ */
+public class BandwidthShareTest extends TestCase
+{
+	private static final int CHUNK = 4096;
+
+	/** Bytes read in all before a share is measured. */
+	private static final long TOTAL = 4 * 1024 * 1024;
+
+	/** Longest a measurement may take before we decide we're stuck. */
+	private static final long TIMEOUT = 10000;
+
+	/** Allowed error in each transfer's fraction of the total. */
+	private static final double TOLERANCE = 0.05;
+
+	private static class Transfer implements Runnable
+	{
+		private final BandwidthShare mShare;
+		private final Thread mThread;
+
+		private volatile boolean mStopped;
+		private long mBytes;
+
+		public Transfer(BandwidthShare share, int weight)
+		{
+			mShare = share;
+			mShare.register(this, weight);
+			mThread = new Thread(this);
+		}
+
+		public void start()
+		{
+			mThread.start();
+		}
+
+		public void run()
+		{
+			try {
+				while (mStopped == false)
+				{
+					mShare.consume(this, CHUNK);
+
+					synchronized(this) {
+						mBytes += CHUNK;
+					}
+				}
+			} catch (InterruptedException e) {}
+		}
+
+		public synchronized long getBytes()
+		{
+			return mBytes;
+		}
+
+		public void stop()
+		{
+			mStopped = true;
+		}
+
+		public void join()
+		  throws InterruptedException
+		{
+			mShare.unregister(this);
+			mThread.join(TIMEOUT);
+			assertFalse("Transfer didn't stop", mThread.isAlive());
+		}
+	}
+
+	private static long getBytes(Transfer[] transfers)
+	{
+		long bytes = 0;
+
+		for (Transfer transfer: transfers)
+			bytes += transfer.getBytes();
+
+		return bytes;
+	}
+
+	/**
+	 * Waits for the transfers to read <code>bytes</code> more between them.
+	 */
+	private static void waitForBytes(Transfer[] transfers, long bytes)
+	  throws InterruptedException
+	{
+		long target = getBytes(transfers) + bytes;
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+
+		while (getBytes(transfers) < target)
+		{
+			assertTrue("Transfers held back",
+			  System.currentTimeMillis() < deadline);
+
+			Thread.sleep(10);
+		}
+	}
+
+	private static void stop(Transfer[] transfers)
+	  throws InterruptedException
+	{
+		for (Transfer transfer: transfers)
+			transfer.stop();
+
+		for (Transfer transfer: transfers)
+			transfer.join();
+	}
+
+	/**
+	 * Checks that each transfer read its weighted share of the bytes read
+	 * since <code>start</code>.
+	 */
+	private static void assertShares(Transfer[] transfers, long[] start,
+	  int[] weights)
+	{
+		long total = 0;
+		int totalWeight = 0;
+
+		for (int i = 0; i < transfers.length; i++)
+		{
+			total += transfers[i].getBytes() - start[i];
+			totalWeight += weights[i];
+		}
+
+		for (int i = 0; i < transfers.length; i++)
+		{
+			double expected = (double)weights[i] / totalWeight;
+			double actual = (double)(transfers[i].getBytes() - start[i]) / total;
+
+			assertEquals("Share of transfer " + i, expected, actual, TOLERANCE);
+		}
+	}
+
+	public void testWeightedShares()
+	  throws InterruptedException
+	{
+		BandwidthShare share = new BandwidthShare();
+		int[] weights = { 1, 2, 4 };
+
+		Transfer[] transfers = new Transfer[weights.length];
+		for (int i = 0; i < weights.length; i++)
+			transfers[i] = new Transfer(share, weights[i]);
+
+		for (Transfer transfer: transfers)
+			transfer.start();
+
+		try {
+			waitForBytes(transfers, TOTAL);
+		} finally {
+			stop(transfers);
+		}
+
+		assertShares(transfers, new long[weights.length], weights);
+	}
+
+	public void testStalledTransfer()
+	  throws InterruptedException
+	{
+		BandwidthShare share = new BandwidthShare();
+
+		Transfer[] running = new Transfer[] {
+		  new Transfer(share, 1), new Transfer(share, 2) };
+
+		/* Registered, but doesn't read anything until later. */
+		Transfer stalled = new Transfer(share, 1);
+
+		Transfer[] all = new Transfer[] { running[0], running[1], stalled };
+		long[] start = new long[all.length];
+
+		try {
+			for (Transfer transfer: running)
+				transfer.start();
+
+			/* The stalled transfer mustn't hold the others back... */
+			waitForBytes(running, TOTAL);
+			assertEquals(0, stalled.getBytes());
+
+			for (int i = 0; i < all.length; i++)
+				start[i] = all[i].getBytes();
+
+			/* ...nor catch up on what it missed once it resumes. */
+			stalled.start();
+			waitForBytes(all, TOTAL);
+		} finally {
+			stop(all);
+		}
+
+		assertShares(all, start, new int[] { 1, 2, 1 });
+	}
+}
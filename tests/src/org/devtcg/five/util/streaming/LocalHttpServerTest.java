@@ -14,10 +14,15 @@
 
 package org.devtcg.five.util.streaming;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Random;
 
@@ -35,7 +40,9 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentProducer;
 import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 
@@ -100,6 +107,236 @@ public class LocalHttpServerTest extends TestCase
 		}
 	}
 
+	public void testPipelinedRequests()
+	  throws IOException
+	{
+		LocalHttpServer server = startMyHttpServer();
+		RawClient client = new RawClient(server.getPort());
+
+		try {
+			/* Both requests arrive in a single read. */
+			client.send("GET /echo/1 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+			  "GET /echo/2 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+			RawResponse first = client.readResponse();
+			assertEquals(HttpStatus.SC_OK, first.status);
+			assertEquals("/echo/1", first.body);
+
+			RawResponse second = client.readResponse();
+			assertEquals(HttpStatus.SC_OK, second.status);
+			assertEquals("/echo/2", second.body);
+		} finally {
+			client.close();
+			server.shutdown();
+		}
+	}
+
+	public void testSplitRequestHead()
+	  throws IOException, InterruptedException
+	{
+		LocalHttpServer server = startMyHttpServer();
+		RawClient client = new RawClient(server.getPort());
+
+		try {
+			/* Give the server a chance to read each piece on its own. */
+			client.send("GET /echo/split HTT");
+			Thread.sleep(100);
+			client.send("P/1.1\r\nHost: localhost\r");
+			Thread.sleep(100);
+			client.send("\n\r\n");
+
+			RawResponse response = client.readResponse();
+			assertEquals(HttpStatus.SC_OK, response.status);
+			assertEquals("/echo/split", response.body);
+		} finally {
+			client.close();
+			server.shutdown();
+		}
+	}
+
+	public void testMalformedRequestLine()
+	  throws IOException
+	{
+		LocalHttpServer server = startMyHttpServer();
+
+		try {
+			RawClient client = new RawClient(server.getPort());
+
+			try {
+				client.send("NONSENSE\r\n\r\n");
+
+				/* Dropped without a response. */
+				assertEquals(-1, client.read());
+			} finally {
+				client.close();
+			}
+
+			/* The server carries on serving everyone else. */
+			client = new RawClient(server.getPort());
+
+			try {
+				client.send("GET /echo/after HTTP/1.1\r\nHost: localhost\r\n\r\n");
+				assertEquals("/echo/after", client.readResponse().body);
+			} finally {
+				client.close();
+			}
+		} finally {
+			server.shutdown();
+		}
+	}
+
+	public void testChunkedResponse()
+	  throws IOException
+	{
+		LocalHttpServer server = startMyHttpServer();
+		RawClient client = new RawClient(server.getPort());
+
+		try {
+			client.send("GET /chunked HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+			RawResponse response = client.readResponse();
+			assertEquals(HttpStatus.SC_OK, response.status);
+			assertEquals(HTTP.CHUNK_CODING,
+			  response.headers.get(HTTP.TRANSFER_ENCODING.toLowerCase(Locale.ENGLISH)));
+			assertEquals(MyHttpServer.CHUNKED_BODY, response.body);
+
+			/* The end of the body is found, so the connection is kept. */
+			client.send("GET /echo/again HTTP/1.1\r\nHost: localhost\r\n\r\n");
+			assertEquals("/echo/again", client.readResponse().body);
+		} finally {
+			client.close();
+			server.shutdown();
+		}
+	}
+
+	private static class RawResponse
+	{
+		public int status;
+		public final HashMap<String, String> headers = new HashMap<String, String>();
+		public String body;
+	}
+
+	/**
+	 * Speaks HTTP over a plain socket, so that requests can be sent exactly
+	 * as a client might split or pipeline them.
+	 */
+	private static class RawClient
+	{
+		private final Socket mSocket;
+		private final InputStream mIn;
+		private final OutputStream mOut;
+
+		public RawClient(int port)
+		  throws IOException
+		{
+			mSocket = new Socket(InetAddress.getLocalHost(), port);
+			mSocket.setSoTimeout(5000);
+			mIn = mSocket.getInputStream();
+			mOut = mSocket.getOutputStream();
+		}
+
+		public void send(String data)
+		  throws IOException
+		{
+			mOut.write(data.getBytes("ISO-8859-1"));
+			mOut.flush();
+		}
+
+		public int read()
+		  throws IOException
+		{
+			return mIn.read();
+		}
+
+		private String readLine()
+		  throws IOException
+		{
+			StringBuilder b = new StringBuilder();
+
+			while (true)
+			{
+				int c = mIn.read();
+				if (c < 0)
+					throw new EOFException("Connection closed mid-line");
+
+				if (c == '\n')
+					break;
+
+				if (c != '\r')
+					b.append((char)c);
+			}
+
+			return b.toString();
+		}
+
+		private void readFully(ByteArrayOutputStream out, int length)
+		  throws IOException
+		{
+			for (int i = 0; i < length; i++)
+			{
+				int c = mIn.read();
+				if (c < 0)
+					throw new EOFException("Connection closed mid-body");
+
+				out.write(c);
+			}
+		}
+
+		public RawResponse readResponse()
+		  throws IOException
+		{
+			RawResponse response = new RawResponse();
+
+			String[] statusLine = readLine().split(" ");
+			response.status = Integer.parseInt(statusLine[1]);
+
+			String line;
+			while ((line = readLine()).length() > 0)
+			{
+				int colon = line.indexOf(':');
+				response.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+				  line.substring(colon + 1).trim());
+			}
+
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+			String length = response.headers.get("content-length");
+			String encoding = response.headers.get("transfer-encoding");
+
+			if (length != null)
+				readFully(body, Integer.parseInt(length));
+			else if (HTTP.CHUNK_CODING.equalsIgnoreCase(encoding) == true)
+			{
+				int size;
+				while ((size = Integer.parseInt(readLine().trim(), 16)) > 0)
+				{
+					readFully(body, size);
+					readLine();
+				}
+
+				/* Trailer, which we never send. */
+				readLine();
+			}
+			else
+			{
+				int c;
+				while ((c = mIn.read()) >= 0)
+					body.write(c);
+			}
+
+			response.body = body.toString("UTF-8");
+
+			return response;
+		}
+
+		public void close()
+		{
+			try {
+				mSocket.close();
+			} catch (IOException e) {}
+		}
+	}
+
 	public static class MyHttpServer extends LocalHttpServer
 	{
 		public MyHttpServer(int port)
@@ -125,11 +362,26 @@ public class LocalHttpServerTest extends TestCase
 					  " method not supported");
 				}
 
-				response.setEntity(new MyBoilerPlateEntity());
+				String uri = reqLine.getUri();
+
+				if (uri.startsWith("/echo/") == true)
+					response.setEntity(new StringEntity(uri, "UTF-8"));
+				else if (uri.equals("/chunked") == true)
+				{
+					MyBoilerPlateEntity entity = new MyBoilerPlateEntity();
+					entity.setChunked(true);
+					response.setEntity(entity);
+				}
+				else
+					response.setEntity(new MyBoilerPlateEntity());
+
 				response.setStatusCode(HttpStatus.SC_OK);
 			}
 		};
 
+		public static final String CHUNKED_BODY =
+		  "<html><body><h1>Success!</h1></body></html>";
+
 		public static class MyBoilerPlateEntity extends EntityTemplate
 		{
 			public MyBoilerPlateEntity()
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class RangeMapTest extends TestCase
+{
+	private File mFile;
+
+	@Override
+	protected void setUp()
+	  throws Exception
+	{
+		mFile = File.createTempFile("rangemap", ".cache");
+	}
+
+	@Override
+	protected void tearDown()
+	  throws Exception
+	{
+		RangeMap.getSidecar(mFile).delete();
+		mFile.delete();
+	}
+
+	public void testMergeOverlapping()
+	{
+		RangeMap map = new RangeMap();
+
+		map.add(0, 100);
+		map.add(50, 150);
+		assertEquals(150, map.getFilledEnd(0));
+		assertEquals(150, map.getFilledBytes());
+
+		/* Entirely inside an existing range. */
+		map.add(20, 30);
+		assertEquals(150, map.getFilledEnd(0));
+		assertEquals(150, map.getFilledBytes());
+	}
+
+	public void testMergeAdjacent()
+	{
+		RangeMap map = new RangeMap();
+
+		map.add(0, 100);
+		map.add(100, 200);
+		assertEquals(200, map.getFilledEnd(0));
+		assertEquals(200, map.getFilledBytes());
+	}
+
+	public void testOutOfOrder()
+	{
+		RangeMap map = new RangeMap();
+
+		map.add(300, 400);
+		map.add(0, 100);
+		map.add(150, 200);
+		assertEquals(100, map.getFilledEnd(0));
+		assertEquals(250, map.getFilledBytes());
+
+		/* Bridges the gaps on both sides at once. */
+		map.add(100, 300);
+		assertEquals(400, map.getFilledEnd(0));
+		assertEquals(400, map.getFilledBytes());
+		assertTrue(map.isComplete(400));
+		assertFalse(map.isComplete(401));
+	}
+
+	public void testFilledEnd()
+	{
+		RangeMap map = new RangeMap();
+
+		map.add(100, 200);
+		map.add(300, 400);
+
+		/* Inside a range. */
+		assertEquals(200, map.getFilledEnd(100));
+		assertEquals(200, map.getFilledEnd(150));
+		assertEquals(400, map.getFilledEnd(399));
+
+		/* Between ranges, before the first, and after the last. */
+		assertEquals(0, map.getFilledEnd(0));
+		assertEquals(200, map.getFilledEnd(200));
+		assertEquals(250, map.getFilledEnd(250));
+		assertEquals(400, map.getFilledEnd(400));
+		assertEquals(500, map.getFilledEnd(500));
+	}
+
+	public void testEmptyRangeIgnored()
+	{
+		RangeMap map = new RangeMap();
+
+		map.add(100, 100);
+		map.add(200, 150);
+		assertEquals(0, map.getFilledBytes());
+	}
+
+	public void testSaveAndLoad()
+	  throws IOException
+	{
+		RangeMap map = new RangeMap();
+		map.add(0, 100);
+		map.add(200, 300);
+		map.setValidator("\"abc123\"");
+		map.save(mFile);
+
+		assertTrue(RangeMap.getSidecar(mFile).exists());
+
+		RangeMap loaded = RangeMap.load(mFile);
+		assertEquals(100, loaded.getFilledEnd(0));
+		assertEquals(300, loaded.getFilledEnd(200));
+		assertEquals(200, loaded.getFilledBytes());
+		assertEquals("\"abc123\"", loaded.getValidator());
+	}
+
+	public void testSaveAndLoadWithoutValidator()
+	  throws IOException
+	{
+		RangeMap map = new RangeMap();
+		map.add(50, 100);
+		map.save(mFile);
+
+		RangeMap loaded = RangeMap.load(mFile);
+		assertEquals(100, loaded.getFilledEnd(50));
+		assertEquals(50, loaded.getFilledBytes());
+		assertNull(loaded.getValidator());
+	}
+
+	public void testLoadWithoutSidecar()
+	  throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(new byte[123]);
+		} finally {
+			out.close();
+		}
+
+		/* The whole file is taken as one range from the start. */
+		RangeMap loaded = RangeMap.load(mFile);
+		assertEquals(123, loaded.getFilledEnd(0));
+		assertNull(loaded.getValidator());
+	}
+
+	public void testLoadUnreadable()
+	  throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(RangeMap.getSidecar(mFile));
+		try {
+			out.write(new byte[] { 0, 0, 0, 99 });
+		} finally {
+			out.close();
+		}
+
+		/* An unknown version is discarded rather than trusted. */
+		RangeMap loaded = RangeMap.load(mFile);
+		assertEquals(0, loaded.getFilledBytes());
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import junit.framework.TestCase;
+
+public class ThroughputEstimatorTest extends TestCase
+{
+	private static final float DELTA = 0.01f;
+
+	public void testUnknownUntilMeasured()
+	{
+		ThroughputEstimator estimator = new ThroughputEstimator();
+		assertEquals(-1f, estimator.getBytesPerSecond(0), DELTA);
+
+		/* The first read only marks the start of the window. */
+		estimator.addBytes(100000, 0);
+		assertEquals(-1f, estimator.getBytesPerSecond(0), DELTA);
+	}
+
+	public void testFullWindow()
+	{
+		ThroughputEstimator estimator = new ThroughputEstimator();
+
+		estimator.addBytes(1000, 0);
+		estimator.addBytes(2000, 1000);
+		assertEquals(-1f, estimator.getBytesPerSecond(1000), DELTA);
+
+		/* 4000 bytes over the 2 second window. */
+		estimator.addBytes(2000, 2000);
+		assertEquals(2000f, estimator.getBytesPerSecond(2000), DELTA);
+	}
+
+	public void testMovingAverage()
+	{
+		ThroughputEstimator estimator = new ThroughputEstimator();
+
+		estimator.addBytes(1000, 0);
+		estimator.addBytes(2000, 1000);
+		estimator.addBytes(2000, 2000);
+		assertEquals(2000f, estimator.getBytesPerSecond(2000), DELTA);
+
+		/* The next window runs at 4000 bytes/s, and is weighted by 0.3. */
+		estimator.addBytes(4000, 3000);
+		estimator.addBytes(4000, 4000);
+		assertEquals(2600f, estimator.getBytesPerSecond(4000), DELTA);
+	}
+
+	public void testIdleTimeNotCounted()
+	{
+		ThroughputEstimator estimator = new ThroughputEstimator();
+
+		estimator.addBytes(1000, 0);
+		estimator.addBytes(1000, 500);
+		estimator.addBytes(1000, 1000);
+
+		/* The window ends where data stopped, not when we next look. */
+		assertEquals(2000f, estimator.getBytesPerSecond(5000), DELTA);
+
+		/* After the gap, the first read starts a new window... */
+		estimator.addBytes(50000, 5000);
+		assertEquals(2000f, estimator.getBytesPerSecond(5000), DELTA);
+
+		/* ...and the gap itself doesn't drag the estimate down. */
+		estimator.addBytes(4000, 6000);
+		estimator.addBytes(4000, 7000);
+		assertEquals(2600f, estimator.getBytesPerSecond(7000), DELTA);
+	}
+
+	public void testIdleClosesWindowOnNextRead()
+	{
+		ThroughputEstimator estimator = new ThroughputEstimator();
+
+		estimator.addBytes(1000, 0);
+		estimator.addBytes(2000, 1000);
+		estimator.addBytes(1000, 1500);
+
+		/* Noticed by the next read rather than by a query. */
+		estimator.addBytes(1000, 10000);
+		assertEquals(2000f, estimator.getBytesPerSecond(10000), DELTA);
+	}
+
+	public void testShortWindowIgnored()
+	{
+		ThroughputEstimator estimator = new ThroughputEstimator();
+
+		/* A burst over 200ms says more about latency than bandwidth. */
+		estimator.addBytes(1000, 0);
+		estimator.addBytes(100000, 200);
+		assertEquals(-1f, estimator.getBytesPerSecond(5000), DELTA);
+	}
+}